@@ -8,7 +8,6 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -36,7 +35,6 @@ import org.mymedialite.eval.ItemsCrossValidation;
 import org.mymedialite.eval.ItemsFiltered;
 import org.mymedialite.eval.ItemsOnline;
 import org.mymedialite.eval.ItemsParallel;
-import org.mymedialite.eval.ItemsParallel.EvaluationTask;
 import org.mymedialite.grouprec.Average;
 import org.mymedialite.grouprec.GroupRecommender;
 import org.mymedialite.grouprec.Maximum;
@@ -53,6 +51,7 @@ import org.mymedialite.io.RelationData;
 import org.mymedialite.itemrec.Extensions;
 import org.mymedialite.itemrec.IIncrementalItemRecommender;
 import org.mymedialite.itemrec.ItemRecommender;
+import org.mymedialite.itemrec.RecommendationServer;
 import org.mymedialite.ratingprediction.RatingPredictor;
 import org.mymedialite.util.Handlers;
 import org.mymedialite.util.Memory;
@@ -129,6 +128,8 @@ public class ItemRecommendation {
   static boolean user_prediction = false;
   static int random_seed = -1;
   static int find_iter = 0;
+  static int serve_port = -1;
+  static int serve_threads = 2 * Runtime.getRuntime().availableProcessors();
 
   // Time statistics
   static List<Double> training_time_stats = new ArrayList<Double>();
@@ -205,6 +206,12 @@ public class ItemRecommendation {
       "   --predict-items-number=N     predict N items per user (needs --predict-items-file)\n" +
       "\n" +
 
+      "  Server options:\n" +
+      "   --serve=PORT                 after training or loading the model, answer requests on http://localhost:PORT/\n" +
+      "                                /recommend?user=ID&k=N, /recommend?items=ID,ID,...&k=N (LTM_FR) and /stats\n" +
+      "   --serve-threads=N            handle up to N requests at a time\n" +
+      "\n" +
+
       "  Evaluation options:\n" +
       "   --cross-validation=K         perform k-fold cross-validation on the training data\n" +
       "   --show-fold-results          show results for individual folds in cross-validation\n" +
@@ -292,6 +299,8 @@ public class ItemRecommendation {
       else if(name.equals("--max-iter="))             max_iter              = Integer.parseInt(value);
       else if(name.equals("--random-seed="))          random_seed          = Integer.parseInt(value);
       else if(name.equals("--predict-items-number=")) predict_items_number = Integer.parseInt(value);
+      else if(name.equals("--serve="))                serve_port           = Integer.parseInt(value);
+      else if(name.equals("--serve-threads="))        serve_threads        = Integer.parseInt(value);
       else if(name.equals("--num-test-users="))       num_test_users       = Integer.parseInt(value);
       else if(name.equals("--max-test-users="))       max_test_users       = Integer.parseInt(value);
       else if(name.equals("--cross-validation="))     cross_validation     = Integer.parseInt(value);
@@ -330,11 +339,16 @@ public class ItemRecommendation {
 
     if (random_seed != -1) org.mymedialite.util.Random.initInstance(random_seed);
 
-    if(method.length()>8) substring = method.substring(0, 8); // Farhan. for explicit recommender, we will use the recommender name with the prefix explicit e.g. explicit ItemKNNCosine
+    if(method != null && method.length()>8) substring = method.substring(0, 8); // Farhan. for explicit recommender, we will use the recommender name with the prefix explicit e.g. explicit ItemKNNCosine
     // Set up recommender
     if (load_model_file != null)
       try {
         recommender = Model.load(load_model_file);
+        // a snapshot carries the ID mappings it was computed with, so the data must be read with the same internal IDs
+        if (recommender instanceof LTM_FR) {
+          if (((LTM_FR)recommender)._user_mapping != null) user_mapping = ((LTM_FR)recommender)._user_mapping;
+          if (((LTM_FR)recommender)._item_mapping != null) item_mapping = ((LTM_FR)recommender)._item_mapping;
+        }
       } catch (IOException e) {
         System.err.println("Unable to load model file: " + load_model_file);
         System.exit(0);
@@ -375,40 +389,26 @@ public class ItemRecommendation {
 
     // Farhan
 
-    if(method.equals("LTM_FR") ){
+    if(recommender instanceof LTM_FR){
     	((LTM_FR)recommender).setItemMapping(item_mapping);
     	((LTM_FR)recommender).setUserMapping(user_mapping);
     	((LTM_FR)recommender).setComputeFit(compute_fit);
 
-    	List<Integer> testUsers = new ArrayList<Integer>();
-    	Collection<Integer> overlapItems = Utils.intersect(test_data.allItems(),
-				training_data.allItems());
-    	/*
-    	 * Setting the test users
-    	 */
-		for (Integer user_id : test_users) {
-			// Items viewed by the user in the test set that were also present
-			// in the training set.
-			HashSet<Integer> correct_items = new HashSet<Integer>(
-					Utils.intersect(test_data.userMatrix().get(user_id),
-							overlapItems));
-
-			// The number of items that will be used for this user.
-			HashSet<Integer> candidate_items_in_train = new HashSet<Integer>(
-					Utils.intersect(test_data.userMatrix().get(user_id),
-							overlapItems));
-
-			int num_eval_items = overlapItems.size()
-					- (candidate_items_in_train.size());
-
-			// Skip all users that have 0 or #relevant_items test items.
-			if (correct_items.size() == 0)
-				continue;
-			if (num_eval_items - correct_items.size() == 0)
-				continue;
-			testUsers.add(user_id);
-
-		}
+    	Collection<Integer> overlapItems;
+    	List<Integer> testUsers;
+    	if (test_data != null) {
+    		overlapItems = Utils.intersect(test_data.allItems(),
+    				training_data.allItems());
+    		/*
+    		 * Setting the test users: those that the evaluation ranks items for
+    		 */
+    		testUsers = ItemsParallel.eligibleTestUsers(test_data, training_data,
+    				test_users, overlapItems, repeat_eval);
+    	} else {
+    		// no evaluation, e.g. --serve=PORT or --save-model=FILE only: factorise every known user and item
+    		overlapItems = training_data.allItems();
+    		testUsers = training_data.allUsers();
+    	}
     	((LTM_FR)recommender).setTestUsers(testUsers);
     	System.out.println("Actual number of test users: "+ testUsers.size()+" Actual number of overlap test items: "+ overlapItems.size());
 
@@ -531,6 +531,9 @@ public class ItemRecommendation {
       } catch (IOException e) {
         System.err.println("Unable to save model file: " + save_model_file);
       }
+
+      if (serve_port != -1)
+        serve();
     } catch(Exception e) {
       System.out.println("Exception: " + e.getMessage());
       e.printStackTrace();
@@ -562,8 +565,8 @@ public class ItemRecommendation {
     if (cross_validation > 1 && prediction_file != null)
       usage("--cross-validation=K and --prediction-file=FILE are mutually exclusive.");
 
-    if (test_file == null && test_ratio == 0 &&  cross_validation == 0 && save_model_file == null && test_users_file == null)
-      usage("Please provide either test-file=FILE, --test-ratio=NUM, --cross-validation=K, --save-model=FILE, or --test-users=FILE.");
+    if (test_file == null && test_ratio == 0 &&  cross_validation == 0 && save_model_file == null && test_users_file == null && serve_port == -1)
+      usage("Please provide either test-file=FILE, --test-ratio=NUM, --cross-validation=K, --save-model=FILE, --test-users=FILE, or --serve=PORT.");
 
     if ((candidate_items_file != null ? 1 : 0) + (all_items ? 1 : 0) + (in_training_items ? 1 : 0) + (in_test_items ? 1 : 0) + (overlap_items ? 1 : 0) > 1)
       usage("--candidate-items=FILE, --all-items, --in-training-items, --in-test-items, and --overlap-items are mutually exclusive.");
@@ -840,6 +843,23 @@ public class ItemRecommendation {
     System.out.println("Prediction_time " + (Calendar.getInstance().getTimeInMillis() - start) + " milliseconds");
   }
 
+  static void serve() throws IOException {
+    if (candidate_items == null)
+      candidate_items = new ArrayList<Integer>(training_data.allItems());
+
+    RecommendationServer server = new RecommendationServer(recommender, training_data, candidate_items, user_mapping, item_mapping);
+    server.port = serve_port;
+    server.threads = serve_threads;
+    server.start();
+
+    // serve until the process is stopped
+    try {
+      Thread.currentThread().join();
+    } catch (InterruptedException e) {
+      server.stop(1);
+    }
+  }
+
   static void displayStats() {
     if (training_time_stats.size() > 0) {
       double max = Collections.max(training_time_stats);
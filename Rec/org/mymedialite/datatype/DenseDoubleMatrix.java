@@ -0,0 +1,244 @@
+// Copyright (C) 2010 Steffen Rendle, Zeno Gantner, Chris Newell
+// Copyright (C) 2011 Zeno Gantner
+//
+//This file is part of MyMediaLite.
+//
+//MyMediaLite is free software: you can redistribute it and/or modify
+//it under the terms of the GNU General Public License as published by
+//the Free Software Foundation, either version 3 of the License, or
+//(at your option) any later version.
+//
+//MyMediaLite is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+//GNU General Public License for more details.
+//
+//You should have received a copy of the GNU General Public License
+//along with MyMediaLite.  If not, see <http://www.gnu.org/licenses/>.
+
+package org.mymedialite.datatype;
+
+import java.util.Arrays;
+
+/**
+ * Class for storing dense matrices of primitive doubles.
+ * The data is stored in row-major mode in one contiguous array, so unlike Matrix&lt;Double&gt;
+ * no cell is boxed. Use getDouble() and setDouble() on hot paths; the generic IMatrix
+ * accessors are kept for compatibility and box on every call.
+ * Indexes are zero-based.
+ * @version 2.03
+ */
+public class DenseDoubleMatrix implements IMatrix<Double> {
+
+  /** Data array: data is stored in rows. Only the first dim1 * dim2 entries are used, see grow(). */
+  public double[] data;
+
+  /** Dimension 1, the number of rows */
+  public int dim1;
+
+  /** Dimension 2, the number of columns */
+  public int dim2;
+
+  /**
+   * Initializes a new instance of the DenseDoubleMatrix class, filled with zeros
+   * @param dim1 the number of rows
+   * @param dim2 the number of columns
+   * @throws ArithmeticException if dim1 * dim2 does not fit in one array
+   */
+  public DenseDoubleMatrix(int dim1, int dim2) {
+    if (dim1 < 0)
+      throw new IllegalArgumentException("dim1 must be at least 0");
+    if (dim2 < 0)
+      throw new IllegalArgumentException("dim2 must be at least 0");
+
+    this.dim1 = dim1;
+    this.dim2 = dim2;
+    this.data = new double[Math.multiplyExact(dim1, dim2)];
+  }
+
+  /**
+   * Initializes a new instance of the DenseDoubleMatrix class
+   * @param dim1 the number of rows
+   * @param dim2 the number of columns
+   * @param d the default value for the elements
+   */
+  public DenseDoubleMatrix(int dim1, int dim2, double d) {
+    this(dim1, dim2);
+    if (d != 0)
+      Arrays.fill(data, d);
+  }
+
+  /**
+   * Copy constructor. Creates a deep copy of the given matrix.
+   * @param matrix the matrix to be copied
+   */
+  public DenseDoubleMatrix(DenseDoubleMatrix matrix) {
+    this.dim1 = matrix.dim1;
+    this.dim2 = matrix.dim2;
+    this.data = Arrays.copyOf(matrix.data, matrix.dim1 * matrix.dim2);
+  }
+
+  @Override
+  public IMatrix<Double> createMatrix(int num_rows, int num_columns) {
+    return new DenseDoubleMatrix(num_rows, num_columns);
+  }
+
+  @Override
+  public IMatrix<Double> transpose() {
+    DenseDoubleMatrix transpose = new DenseDoubleMatrix(dim2, dim1);
+    for (int i = 0; i < dim1; i++)
+      for (int j = 0; j < dim2; j++)
+        transpose.data[j * dim1 + i] = data[i * dim2 + j];
+    return transpose;
+  }
+
+  @Override
+  public int numberOfRows() {
+    return dim1;
+  }
+
+  @Override
+  public int numberOfColumns() {
+    return dim2;
+  }
+
+  @Override
+  public Double get(int i, int j) {
+    return data[i * dim2 + j];
+  }
+
+  @Override
+  public void set(int i, int j, Double value) {
+    data[i * dim2 + j] = value;
+  }
+
+  /**
+   * Get the value at (i,j) without boxing
+   * @param i the row ID
+   * @param j the column ID
+   * @return the value at (i,j)
+   */
+  public double getDouble(int i, int j) {
+    return data[i * dim2 + j];
+  }
+
+  /**
+   * Set the value at (i,j) without boxing
+   * @param i the row ID
+   * @param j the column ID
+   * @param value the value
+   */
+  public void setDouble(int i, int j, double value) {
+    data[i * dim2 + j] = value;
+  }
+
+  @Override
+  public boolean isSymmetric() {
+    if (dim1 != dim2)
+      return false;
+    for (int i = 0; i < dim1; i++)
+      for (int j = i + 1; j < dim2; j++)
+        if (data[i * dim2 + j] != data[j * dim2 + i])
+          return false;
+    return true;
+  }
+
+  /**
+   * Returns a copy of the i-th row of the matrix
+   * @param i the row ID
+   * @return a double[] containing the row data
+   */
+  public double[] getRow(int i) {
+    return Arrays.copyOfRange(data, i * dim2, (i + 1) * dim2);
+  }
+
+  /**
+   * Sets the values of the i-th row to the values in a given array
+   * @param i the row ID
+   * @param row a double[] of length dim2
+   */
+  public void setRow(int i, double[] row) {
+    if (row.length != this.dim2)
+      throw new IllegalArgumentException("Array length " + row.length + " must equal number of columns " + this.dim2);
+    System.arraycopy(row, 0, data, i * dim2, dim2);
+  }
+
+  /**
+   * Compute the scalar product between row i of this matrix and row j of another matrix.
+   * @param i the row ID in this matrix
+   * @param matrix the other matrix, which must have the same number of columns
+   * @param j the row ID in the other matrix
+   * @return the scalar product of the two rows
+   */
+  public double rowScalarProduct(int i, DenseDoubleMatrix matrix, int j) {
+    return dot(data, i * dim2, matrix.data, j * matrix.dim2, dim2);
+  }
+
+  /**
+   * Compute the scalar product of two vectors stored in arrays.
+   * Uses four independent partial sums, so every caller gets bit-identical results for the same rows.
+   * @param a the first array
+   * @param a_offset the start of the first vector in a
+   * @param b the second array
+   * @param b_offset the start of the second vector in b
+   * @param length the length of the vectors
+   * @return the scalar product
+   */
+  public static double dot(double[] a, int a_offset, double[] b, int b_offset, int length) {
+    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int c = 0;
+    for (; c + 3 < length; c += 4) {
+      s0 += a[a_offset + c]     * b[b_offset + c];
+      s1 += a[a_offset + c + 1] * b[b_offset + c + 1];
+      s2 += a[a_offset + c + 2] * b[b_offset + c + 2];
+      s3 += a[a_offset + c + 3] * b[b_offset + c + 3];
+    }
+    for (; c < length; c++)
+      s0 += a[a_offset + c] * b[b_offset + c];
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * Grows the matrix to the requested size, if necessary
+   * The new entries are filled with zeros.
+   * When only rows are added, the data array grows by half its rows at least, so that adding the
+   * rows one at a time does not copy the whole matrix each time; data may then be longer than
+   * dim1 * dim2.
+   * @param num_rows the minimum number of rows
+   * @param num_cols the minimum number of columns
+   */
+  @Override
+  public void grow(int num_rows, int num_cols) {
+    if (num_cols > dim2) {
+      int new_rows = Math.max(num_rows, dim1);
+      double[] new_data = new double[Math.multiplyExact(new_rows, num_cols)];
+      for (int i = 0; i < dim1; i++)
+        System.arraycopy(data, i * dim2, new_data, i * num_cols, dim2);
+
+      // Replace old data structure
+      this.dim1 = new_rows;
+      this.dim2 = num_cols;
+      this.data = new_data;
+    } else if (num_rows > dim1) {
+      int size = Math.multiplyExact(num_rows, dim2);
+      if (size > data.length) {
+        long capacity = Math.max(num_rows, dim1 + (dim1 >> 1)) * (long) dim2;
+        data = Arrays.copyOf(data, capacity <= Integer.MAX_VALUE - 8 ? (int) capacity : size);
+      } else {
+        // the new rows are zero even if something was written past the last row
+        Arrays.fill(data, dim1 * dim2, size, 0);
+      }
+      this.dim1 = num_rows;
+    }
+  }
+
+  /**
+   * Sets an entire row to a specified value
+   * @param i the row ID
+   * @param v the value to be used
+   */
+  public void setRowToOneValue(int i, double v) {
+    Arrays.fill(data, i * dim2, (i + 1) * dim2, v);
+  }
+
+}
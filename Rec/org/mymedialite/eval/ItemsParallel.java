@@ -26,7 +26,14 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 
 import org.mymedialite.data.IEntityMapping;
 import org.mymedialite.data.IPosOnlyFeedback;
@@ -35,9 +42,10 @@ import org.mymedialite.eval.measures.IMeasure;
 import org.mymedialite.eval.measures.IMeasure.*;
 
 import org.mymedialite.eval.measures.IMeasureDump;
+import org.mymedialite.eval.measures.RankingMetrics;
 import org.mymedialite.IRecommender;
 import org.mymedialite.itemrec.Extensions;
-import org.mymedialite.itemrec.Random;
+import org.mymedialite.itemrec.IBatchItemRecommender;
 import org.mymedialite.util.Utils;
 
 /**
@@ -86,6 +94,18 @@ public class ItemsParallel {
 		return measures;
 	}
 
+	/**
+	 * The cutoffs of the default ranking measures, at which precision, recall, NDCG and MAP are reported
+	 */
+	public static final int[] DEFAULT_CUTOFFS = { 5, 10, 20, 30, 40, 50, 100, 150, 200, 250, 300, 350, 400, 450, 500 };
+
+	/**
+	 * @return the engine for the default measures: the AUC and precision, recall, NDCG and MAP at DEFAULT_CUTOFFS
+	 */
+	static public RankingMetrics getRankingMetrics() {
+		return new RankingMetrics(DEFAULT_CUTOFFS);
+	}
+
 	static public List<IMeasure> getIMeasures(IBooleanMatrix attributesMatrix) {
 		List<IMeasure> measures = new ArrayList<IMeasure>();
 
@@ -242,50 +262,69 @@ public class ItemsParallel {
 		IBooleanMatrix training_user_matrix = training.userMatrix();
 		IBooleanMatrix test_user_matrix = test.userMatrix();
 
-		// compile the complete measures list if no measures injected
-		if (measures == null) {
+		// without injected measures or per-user dumps, the default measures are computed in one pass per list
+		RankingMetrics metrics = null;
+		if (measures == null && (userMapping == null || dumpLocation == null))
+			metrics = getRankingMetrics();
+		else if (measures == null)
 			measures = getIMeasures();
-		}
 
-        if (userMapping != null && dumpLocation != null){
+        if (measures != null && userMapping != null && dumpLocation != null){
             measures = wrapMeasuresIntoDumpMeasures(userMapping, measures, dumpLocation);
         }
 
 		ExecutorService executor = Executors.newFixedThreadPool(Runtime
 				.getRuntime().availableProcessors());
 		// ExecutorService executor = Executors.newFixedThreadPool(1);
-		ArrayList<Future<ItemRecommendationEvaluationResults>> futures = new ArrayList<Future<ItemRecommendationEvaluationResults>>();
+		ArrayList<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		ArrayList<Integer> futureSizes = new ArrayList<Integer>();
+
+		// score blocks of users in one call when the recommender supports it and all users share the candidates
+		IBatchItemRecommender batchRecommender = null;
+		int[] candidate_array = null;
+		int batchSize = 1;
+		if (recommender instanceof IBatchItemRecommender && getCandidateItemPerUser == null) {
+			batchRecommender = (IBatchItemRecommender) recommender;
+			candidate_array = Extensions.toIntArray(candidate_items);
+			batchSize = Extensions.BATCH_SIZE;
+		}
 
-		for (Integer user_id : test_users) {
-			// Items viewed by the user in the test set that were also present
-			// in the training set.
+		// the correct items of each test user, or null if the user is skipped
+		int[] users = Extensions.toIntArray(test_users);
+		BitSet candidate_bits = getCandidateItemPerUser == null ? toBitSet(candidate_items) : null;
+		int[][] correct_items = correctItems(users, test_user_matrix, training_user_matrix,
+				candidate_bits, candidate_items, getCandidateItemPerUser, repeated_events);
 
-			if(getCandidateItemPerUser!=null)
-				candidate_items = getCandidateItemPerUser.get(user_id);
+		List<Integer> batchUsers = new ArrayList<Integer>(batchSize);
+		List<Collection<Integer>> batchCandidates = new ArrayList<Collection<Integer>>(batchSize);
+		List<int[]> batchCorrectItems = new ArrayList<int[]>(batchSize);
+		int numOfTasks = 0;
 
-			HashSet<Integer> correct_items = new HashSet<Integer>(
-					Utils.intersect(test_user_matrix.get(user_id),
-							candidate_items));
+		for (int i = 0; i < users.length; i++) {
+			int user_id = users[i];
 
-			// The number of items that will be used for this user.
-			HashSet<Integer> candidate_items_in_train = new HashSet<Integer>(
-					Utils.intersect(training_user_matrix.get(user_id),
-							candidate_items));
-
-			int num_eval_items = candidate_items.size()
-					- (repeated_events ? 0 : candidate_items_in_train.size());
+			if(getCandidateItemPerUser!=null)
+				candidate_items = getCandidateItemPerUser.get(user_id);
 
 			// Skip all users that have 0 or #relevant_items test items.
-			if (correct_items.size() == 0)
+			if (correct_items[i] == null)
 				continue;
-			if (num_eval_items - correct_items.size() == 0)
-				continue;
-
-			EvaluationTask task = new EvaluationTask(recommender,
-					candidate_items, repeated_events, training_user_matrix,
-					user_id, correct_items, measures);
 
-			futures.add(executor.submit(task));
+			batchUsers.add(user_id);
+			batchCandidates.add(candidate_items);
+			batchCorrectItems.add(correct_items[i]);
+			numOfTasks++;
+
+			if (batchUsers.size() == batchSize) {
+				futures.add(executor.submit(new EvaluationTask(recommender,
+						batchRecommender, candidate_array, batchCandidates,
+						repeated_events, training_user_matrix, batchUsers,
+						batchCorrectItems, measures, metrics)));
+				futureSizes.add(batchUsers.size());
+				batchUsers = new ArrayList<Integer>(batchSize);
+				batchCandidates = new ArrayList<Collection<Integer>>(batchSize);
+				batchCorrectItems = new ArrayList<int[]>(batchSize);
+			}
 
 			if(num_users > max_test_users) // added to avoid a lot of users in evaluation
 				break;
@@ -293,42 +332,205 @@ public class ItemsParallel {
 			num_users++;
 		}
 
-		executor.shutdown();
-		int completedFutures = 0;
-		for (Future<ItemRecommendationEvaluationResults> future : futures) {
-			//try {
-				ItemRecommendationEvaluationResults futureResult = future.get();
-
-				for (IMeasure m : measures) {
-					result.put(m.getName(), result.get(m.getName())
-							+ futureResult.get(m.getName()));
-				}
+		if (!batchUsers.isEmpty()) {
+			futures.add(executor.submit(new EvaluationTask(recommender,
+					batchRecommender, candidate_array, batchCandidates,
+					repeated_events, training_user_matrix, batchUsers,
+					batchCorrectItems, measures, metrics)));
+			futureSizes.add(batchUsers.size());
+		}
 
-				completedFutures++;
+		executor.shutdown();
 
-				// or: printStatus(completedFutures);
-				printIntermediateResult(completedFutures, futures.size(),
-						result, measures);
+		// each task returns the sums of its users' values, in the order of measures or metrics
+		double[] sums = new double[metrics != null ? metrics.size() : measures.size()];
+		int completedTasks = 0;
+		for (int f = 0; f < futures.size(); f++) {
+			double[] futureSums = futures.get(f).get();
+			for (int i = 0; i < sums.length; i++)
+				sums[i] += futureSums[i];
+
+			int previousTasks = completedTasks;
+			completedTasks += futureSizes.get(f);
+			if (completedTasks / 10 != previousTasks / 10)
+				printProgress(completedTasks, numOfTasks);
 		}
 
 		if (num_users > 1000)
 			System.out.println();
 
-		for (IMeasure measure : measures) {
-			String mId = measure.getName();
-			result.put(mId, measure.normalize(result.get(mId), num_users));
+		if (metrics != null) {
+			for (int i = 0; i < sums.length; i++)
+				result.put(metrics.getName(i), sums[i] / num_users);
+		} else {
+			for (int i = 0; i < sums.length; i++) {
+				IMeasure measure = measures.get(i);
+				result.put(measure.getName(), measure.normalize(sums[i], num_users));
+			}
 		}
 
 		result.put("num_users", (double) num_users);
 		result.put("num_items", (double) candidate_items.size());
 
-        if (userMapping != null && dumpLocation != null){
+        if (measures != null && userMapping != null && dumpLocation != null){
             dumpMeasures(measures);
         }
 
 		return result;
 	}
 
+	/**
+	 * Finds the test users that evaluate() ranks items for: the users with at least one correct item
+	 * and at least one other item to rank. The users are checked in parallel.
+	 *
+	 * @param test
+	 *            test cases
+	 * @param training
+	 *            training data
+	 * @param test_users
+	 *            the candidate test users
+	 * @param candidate_items
+	 *            the items to rank for every user
+	 * @param repeated_events
+	 *            whether items accessed by a user before are ranked as well
+	 * @return the eligible test users, in the order of test_users
+	 */
+	public static List<Integer> eligibleTestUsers(IPosOnlyFeedback test,
+			IPosOnlyFeedback training, Collection<Integer> test_users,
+			Collection<Integer> candidate_items, boolean repeated_events) {
+		int[] users = Extensions.toIntArray(test_users);
+		int[][] correct_items = correctItems(users, test.userMatrix(), training.userMatrix(),
+				toBitSet(candidate_items), candidate_items, null, repeated_events);
+
+		List<Integer> eligible = new ArrayList<Integer>();
+		for (int i = 0; i < users.length; i++)
+			if (correct_items[i] != null)
+				eligible.add(users[i]);
+		return eligible;
+	}
+
+	/**
+	 * Computes the correct items of each test user, in parallel: the items of the user's test row that
+	 * are candidates. A user is skipped if there is no correct item, or if every item to rank is correct.
+	 *
+	 * @param candidate_bits
+	 *            the candidate items of all users, or null if candidates_per_user is given
+	 * @param candidate_items
+	 *            the candidate items of all users, or null if candidates_per_user is given
+	 * @return the correct items of users[i] at [i], or null if the user is skipped
+	 */
+	private static int[][] correctItems(int[] users, IBooleanMatrix test_user_matrix,
+			IBooleanMatrix training_user_matrix, BitSet candidate_bits, Collection<Integer> candidate_items,
+			Map<Integer, List<Integer>> candidates_per_user, boolean repeated_events) {
+		int[][] correct_items = new int[users.length][];
+		ForkJoinPool.commonPool().invoke(new CorrectItemsTask(users, test_user_matrix, training_user_matrix,
+				candidate_bits, candidate_items, candidates_per_user, repeated_events, correct_items, 0, users.length));
+		return correct_items;
+	}
+
+	@SuppressWarnings("serial")
+	private static class CorrectItemsTask extends RecursiveAction {
+
+		private static final int THRESHOLD = 256;
+
+		private final int[] users;
+		private final IBooleanMatrix test_user_matrix;
+		private final IBooleanMatrix training_user_matrix;
+		private final BitSet candidate_bits;
+		private final Collection<Integer> candidate_items;
+		private final Map<Integer, List<Integer>> candidates_per_user;
+		private final boolean repeated_events;
+		private final int[][] correct_items;
+		private final int start;
+		private final int end;
+
+		CorrectItemsTask(int[] users, IBooleanMatrix test_user_matrix, IBooleanMatrix training_user_matrix,
+				BitSet candidate_bits, Collection<Integer> candidate_items,
+				Map<Integer, List<Integer>> candidates_per_user, boolean repeated_events,
+				int[][] correct_items, int start, int end) {
+			this.users = users;
+			this.test_user_matrix = test_user_matrix;
+			this.training_user_matrix = training_user_matrix;
+			this.candidate_bits = candidate_bits;
+			this.candidate_items = candidate_items;
+			this.candidates_per_user = candidates_per_user;
+			this.repeated_events = repeated_events;
+			this.correct_items = correct_items;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > THRESHOLD) {
+				int split = (start + end) >>> 1;
+				invokeAll(new CorrectItemsTask(users, test_user_matrix, training_user_matrix, candidate_bits,
+						candidate_items, candidates_per_user, repeated_events, correct_items, start, split),
+						new CorrectItemsTask(users, test_user_matrix, training_user_matrix, candidate_bits,
+						candidate_items, candidates_per_user, repeated_events, correct_items, split, end));
+				return;
+			}
+
+			for (int i = start; i < end; i++) {
+				BitSet candidates = candidate_bits;
+				int num_candidates = candidate_items == null ? 0 : candidate_items.size();
+				if (candidates_per_user != null) {
+					List<Integer> user_candidates = candidates_per_user.get(users[i]);
+					if (user_candidates == null)
+						continue;
+					candidates = toBitSet(user_candidates);
+					num_candidates = user_candidates.size();
+				}
+
+				IntCollection test_row = row(test_user_matrix, users[i]);
+				if (test_row == null)
+					continue;
+				int[] correct = new int[test_row.size()];
+				int num_correct = 0;
+				IntIterator it = test_row.iterator();
+				while (it.hasNext()) {
+					int item_id = it.nextInt();
+					if (candidates.get(item_id))
+						correct[num_correct++] = item_id;
+				}
+
+				// The number of items that will be used for this user.
+				int num_eval_items = num_candidates;
+				IntCollection training_row = row(training_user_matrix, users[i]);
+				if (!repeated_events && training_row != null) {
+					it = training_row.iterator();
+					while (it.hasNext())
+						if (candidates.get(it.nextInt()))
+							num_eval_items--;
+				}
+
+				if (num_correct == 0 || num_eval_items - num_correct == 0)
+					continue;
+				correct_items[i] = Arrays.copyOf(correct, num_correct);
+			}
+		}
+	}
+
+	/**
+	 * @return the row x of a matrix, or null if the matrix has fewer rows; unlike get(), this does not grow the matrix
+	 */
+	private static IntCollection row(IBooleanMatrix matrix, int x) {
+		return x < matrix.numberOfRows() ? matrix.get(x) : null;
+	}
+
+	private static BitSet toBitSet(Collection<Integer> items) {
+		BitSet bits = new BitSet();
+		if (items instanceof IntCollection) {
+			IntIterator it = ((IntCollection) items).iterator();
+			while (it.hasNext())
+				bits.set(it.nextInt());
+		} else {
+			for (int item_id : items)
+				bits.set(item_id);
+		}
+		return bits;
+	}
+
     private static List<IMeasure> wrapMeasuresIntoDumpMeasures(
             IEntityMapping userMapping,List<IMeasure> measures, File dumpLocation){
         List<IMeasure> list = new ArrayList<IMeasure>();
@@ -344,97 +546,131 @@ public class ItemsParallel {
         }
     }
 
-	private static void printIntermediateResult(int completedFutures,
-			int numOfFutures, ItemRecommendationEvaluationResults result,
-			List<IMeasure> measures) {
-		if (completedFutures % 10 == 0) {
-			StringBuilder sb = new StringBuilder();
-			if (completedFutures % Integer.MAX_VALUE == 0) {
-				DecimalFormat f = new DecimalFormat("##0.0000");
-				sb.append("| ");
-				for (IMeasure measure : measures) {
-					if (measure.intermediateCalculationAllowed()) {
-						String mId = measure.getName();
-						double v = measure.normalize(result.get(mId),
-								(double) completedFutures);
-						sb.append(mId);
-						sb.append(": ");
-						sb.append(f.format(v));
-						sb.append(" | ");
-					}
-				}
-				sb.append("\n");
-			}
-			sb.append(completedFutures);
-			sb.append(" of ");
-			sb.append(numOfFutures);
-			sb.append(" calculation tasks completed.");
-			System.out.println(sb.toString());
-		}
+	private static void printProgress(int completedTasks, int numOfTasks) {
+		System.out.println(completedTasks + " of " + numOfTasks + " calculation tasks completed.");
 	}
 
-	public static class EvaluationTask implements
-			Callable<ItemRecommendationEvaluationResults> {
+	/**
+	 * Ranks the candidate items for a block of users and computes the measures for each of them.
+	 * If a batch recommender is given, all users of the block are scored against candidate_array
+	 * in one call; otherwise each user is scored with predict(). The values of the users are summed
+	 * into one array, in the order of metrics if it is given and else in the order of measures.
+	 * The correct and ignored items of each user are marked in two bitsets that are reused for the block.
+	 */
+	public static class EvaluationTask implements Callable<double[]> {
 
 		private final IRecommender recommender;
-		private final Collection<Integer> candidate_items;
+		private final IBatchItemRecommender batchRecommender;
+		private final int[] candidate_array;
+		private final List<Collection<Integer>> candidate_items;
 		private final Boolean repeated_events;
 
 		private final IBooleanMatrix training_user_matrix;
-		private final Integer user_id;
+		private final List<Integer> user_ids;
 
-		private final HashSet<Integer> correct_items;
+		private final List<int[]> correct_items;
 
 		private final List<IMeasure> measures;
+		private final RankingMetrics metrics;
 
 		private EvaluationTask(IRecommender recommender,
-				Collection<Integer> candidate_items, Boolean repeated_events,
-				IBooleanMatrix training_user_matrix, Integer user_id,
-				HashSet<Integer> correct_items, List<IMeasure> measures) {
+				IBatchItemRecommender batchRecommender, int[] candidate_array,
+				List<Collection<Integer>> candidate_items, Boolean repeated_events,
+				IBooleanMatrix training_user_matrix, List<Integer> user_ids,
+				List<int[]> correct_items, List<IMeasure> measures,
+				RankingMetrics metrics) {
 			this.recommender = recommender;
+			this.batchRecommender = batchRecommender;
+			this.candidate_array = candidate_array;
 			this.candidate_items = candidate_items;
 			this.repeated_events = repeated_events;
 			this.training_user_matrix = training_user_matrix;
-			this.user_id = user_id;
+			this.user_ids = user_ids;
 			this.correct_items = correct_items;
 			this.measures = measures;
+			this.metrics = metrics;
 		}
 
-		private final ItemRecommendationEvaluationResults result = new ItemRecommendationEvaluationResults();
-
 		@Override
-		public ItemRecommendationEvaluationResults call() throws Exception {
+		public double[] call() throws Exception {
+
+			int num_users = user_ids.size();
+			double[] sums = metrics != null ? metrics.newAccumulator() : new double[measures.size()];
+			BitSet correct_bits = new BitSet();
+			BitSet ignore_bits = new BitSet();
+
+			double[] block_scores = null;
+			if (batchRecommender != null) {
+				int[] users = new int[num_users];
+				for (int u = 0; u < num_users; u++)
+					users[u] = user_ids.get(u);
+				block_scores = new double[num_users * candidate_array.length];
+				batchRecommender.predict(users, num_users, candidate_array, candidate_array.length, block_scores);
+			}
 
-			List<Integer> randomItems = Extensions.predictItems(new Random(),
-					user_id, candidate_items);
-			List<Integer> prediction_list = Extensions.predictItems(
-					recommender, user_id, randomItems);
+			for (int u = 0; u < num_users; u++) {
+				int user_id = user_ids.get(u);
+				Collection<Integer> candidates = candidate_items.get(u);
+
+				// AUC needs the complete ranking; ties are broken by item ID instead of a random pre-shuffle
+				int[] ranked_items;
+				int num_ranked;
+				if (block_scores != null) {
+					int n = candidate_array.length;
+					ranked_items = candidate_array.clone();
+					double[] scores = Arrays.copyOfRange(block_scores, u * n, (u + 1) * n);
+					num_ranked = Extensions.selectTopK(ranked_items, scores, n, n);
+				} else {
+					ranked_items = Extensions.predictTopK(
+							recommender, user_id, candidates, candidates.size()).toIntArray();
+					num_ranked = ranked_items.length;
+				}
 
-			if (prediction_list.size() != candidate_items.size())
-				throw new RuntimeException("Not all items have been ranked.");
+				if (num_ranked != candidates.size())
+					throw new RuntimeException("Not all items have been ranked.");
 
-			Collection<Integer> ignore_items = repeated_events ? new ArrayList<Integer>()
-					: training_user_matrix.get(user_id);
+				int[] correct = correct_items.get(u);
+				IntCollection ignore_items = repeated_events ? null : row(training_user_matrix, user_id);
 
-			if (user_id == 1512) {
-				System.out.println("Consumed items by user "+ user_id+" :" +training_user_matrix.get(user_id));
-				System.out.println("correct items by user "+ user_id+" :" +correct_items);
-				System.out.println("recommended items to user "+ user_id+" :" +prediction_list);
-			}
+				if (user_id == 1512) {
+					System.out.println("Consumed items by user "+ user_id+" :" +row(training_user_matrix, user_id));
+					System.out.println("correct items by user "+ user_id+" :" +Arrays.toString(correct));
+					System.out.println("recommended items to user "+ user_id+" :" +IntArrayList.wrap(ranked_items, num_ranked));
+				}
 
-			for (IMeasure m : measures) {
+				if (metrics != null) {
+					for (int item_id : correct)
+						correct_bits.set(item_id);
+					if (ignore_items != null) {
+						IntIterator it = ignore_items.iterator();
+						while (it.hasNext())
+							ignore_bits.set(it.nextInt());
+					}
 
-				double resultValue = m.compute(user_id, prediction_list,
-						correct_items, ignore_items);
+					metrics.accumulate(ranked_items, num_ranked, correct_bits, ignore_bits, sums);
 
-				/*if(m.getName().equals("recall@20")) {
-					System.out.println("# correct items:"+correct_items.size()+", user: "+ user_id +" , recall@20: "+ resultValue);
-				}*/
+					correct_bits.clear();
+					ignore_bits.clear();
+					continue;
+				}
+
+				List<Integer> prediction_list = IntArrayList.wrap(ranked_items, num_ranked);
+				IntOpenHashSet correct_set = new IntOpenHashSet(correct);
+				Collection<Integer> ignore_list = ignore_items == null ? new ArrayList<Integer>() : ignore_items;
+				for (int i = 0; i < sums.length; i++) {
+
+					double resultValue = measures.get(i).compute(user_id, prediction_list,
+							correct_set, ignore_list);
 
-				result.put(m.getName(), resultValue);
+					/*if(m.getName().equals("recall@20")) {
+						System.out.println("# correct items:"+correct_items.size()+", user: "+ user_id +" , recall@20: "+ resultValue);
+					}*/
+
+					sums[i] += resultValue;
+				}
 			}
 
-			return result;
+			return sums;
 		}
 
 	}
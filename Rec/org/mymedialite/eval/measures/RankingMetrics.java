@@ -0,0 +1,187 @@
+package org.mymedialite.eval.measures;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Computes the AUC and precision, recall, NDCG and MAP at several cutoffs in one pass over a ranked list.
+ *
+ * The measures of AucAdapter, PrecAdapter, RecallAdapter, NdcgNAdapter and MapNAdapter each walk the
+ * list again and box every item to test it against the correct and ignore sets. Here the list is walked
+ * once against bitsets of the correct and ignored items: the hits, DCG and precision sum of each
+ * prefix are read off at every cutoff. The values are added to a double[] accumulator, one per task,
+ * which is reduced at the end of the evaluation.
+ * The values and names are the same as those of the adapters.
+ * @author fkhawar
+ *
+ */
+public class RankingMetrics {
+
+  /** the position of the AUC in an accumulator */
+  public static final int AUC = 0;
+
+  /** the offsets of the measures of a cutoff from cutoffOffset() */
+  public static final int PREC_AT = 0, RECALL_AT = 1, NDCG_AT = 2, MAP_AT = 3;
+
+  private static final int MEASURES_PER_CUTOFF = 4;
+
+  private final int[] cutoffs;
+  private final String[] names;
+
+  /** log(2) / log(rank + 1) at [rank] up to the largest cutoff */
+  private final double[] discount;
+
+  /** the ideal DCG of n hits at [n] up to the largest cutoff */
+  private final double[] idcg;
+
+  /**
+   * Create the engine for a set of cutoffs
+   * @param cutoffs the cutoff positions in the list, each at least 1
+   */
+  public RankingMetrics(int... cutoffs) {
+    int[] sorted = cutoffs.clone();
+    Arrays.sort(sorted);
+    int n = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (sorted[i] < 1)
+        throw new IllegalArgumentException("Top N value must be greater 0. Passed value: " + sorted[i]);
+      if (n == 0 || sorted[n - 1] != sorted[i])
+        sorted[n++] = sorted[i];
+    }
+    this.cutoffs = Arrays.copyOf(sorted, n);
+
+    this.names = new String[1 + MEASURES_PER_CUTOFF * n];
+    names[AUC] = "AUC";
+    for (int c = 0; c < n; c++) {
+      int offset = cutoffOffset(c);
+      names[offset + PREC_AT] = "prec@" + this.cutoffs[c];
+      names[offset + RECALL_AT] = "recall@" + this.cutoffs[c];
+      names[offset + NDCG_AT] = "NDCG@" + this.cutoffs[c];
+      names[offset + MAP_AT] = "MAP" + this.cutoffs[c];
+    }
+
+    int max = n == 0 ? 0 : this.cutoffs[n - 1];
+    this.discount = new double[max + 1];
+    this.idcg = new double[max + 1];
+    for (int rank = 1; rank <= max; rank++) {
+      discount[rank] = Math.log(2) / Math.log(rank + 1);
+      idcg[rank] = NDCG.computeIDCG(rank);
+    }
+  }
+
+  /** @return the cutoffs, ascending and without duplicates */
+  public int[] getCutoffs() {
+    return cutoffs.clone();
+  }
+
+  /** @return the position of the first measure of the c-th cutoff in an accumulator */
+  public static int cutoffOffset(int c) {
+    return 1 + MEASURES_PER_CUTOFF * c;
+  }
+
+  /** @return the number of values in an accumulator */
+  public int size() {
+    return names.length;
+  }
+
+  /** @return the name of the value at a position of an accumulator */
+  public String getName(int position) {
+    return names[position];
+  }
+
+  /** @return an empty accumulator */
+  public double[] newAccumulator() {
+    return new double[names.length];
+  }
+
+  /**
+   * Add the measures of one ranked list to an accumulator
+   * @param ranked_items the ranked item IDs, the highest-ranking item first
+   * @param length the number of items in ranked_items
+   * @param correct_items the positive/correct item IDs
+   * @param ignore_items the item IDs which should be ignored for the evaluation, may be null
+   * @param sums the accumulator
+   */
+  public void accumulate(int[] ranked_items, int length, IntCollection correct_items, IntCollection ignore_items, double[] sums) {
+    accumulate(ranked_items, length, toBitSet(correct_items), ignore_items == null ? null : toBitSet(ignore_items), sums);
+  }
+
+  /**
+   * Add the measures of one ranked list to an accumulator
+   * @param ranked_items the ranked item IDs, the highest-ranking item first
+   * @param length the number of items in ranked_items
+   * @param correct_items the positive/correct item IDs
+   * @param ignore_items the item IDs which should be ignored for the evaluation, may be null
+   * @param sums the accumulator
+   */
+  public void accumulate(int[] ranked_items, int length, BitSet correct_items, BitSet ignore_items, double[] sums) {
+    int num_correct = correct_items.cardinality();
+    int num_correct_items = num_correct;
+    if (ignore_items != null)
+      for (int item_id = correct_items.nextSetBit(0); item_id >= 0; item_id = correct_items.nextSetBit(item_id + 1))
+        if (ignore_items.get(item_id))
+          num_correct_items--;
+
+    int max = discount.length - 1;
+    int c = 0;
+    int rank = 0;
+    int hit_count = 0;
+    long num_correct_pairs = 0;
+    double dcg = 0;
+    double avg_prec_sum = 0;
+
+    for (int i = 0; i < length; i++) {
+      int item_id = ranked_items[i];
+      if (ignore_items != null && ignore_items.get(item_id))
+        continue;
+      rank++;
+
+      if (correct_items.get(item_id)) {
+        hit_count++;
+        if (rank <= max) {
+          dcg += discount[rank];
+          avg_prec_sum += (double) hit_count / rank;
+        }
+      } else {
+        num_correct_pairs += hit_count;
+      }
+
+      while (c < cutoffs.length && cutoffs[c] == rank)
+        addCutoff(c++, hit_count, dcg, avg_prec_sum, num_correct, sums);
+    }
+
+    // lists shorter than a cutoff count all their hits, as PrecisionAndRecall.hitsAt() does
+    while (c < cutoffs.length)
+      addCutoff(c++, hit_count, dcg, avg_prec_sum, num_correct, sums);
+
+    long num_eval_pairs = (long) (rank - num_correct_items) * num_correct_items;
+    if (num_eval_pairs < 0)
+      System.out.println("correct_items cannot be larger than ranked_items");
+    else if (num_eval_pairs == 0)
+      sums[AUC] += 0.5;
+    else
+      sums[AUC] += (double) num_correct_pairs / num_eval_pairs;
+  }
+
+  private void addCutoff(int c, int hit_count, double dcg, double avg_prec_sum, int num_correct, double[] sums) {
+    int offset = cutoffOffset(c);
+    sums[offset + PREC_AT] += (double) hit_count / cutoffs[c];
+    sums[offset + RECALL_AT] += (double) hit_count / num_correct;
+    if (hit_count != 0) {
+      sums[offset + NDCG_AT] += dcg / idcg[hit_count];
+      sums[offset + MAP_AT] += avg_prec_sum / hit_count;
+    }
+  }
+
+  private static BitSet toBitSet(IntCollection items) {
+    BitSet bits = new BitSet();
+    IntIterator it = items.iterator();
+    while (it.hasNext())
+      bits.set(it.nextInt());
+    return bits;
+  }
+
+}
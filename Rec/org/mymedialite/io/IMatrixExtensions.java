@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
 
+import org.mymedialite.datatype.DenseDoubleMatrix;
 import org.mymedialite.datatype.IMatrix;
 import org.mymedialite.datatype.Matrix;
 import org.mymedialite.datatype.Pair;
@@ -47,7 +48,26 @@ public class IMatrixExtensions {
       }
     }
   }
-  
+
+  /**
+   * Write a dense matrix of primitive doubles to a PrintWriter object.
+   * The output format is the same as for writeMatrix(PrintWriter, IMatrix), but the cells are read without boxing.
+   * @param writer a PrintWriter
+   * @param matrix the matrix to write out
+   */
+  public static void writeMatrix(PrintWriter writer, DenseDoubleMatrix matrix) {
+    writer.println(matrix.dim1 + " " + matrix.dim2);
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < matrix.dim1; i++) {
+      int offset = i * matrix.dim2;
+      for (int j = 0; j < matrix.dim2; j++) {
+        line.setLength(0);
+        line.append(i).append(' ').append(j).append(' ').append(matrix.data[offset + j]);
+        writer.println(line);
+      }
+    }
+  }
+
   /**
    * Write a sparse matrix of doubles to a PrintWriter object.
    * @param writer a PrintWriter
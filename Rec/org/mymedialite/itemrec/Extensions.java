@@ -18,7 +18,10 @@
 
 package org.mymedialite.itemrec;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntSet;
 
 import java.io.BufferedReader;
@@ -52,6 +55,9 @@ public class Extensions {
   // Prevent instantiation.
   private Extensions() {}
 
+  /** Number of users scored together by writePredictions for an IBatchItemRecommender */
+  public static final int BATCH_SIZE = 64;
+
   /**
    * Write item predictions (scores) to a file.
    * @param recommender the IRecommender to use for making the predictions
@@ -101,6 +107,11 @@ public class Extensions {
     
     // TODO check why the supplied users are ignored. Should there be a null check?
     users = new ArrayList<Integer>(train.allUsers());
+
+    if (recommender instanceof IBatchItemRecommender) {
+      writeBatchPredictions((IBatchItemRecommender) recommender, train, candidate_items, num_predictions, writer, users, user_mapping, item_mapping);
+      return;
+    }
     
     for (int user_id : users) {
       IntCollection ignore_items = train.userMatrix().get(user_id);
@@ -134,20 +145,130 @@ public class Extensions {
     if (item_mapping == null)
       item_mapping = new IdentityMapping();
 
-    List<WeightedItem> score_list = new ArrayList<WeightedItem>();
+    int n = candidate_items.size();
+    int[] items = new int[n];
+    double[] scores = new double[n];
+    scoreItems(recommender, user_id, candidate_items, items, scores);
+
+    int count = selectTopK(items, scores, n, numberToSelect(n, num_predictions, ignore_items));
+    writeRanking(user_id, items, scores, count, ignore_items, num_predictions, writer, user_mapping, item_mapping);
+  }
+
+  /**
+   * Write item predictions for many users, scoring blocks of BATCH_SIZE users in one call.
+   */
+  private static void writeBatchPredictions(
+      IBatchItemRecommender recommender,
+      IPosOnlyFeedback train,
+      Collection<Integer> candidate_items,
+      int num_predictions,
+      PrintWriter writer,
+      List<Integer> users,
+      IEntityMapping user_mapping,
+      IEntityMapping item_mapping) {
+
+    if (user_mapping == null)
+      user_mapping = new IdentityMapping();
+    if (item_mapping == null)
+      item_mapping = new IdentityMapping();
+
+    int n = candidate_items.size();
+    int[] candidates = toIntArray(candidate_items);
+    int[] block = new int[BATCH_SIZE];
+    double[] block_scores = new double[BATCH_SIZE * n];
+    int[] items = new int[n];
+    double[] scores = new double[n];
+
+    for (int start = 0; start < users.size(); start += BATCH_SIZE) {
+      int num_users = Math.min(BATCH_SIZE, users.size() - start);
+      for (int u = 0; u < num_users; u++)
+        block[u] = users.get(start + u);
+      recommender.predict(block, num_users, candidates, n, block_scores);
+
+      for (int u = 0; u < num_users; u++) {
+        IntCollection ignore_items = train.userMatrix().get(block[u]);
+        System.arraycopy(candidates, 0, items, 0, n);
+        System.arraycopy(block_scores, u * n, scores, 0, n);
+        int count = selectTopK(items, scores, n, numberToSelect(n, num_predictions, ignore_items));
+        writeRanking(block[u], items, scores, count, ignore_items, num_predictions, writer, user_mapping, item_mapping);
+      }
+    }
+  }
+
+  /**
+   * Copy a collection of item IDs into an int array, in iteration order.
+   * @param candidate_items the item IDs
+   * @return the item IDs as an array
+   */
+  public static int[] toIntArray(Collection<Integer> candidate_items) {
+    if (candidate_items instanceof IntCollection)
+      return ((IntCollection) candidate_items).toIntArray();
+    int[] items = new int[candidate_items.size()];
+    int i = 0;
     for (int item_id : candidate_items)
-      score_list.add( new WeightedItem(item_id, recommender.predict(user_id, item_id)));
-  
-    Collections.sort(score_list, Collections.reverseOrder());
+      items[i++] = item_id;
+    return items;
+  }
+
+  /**
+   * The number of items selectTopK() has to rank so that num_predictions items are left after
+   * removing the ignored ones, which may all rank first.
+   * @param n the number of candidate items
+   * @param num_predictions the number of items to return, -1 if there should be no limit
+   * @param ignore_items the items that will be left out of the ranking
+   * @return the number of items to select
+   */
+  public static int numberToSelect(int n, int num_predictions, Collection<Integer> ignore_items) {
+    if (num_predictions == -1)
+      return n;
+    return (int) Math.min((long) n, (long) num_predictions + ignore_items.size());
+  }
+
+  private static void writeRanking(
+      int user_id,
+      int[] items,
+      double[] scores,
+      int count,
+      Collection<Integer> ignore_items,
+      int num_predictions,
+      PrintWriter writer,
+      IEntityMapping user_mapping,
+      IEntityMapping item_mapping) {
+
+    writeRanking(user_mapping.toOriginalID(user_id), items, scores, count, ignore_items, num_predictions, writer, item_mapping);
+  }
+
+  /**
+   * Write a ranking from selectTopK() as one line: the label, a tab, and [item:score,...].
+   * Ignored items and items with a score of 0 are skipped.
+   * @param label the first field of the line, e.g. the original user ID
+   * @param items the ranked item IDs
+   * @param scores the scores of the ranked items
+   * @param count the number of ranked items
+   * @param ignore_items items to leave out of the ranking
+   * @param num_predictions the number of items to write, -1 if there should be no limit
+   * @param writer the PrintWriter to write to
+   * @param item_mapping an IEntityMapping object for the item IDs
+   */
+  public static void writeRanking(
+      String label,
+      int[] items,
+      double[] scores,
+      int count,
+      Collection<Integer> ignore_items,
+      int num_predictions,
+      PrintWriter writer,
+      IEntityMapping item_mapping) {
+
     int prediction_count = 0;
 
-    writer.print(user_mapping.toOriginalID(user_id) + "\t[");
-    for (WeightedItem wi : score_list) {
-      if (!ignore_items.contains(wi.item_id) && wi.weight > Double.MIN_VALUE) {
+    writer.print(label + "\t[");
+    for (int i = 0; i < count; i++) {
+      if (!ignore_items.contains(items[i]) && scores[i] > Double.MIN_VALUE) {
         if (prediction_count == 0)
-          writer.print(item_mapping.toOriginalID(wi.item_id) + ":" + wi.weight.toString());
+          writer.print(item_mapping.toOriginalID(items[i]) + ":" + Double.toString(scores[i]));
         else
-          writer.print("," + item_mapping.toOriginalID(wi.item_id) + ":" + wi.weight.toString());
+          writer.print("," + item_mapping.toOriginalID(items[i]) + ":" + Double.toString(scores[i]));
 
         prediction_count++;
       }
@@ -241,17 +362,116 @@ public class Extensions {
    * @return an ordered list of items, the most likely item first
    */
   public static List<Integer> predictItems(IRecommender recommender, int user_id, Collection<Integer> candidate_items) {
-    ArrayList<WeightedItem> result = new ArrayList<WeightedItem>(candidate_items.size());
-    for (int item_id : candidate_items) {
-      double predict = recommender.predict(user_id, item_id);
-      result.add(new WeightedItem(item_id, predict));
+    return predictTopK(recommender, user_id, candidate_items, candidate_items.size());
+  }
+
+  /**
+   * Predict the k best items for a given user.
+   * The scores are kept in a primitive array and the k best items are selected with a bounded heap,
+   * so a user costs O(n log k) instead of a full sort of n boxed items.
+   * Ties are broken by the smaller item ID, so the ranking does not depend on the order of candidate_items.
+   * @param recommender the recommender to use
+   * @param user_id the numerical ID of the user
+   * @param candidate_items a collection of numerical IDs of candidate items
+   * @param k the number of items to return; if it is at least the number of candidates, all of them are ranked
+   * @return an ordered list of at most k items, the most likely item first
+   */
+  public static IntList predictTopK(IRecommender recommender, int user_id, Collection<Integer> candidate_items, int k) {
+    int n = candidate_items.size();
+    int[] items = new int[n];
+    double[] scores = new double[n];
+    scoreItems(recommender, user_id, candidate_items, items, scores);
+    int count = selectTopK(items, scores, n, k);
+    return IntArrayList.wrap(items, count);
+  }
+
+  /**
+   * Score the candidate items for a given user.
+   * @param recommender the recommender to use
+   * @param user_id the numerical ID of the user
+   * @param candidate_items a collection of numerical IDs of candidate items
+   * @param items receives the item IDs, in iteration order of candidate_items
+   * @param scores receives the score of each item in items
+   */
+  static void scoreItems(IRecommender recommender, int user_id, Collection<Integer> candidate_items, int[] items, double[] scores) {
+    int i = 0;
+    if (candidate_items instanceof IntCollection) {
+      IntIterator it = ((IntCollection) candidate_items).iterator();
+      while (it.hasNext()) {
+        int item_id = it.nextInt();
+        items[i] = item_id;
+        scores[i++] = recommender.predict(user_id, item_id);
+      }
+    } else {
+      for (int item_id : candidate_items) {
+        items[i] = item_id;
+        scores[i++] = recommender.predict(user_id, item_id);
+      }
     }
-    Collections.sort(result, Collections.reverseOrder());
-    
-    List<Integer> return_array = new ArrayList<Integer>(result.size());
-    for (int i = 0; i < result.size(); i++)  return_array.add(i, result.get(i).item_id);
-    
-    return return_array;
+  }
+
+  /**
+   * Select the k best scored items in place.
+   * After the call the first min(k, n) entries of items and scores hold the best items, the best first;
+   * the order of the remaining entries is undefined.
+   * An item ranks before another one if it has a higher score, or the same score and a smaller ID.
+   * @param items the item IDs
+   * @param scores the score of each item in items
+   * @param n the number of valid entries in items and scores
+   * @param k the number of items to select
+   * @return the number of selected items, i.e. min(k, n)
+   */
+  public static int selectTopK(int[] items, double[] scores, int n, int k) {
+    int m = Math.max(0, Math.min(k, n));
+    if (m == 0)
+      return 0;
+
+    // min-heap on the first m entries: the worst selected item is at the root
+    for (int i = m / 2 - 1; i >= 0; i--)
+      siftDown(items, scores, i, m);
+    for (int i = m; i < n; i++) {
+      if (ranksBefore(items[i], scores[i], items[0], scores[0])) {
+        swap(items, scores, 0, i);
+        siftDown(items, scores, 0, m);
+      }
+    }
+
+    // heap sort: moving the worst item to the back leaves the best one in front
+    for (int end = m - 1; end > 0; end--) {
+      swap(items, scores, 0, end);
+      siftDown(items, scores, 0, end);
+    }
+    return m;
+  }
+
+  private static boolean ranksBefore(int item1, double score1, int item2, double score2) {
+    int c = Double.compare(score1, score2);
+    return c > 0 || (c == 0 && item1 < item2);
+  }
+
+  private static void siftDown(int[] items, double[] scores, int i, int size) {
+    while (true) {
+      int worst = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      if (left < size && ranksBefore(items[worst], scores[worst], items[left], scores[left]))
+        worst = left;
+      if (right < size && ranksBefore(items[worst], scores[worst], items[right], scores[right]))
+        worst = right;
+      if (worst == i)
+        return;
+      swap(items, scores, i, worst);
+      i = worst;
+    }
+  }
+
+  private static void swap(int[] items, double[] scores, int i, int j) {
+    int item = items[i];
+    items[i] = items[j];
+    items[j] = item;
+    double score = scores[i];
+    scores[i] = scores[j];
+    scores[j] = score;
   }
   
   public static List<WeightedItem> predictItems1(IRecommender recommender, int user_id, Collection<Integer> candidate_items) {
@@ -0,0 +1,27 @@
+package org.mymedialite.itemrec;
+
+import org.mymedialite.IRecommender;
+
+/**
+ * Interface for item recommenders that can score a block of users against a set of items in one call.
+ *
+ * Evaluation and prediction output use this instead of calling predict() once per (user, item) pair,
+ * which lets the recommender run a blocked kernel over its factor matrices.
+ * @author fkhawar
+ *
+ */
+public interface IBatchItemRecommender extends IRecommender {
+
+  /**
+   * Score every user in users against every item in items.
+   * The score of users[u] for items[i] is written to scores[u * num_items + i], and is the same
+   * value predict(users[u], items[i]) would return.
+   * @param users the user IDs
+   * @param num_users the number of valid entries in users
+   * @param items the item IDs
+   * @param num_items the number of valid entries in items
+   * @param scores receives the scores, of length at least num_users * num_items
+   */
+  void predict(int[] users, int num_users, int[] items, int num_items, double[] scores);
+
+}
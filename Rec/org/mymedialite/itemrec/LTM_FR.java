@@ -7,17 +7,27 @@ import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.latlab.util.Utils;
 import org.latlab.util.Variable;
@@ -25,9 +35,8 @@ import org.mymedialite.correlation.CorrelationMatrix;
 import org.mymedialite.data.IEntityMapping;
 import org.mymedialite.data.IPosOnlyFeedback;
 import org.mymedialite.data.PosOnlyFeedback;
+import org.mymedialite.datatype.DenseDoubleMatrix;
 import org.mymedialite.datatype.EntityMappingVariable;
-import org.mymedialite.datatype.Matrix;
-import org.mymedialite.datatype.MatrixExtensions;
 import org.mymedialite.datatype.SparseBooleanMatrix;
 import org.mymedialite.io.Constants;
 import org.mymedialite.io.IMatrixExtensions;
@@ -40,6 +49,9 @@ import org.latlab.io.bif.BifParser;
 import org.latlab.model.BeliefNode;
 import org.latlab.model.LTM;
 import org.latlab.reasoner.CliqueTreePropagation;
+import org.latlab.reasoner.CliqueTreePropagationRec;
+import org.latlab.reasoner.CompiledCliqueTree;
+import org.latlab.reasoner.CompiledCliqueTreePropagation;
 
 /**
  * Implementation of Conformative Filtering. Please see the ECIR 2019 paper "Conformative Filtering for Implicit Feedback Data"
@@ -49,7 +61,22 @@ import org.latlab.reasoner.CliqueTreePropagation;
  * @author fkhawar
  *
  */
-public class LTM_FR extends ItemRecommender {
+public class LTM_FR extends ItemRecommender implements IBatchItemRecommender, IIncrementalItemRecommender {
+
+	/**
+	 * Marks the binary part of a model file written by saveModel(String), "LTMF"
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x464D544C;
+
+	/**
+	 * Version of the binary model format. Version 1 is the text format of saveModel(PrintWriter)
+	 */
+	private static final String SNAPSHOT_VERSION = "2";
+
+	/**
+	 * Number of doubles written per call when saving the factor matrices
+	 */
+	private static final int SNAPSHOT_WINDOW_DOUBLES = 1 << 16;
 
 	/**
 	 * The learned latent tree model
@@ -155,10 +182,15 @@ public class LTM_FR extends ItemRecommender {
 	 */
 	public double lambda;
 
+	/**
+	 * the maximum number of evidence patterns whose posteriors are cached, 0 to propagate for every user
+	 */
+	public int posteriorCacheSize = 1 << 16;
+
 	/**
 	 * the normalization of item factors
 	 */
-	public ArrayList<Double> _normalization;
+	public double[] _normalization;
 
 
 	/**
@@ -206,11 +238,50 @@ public class LTM_FR extends ItemRecommender {
 	private HashMap<Variable, HashSet<Integer>> variableUserGroupMap;
 
 
+	/**
+	 * the compiled clique tree for folding in users, see prepareFoldIn()
+	 */
+	private volatile CompiledCliqueTree _foldInTree;
+
+	/**
+	 * idle propagations over _foldInTree, one is created whenever all are in use
+	 */
+	private final ConcurrentLinkedQueue<CompiledCliqueTreePropagation> _foldInCtps =
+			new ConcurrentLinkedQueue<CompiledCliqueTreePropagation>();
+
+	/**
+	 * the numbers of _variables in _foldInTree
+	 */
+	private int[] _foldInVariableIndices;
+
+	/**
+	 * names of the top level latent variables, which bound the restricted propagation
+	 */
+	private HashSet<String> _topVariablesNames;
+
+	/**
+	 * posteriors of the evidence patterns seen so far, shared by training and folding in users
+	 */
+	private PosteriorCache _posteriorCache;
+
+
+	/**
+	 * the items that have item factors, i.e. candidate items that are in the model, see updateUser()
+	 */
+	private BitSet _factorItems;
+
+	/**
+	 * the item factors are the columns of itemFactors times these scales, so that a change of the
+	 * normalization does not rewrite every item, see updateFactors(). null when all scales are 1
+	 */
+	private volatile double[] _itemScale;
+
+
 	 /** Latent user factor matrix */
-	  protected Matrix<Double> userFactors;  // [user index] [feature index]
+	  protected DenseDoubleMatrix userFactors;  // [user index] [feature index]
 
 	  /** Latent item factor matrix */
-	  protected Matrix<Double> itemFactors;  // [item index] [feature index]
+	  protected DenseDoubleMatrix itemFactors;  // [item index] [feature index]
 
 
 	/**
@@ -248,6 +319,31 @@ public class LTM_FR extends ItemRecommender {
 
 	private void initialization(){
 
+		readModel();
+
+		_varDiffLevels = new HashMap<Integer, HashSet<Variable>>();
+        processVariables();
+        System.out.println("variales processed");
+
+        _variables = _varDiffLevels.get(latentLevel).toArray();
+
+        numFactors = _variables.length;
+
+        System.out.println("#Users: "+ (maxUserID + 1) + "#Items: "+ (maxItemID+1) + "numFactors:" + numFactors);
+		userFactors = new DenseDoubleMatrix(maxUserID + 1, numFactors);
+		itemFactors = new DenseDoubleMatrix(maxItemID + 1, numFactors);
+		_itemScale = null;
+
+        variableUserGroupMap = new HashMap<Variable, HashSet<Integer>>();
+
+        _normalization = new double[_variables.length];
+	}
+
+	/**
+	 * Read the latent tree model from modelPath
+	 */
+	private void readModel(){
+
 		// Read model
 		_model = new LTM();
 		Parser parser;
@@ -263,23 +359,6 @@ public class LTM_FR extends ItemRecommender {
 			e.printStackTrace();
 		}
 		System.out.println("model read");
-
-
-		_varDiffLevels = new HashMap<Integer, HashSet<Variable>>();
-        processVariables();
-        System.out.println("variales processed");
-
-        _variables = _varDiffLevels.get(latentLevel).toArray();
-
-        numFactors = _variables.length;
-
-        System.out.println("#Users: "+ (maxUserID + 1) + "#Items: "+ (maxItemID+1) + "numFactors:" + numFactors);
-		userFactors = new Matrix<Double>(maxUserID + 1, numFactors, 0.0);
-		itemFactors = new Matrix<Double>(maxItemID + 1, numFactors, 0.0);
-
-        variableUserGroupMap = new HashMap<Variable, HashSet<Integer>>();
-
-        _normalization = new ArrayList<Double>(_variables.length);
 	}
 
 	/**
@@ -325,7 +404,10 @@ public class LTM_FR extends ItemRecommender {
 			topVariablesNames.add(top.getName());
 		}
 
+		_posteriorCache = posteriorCacheSize > 0 ? new PosteriorCache(posteriorCacheSize) : null;
+
 		parallelUserFactorCompute pc = new parallelUserFactorCompute();
+		pc.cache = _posteriorCache;
 		pc.parallelUserFactorCompute1(EntityMapping,  _variables
 				, feedback, timeUserPreference,
 				timeInGroupPreference, _timeRestrictedtrainData,
@@ -337,6 +419,8 @@ public class LTM_FR extends ItemRecommender {
 
 		System.out.println("--- UserFactor Time: "
 				+ (System.currentTimeMillis() - startUserFactor) + " ms ---");
+		if (_posteriorCache != null)
+			System.out.println(_posteriorCache);
 
 	}
 
@@ -403,8 +487,346 @@ public class LTM_FR extends ItemRecommender {
 		 if (userFactors.dim2 != itemFactors.dim2)
 			 throw new IllegalArgumentException("wrong row size: " + userFactors.dim2 + " vs. " + itemFactors.dim2);
 
-			 return MatrixExtensions.rowScalarProduct(userFactors, user, itemFactors, item);
+		 double[] scale = _itemScale;
+		 if (scale == null)
+			 return userFactors.rowScalarProduct(user, itemFactors, item);
+
+		 double[] userData = userFactors.data;
+		 double[] itemData = itemFactors.data;
+		 int u = user * userFactors.dim2;
+		 int i = item * itemFactors.dim2;
+		 double score = 0;
+		 for (int k = 0 ; k < numFactors ; k++)
+			 score += userData[u + k] * itemData[i + k] * scale[k];
+		 return score;
+
+	}
+
+	/**
+	 * Score a block of users against a set of items as a product of user factors and item factors.
+	 *
+	 * The factor rows of the items are first packed into one contiguous array. Then users are scored
+	 * against tiles of items small enough to stay in cache, so each item row is reused for the whole
+	 * user block. Unknown users or items get a score of 0, as in predict(int, int).
+	 */
+	public void predict(int[] users, int num_users, int[] items, int num_items, double[] scores){
+
+		int f = numFactors;
+
+		// pack the item factors, unknown items keep a row of zeros
+		double[] scale = _itemScale;
+		double[] packedItems = new double[num_items * f];
+		for (int i = 0 ; i < num_items ; i++) {
+			int item = items[i];
+			if (item >= 0 && item < itemFactors.dim1) {
+				if (scale == null)
+					System.arraycopy(itemFactors.data, item * f, packedItems, i * f, f);
+				else
+					scaledItemRow(item, scale, packedItems, i * f);
+			}
+		}
+
+		// about 128KB of item factors per tile
+		int tile = Math.max(16, (16 * 1024) / Math.max(1, f));
+
+		for (int itemStart = 0 ; itemStart < num_items ; itemStart += tile) {
+			int itemEnd = Math.min(num_items, itemStart + tile);
+
+			for (int u = 0 ; u < num_users ; u++) {
+				int user = users[u];
+				int scoreOffset = u * num_items;
+
+				if (user < 0 || user >= userFactors.dim1) {
+					for (int i = itemStart ; i < itemEnd ; i++)
+						scores[scoreOffset + i] = 0;
+					continue;
+				}
+
+				int userOffset = user * f;
+				for (int i = itemStart ; i < itemEnd ; i++) {
+					scores[scoreOffset + i] = DenseDoubleMatrix.dot(userFactors.data, userOffset, packedItems, i * f, f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Score a factor vector, e.g. from foldIn(), against a set of items.
+	 * @param factors P(Z=1|u,m) of each latent variable, indexed like the columns of itemFactors
+	 * @param items the item IDs
+	 * @param num_items the number of valid entries in items
+	 * @param scores receives the score of items[i] at scores[i]; unknown items get 0
+	 */
+	public void predict(double[] factors, int[] items, int num_items, double[] scores){
+		if (factors.length != numFactors)
+			throw new IllegalArgumentException("wrong row size: " + factors.length + " vs. " + numFactors);
+
+		double[] scale = _itemScale;
+		double[] itemRow = scale == null ? null : new double[numFactors];
+		for (int i = 0 ; i < num_items ; i++) {
+			int item = items[i];
+			if (item >= 0 && item < itemFactors.dim1) {
+				if (scale == null)
+					scores[i] = DenseDoubleMatrix.dot(factors, 0, itemFactors.data, item * numFactors, numFactors);
+				else
+					scores[i] = DenseDoubleMatrix.dot(factors, 0, scaledItemRow(item, scale, itemRow, 0), 0, numFactors);
+			}
+			else
+				scores[i] = 0;
+		}
+	}
+
+	// writes the factors of an item, i.e. its row of itemFactors times the scales, to row at offset
+	private double[] scaledItemRow(int item, double[] scale, double[] row, int offset){
+		int f = numFactors;
+		double[] itemData = itemFactors.data;
+		for (int k = 0 ; k < f ; k++)
+			row[offset + k] = itemData[item * f + k] * scale[k];
+		return row;
+	}
+
+	/**
+	 * Multiply the scales into itemFactors, so that it holds the item factors themselves, e.g. before
+	 * saving it
+	 */
+	private synchronized void applyItemScale(){
+		double[] scale = _itemScale;
+		if (scale == null)
+			return;
+		int f = numFactors;
+		double[] itemData = itemFactors.data;
+		for (int offset = 0 ; offset + f <= itemData.length ; offset += f)
+			for (int k = 0 ; k < f ; k++)
+				itemData[offset + k] *= scale[k];
+		_itemScale = null;
+	}
+
+	/**
+	 * Compute the factors of a user that is not in the model, from the items consumed by the user,
+	 * without changing the model. Runs one restricted propagation.
+	 * @param items the internal IDs of the consumed items
+	 * @return P(Z=1|items,m) of each latent variable at the latent level
+	 */
+	public double[] foldIn(IntCollection items){
+		prepareFoldIn();
+
+		double[] factors = new double[numFactors];
+
+		PosteriorCache cache = _posteriorCache;
+		PosteriorCache.Signature signature = null;
+		if (cache != null) {
+			signature = PosteriorCache.signature(items, EntityMapping);
+			if (cache.get(signature, factors))
+				return factors;
+		}
+
+		Set<Variable> evidenceVar = EntityMapping.toOriginalIDSet(items);
+		CompiledCliqueTreePropagation ctp = _foldInCtps.poll();
+		if (ctp == null)
+			ctp = new CompiledCliqueTreePropagation(_foldInTree);
+		parallelUserFactorCompute.computeUserFactor(ctp, evidenceVar, _foldInVariableIndices, factors);
+		_foldInCtps.offer(ctp);
+		if (cache != null)
+			cache.put(signature, factors);
+		return factors;
+	}
+
+	/**
+	 * Build the inference state used by foldIn(): the latent tree model (read from modelPath if the
+	 * recommender was loaded from a snapshot) and its compiled clique tree for restricted propagation.
+	 * This is done once; call it up front to keep the first fold-in fast.
+	 */
+	public synchronized void prepareFoldIn(){
+		if (_foldInTree != null)
+			return;
+
+		if (_model == null) {
+			if (modelPath == null)
+				throw new IllegalStateException("Folding in users needs the latent tree model, please set modelPath");
+			readModel();
+		}
+		if (_varDiffLevels == null) {
+			_varDiffLevels = new HashMap<Integer, HashSet<Variable>>();
+			processVariables();
+		}
+
+		// after loading a snapshot, the variables are only known by name
+		Object[] variables = new Object[_variables.length];
+		for (int i = 0 ; i < _variables.length ; i++) {
+			String name = ((Variable)_variables[i]).getName();
+			BeliefNode node = _model.getNodeByName(name);
+			if (node == null)
+				throw new IllegalStateException("Variable " + name + " is not in the model " + modelPath);
+			variables[i] = node.getVariable();
+		}
+		_variables = variables;
+
+		if (EntityMapping == null) {
+			EntityMapping = new EntityMappingVariable();
+			projectEntityMappingVar(_model.getManifestVars(), _item_mapping, EntityMapping);
+		}
+
+		_topVariablesNames = new HashSet<String>();
+		for (Variable top : _varDiffLevels.get(2)) {
+			_topVariablesNames.add(top.getName());
+		}
+
+		CompiledCliqueTree tree = parallelUserFactorCompute.compileCliqueTree(_model, _topVariablesNames);
+		_foldInVariableIndices = parallelUserFactorCompute.indicesOf(tree, _variables);
+		if (_posteriorCache == null && posteriorCacheSize > 0)
+			_posteriorCache = new PosteriorCache(posteriorCacheSize);
+		_foldInTree = tree;
+	}
+
+	/**
+	 * Add a positive feedback event and fold the user in again, see updateUser()
+	 */
+	public synchronized void addFeedback(int user_id, int item_id){
+		IntCollection old_items = snapshotItems(user_id);
+		feedback.add(user_id, item_id);
+		updateUser(user_id, old_items);
+	}
+
+	/**
+	 * Add several positive feedback events of one user, with one propagation, see updateUser()
+	 */
+	public synchronized void addFeedback(int user_id, List<Integer> item_ids){
+		IntCollection old_items = snapshotItems(user_id);
+		for (int item_id : item_ids)
+			feedback.add(user_id, item_id);
+		updateUser(user_id, old_items);
+	}
+
+	/**
+	 * Remove a positive feedback event and fold the user in again, see updateUser()
+	 */
+	public synchronized void removeFeedback(int user_id, int item_id){
+		if (user_id > maxUserID)
+			throw new IllegalArgumentException("Unknown user " + user_id);
+		if (item_id > maxItemID)
+			throw new IllegalArgumentException("Unknown item " + item_id);
+
+		IntCollection old_items = snapshotItems(user_id);
+		feedback.remove(user_id, item_id);
+		updateUser(user_id, old_items);
+	}
+
+	/**
+	 * Remove a user and its feedback. The user no longer counts in the item factors and their normalization
+	 */
+	public synchronized void removeUser(int user_id){
+		if (user_id > maxUserID)
+			throw new IllegalArgumentException("Unknown user " + user_id);
+
+		IntCollection old_items = snapshotItems(user_id);
+		feedback.removeUser(user_id);
+		updateFactors(user_id, old_items, new IntOpenHashSet(), new double[numFactors]);
+	}
+
+	/**
+	 * Remove an item and its feedback. The factors of the users who consumed it are not recomputed
+	 */
+	public synchronized void removeItem(int item_id){
+		if (item_id > maxItemID)
+			throw new IllegalArgumentException("Unknown item " + item_id);
+
+		feedback.removeItem(item_id);
+		if (item_id < itemFactors.dim1)
+			itemFactors.setRowToOneValue(item_id, 0);
+		if (_factorItems != null)
+			_factorItems.clear(item_id);
+	}
+
+	// copy of the items of a user before the feedback changes
+	private IntCollection snapshotItems(int user_id){
+		if (user_id > feedback.maxUserID())
+			return new IntOpenHashSet();
+		return new IntOpenHashSet(feedback.userMatrix().get(user_id));
+	}
+
+	/**
+	 * Fold a user in again after the user's feedback changed: one restricted propagation gives the new
+	 * user factors p', then the item factors n(g|Z_k=1) = sum_{u consumed g} P(Z_k=1|u) / N_k are updated
+	 * from the difference to the old factors p, without touching the other users.
+	 *
+	 * Note: the update uses the full feedback, also when timeInGroupPreference is set
+	 * @param user_id the user whose feedback changed
+	 * @param old_items the items of the user before the change
+	 */
+	private void updateUser(int user_id, IntCollection old_items){
+		if (user_id > maxUserID)
+			maxUserID = user_id;
+		if (feedback.maxItemID() > maxItemID)
+			maxItemID = feedback.maxItemID();
+
+		IntCollection new_items = feedback.userMatrix().get(user_id);
+		updateFactors(user_id, old_items, new_items, foldIn(new_items));
+	}
+
+	private void updateFactors(int user_id, IntCollection old_items, IntCollection new_items, double[] factors){
+		int f = numFactors;
+		userFactors.grow(user_id + 1, f);
+		itemFactors.grow(maxItemID + 1, f);
+		BitSet factorItems = factorItems();
+
+		double[] oldFactors = userFactors.getRow(user_id); // zeros for a new user
+		double[] oldNormalization = _normalization;
+		double[] normalization = new double[f];
+		for (int k = 0 ; k < f ; k++)
+			normalization[k] = oldNormalization[k] - oldFactors[k] + factors[k];
+
+		// all item factors share the normalization, rescale them from N_k to N'_k through the scale of
+		// each column instead of every item. A column that becomes 0 is reset, and a scale far from 1 is
+		// multiplied into its column before it loses precision
+		double[] itemData = itemFactors.data;
+		double[] scale = _itemScale == null ? new double[f] : _itemScale.clone();
+		if (_itemScale == null)
+			Arrays.fill(scale, 1);
+		for (int k = 0 ; k < f ; k++) {
+			double ratio = normalization[k] > 0 ? oldNormalization[k] / normalization[k] : 0;
+			scale[k] *= ratio;
+			if (scale[k] < 1e-100 || scale[k] > 1e100) {
+				for (int offset = k ; offset < itemData.length ; offset += f)
+					itemData[offset] *= scale[k];
+				scale[k] = 1;
+			}
+		}
+
+		// then move the contribution of this user from p to p' on the items it consumed
+		for (int item : old_items) {
+			if (!factorItems.get(item))
+				continue;
+			for (int k = 0 ; k < f ; k++)
+				if (normalization[k] > 0)
+					itemData[item * f + k] -= oldFactors[k] / normalization[k] / scale[k];
+		}
+		for (int item : new_items) {
+			if (!factorItems.get(item))
+				continue;
+			for (int k = 0 ; k < f ; k++)
+				if (normalization[k] > 0)
+					itemData[item * f + k] += factors[k] / normalization[k] / scale[k];
+		}
 
+		userFactors.setRow(user_id, factors);
+		_normalization = normalization;
+		_itemScale = scale;
+	}
+
+	// the items that got item factors in itemLatentVector()
+	private BitSet factorItems(){
+		if (_factorItems == null) {
+			prepareFoldIn();
+			Collection<Integer> candidates = candidate_items;
+			if (candidates != null && !(candidates instanceof Set))
+				candidates = new HashSet<Integer>(candidates);
+			_factorItems = new BitSet(itemFactors.dim1);
+			for (int item : EntityMapping.internalIDs()) {
+				if (candidates == null || candidates.contains(item))
+					_factorItems.set(item);
+			}
+		}
+		return _factorItems;
 	}
 
 	/**
@@ -553,16 +975,82 @@ public class LTM_FR extends ItemRecommender {
 	}
 
 
-	 /** { @inheritDoc } */
+	/**
+	 * Save the model as a binary snapshot.
+	 *
+	 * The file starts with the usual two text lines (type name and version), so Model.load() can
+	 * create the recommender from it. The rest is little-endian binary:
+	 * magic, format version, offset of the factor data, latent level, number of users, items and factors,
+	 * the variables of the latent level in order (name and states), the normalization vector,
+	 * the user and item entity mappings, and, aligned to 8 bytes, the user and item factors in row-major order.
+	 */
 	  public void saveModel(String filename) throws IOException {
-	    PrintWriter writer = Model.getWriter(filename, this.getClass(), "1");
-	    saveModel(writer);
-	    writer.flush();
-	    writer.close();
+	    applyItemScale();
+	    byte[] typeLines = (this.getClass().getCanonicalName() + "\n" + SNAPSHOT_VERSION + "\n").getBytes(StandardCharsets.UTF_8);
+
+	    byte[][] variableNames = new byte[numFactors][];
+	    byte[][][] variableStates = new byte[numFactors][][];
+	    long headerSize = 4 + 4 + 8 + 4 * 4 + 8L * numFactors;
+	    for (int k = 0 ; k < numFactors ; k++) {
+	    	Variable variable = (Variable) _variables[k];
+	    	variableNames[k] = variable.getName().getBytes(StandardCharsets.UTF_8);
+	    	headerSize += 4 + variableNames[k].length + 4;
+	    	variableStates[k] = new byte[variable.getCardinality()][];
+	    	for (int s = 0 ; s < variable.getCardinality() ; s++) {
+	    		variableStates[k][s] = variable.getStates().get(s).getBytes(StandardCharsets.UTF_8);
+	    		headerSize += 4 + variableStates[k][s].length;
+	    	}
+	    }
+	    byte[][] userIDs = encodeMapping(_user_mapping, userFactors.dim1);
+	    byte[][] itemIDs = encodeMapping(_item_mapping, itemFactors.dim1);
+	    headerSize += mappingSize(userIDs) + mappingSize(itemIDs);
+
+	    long dataOffset = typeLines.length + headerSize;
+	    dataOffset = (dataOffset + 7) & ~7L;
+	    if (dataOffset - typeLines.length > Integer.MAX_VALUE)
+	    	throw new IOException("Model header too large: " + dataOffset + " bytes");
+
+	    ByteBuffer header = ByteBuffer.allocate((int) (dataOffset - typeLines.length)).order(ByteOrder.LITTLE_ENDIAN);
+	    header.putInt(SNAPSHOT_MAGIC);
+	    header.putInt(Integer.parseInt(SNAPSHOT_VERSION));
+	    header.putLong(dataOffset);
+	    header.putInt(latentLevel);
+	    header.putInt(userFactors.dim1);
+	    header.putInt(itemFactors.dim1);
+	    header.putInt(numFactors);
+	    for (int k = 0 ; k < numFactors ; k++) {
+	    	putBytes(header, variableNames[k]);
+	    	header.putInt(variableStates[k].length);
+	    	for (byte[] state : variableStates[k])
+	    		putBytes(header, state);
+	    }
+	    for (int k = 0 ; k < numFactors ; k++)
+	    	header.putDouble(_normalization[k]);
+	    putMapping(header, userIDs);
+	    putMapping(header, itemIDs);
+	    header.position(header.capacity());
+	    header.flip();
+
+	    FileOutputStream out = new FileOutputStream(filename);
+	    try {
+	    	FileChannel channel = out.getChannel();
+	    	writeFully(channel, ByteBuffer.wrap(typeLines));
+	    	writeFully(channel, header);
+	    	writeDoubles(channel, userFactors.data, userFactors.dim1 * userFactors.dim2);
+	    	writeDoubles(channel, itemFactors.data, itemFactors.dim1 * itemFactors.dim2);
+	    	channel.force(false);
+	    } finally {
+	    	out.close();
+	    }
 	  }
 
-	  /** { @inheritDoc } */
+	  /**
+	   * Save the item factors and the variable names as text.
+	   * This format cannot be used to serve recommendations, as it does not hold the user factors;
+	   * use saveModel(String) for a complete snapshot.
+	   */
 	  public void saveModel(PrintWriter writer) {
+	    applyItemScale();
 	    //IMatrixExtensions.writeMatrix(writer, userFactors);
 	    IMatrixExtensions.writeMatrix(writer, itemFactors);
 	    for (int i = 0 ; i< _variables.length ; i++) {
@@ -574,10 +1062,196 @@ public class LTM_FR extends ItemRecommender {
 
 
 	/**
-	 * Implement this later
+	 * Load a binary snapshot written by saveModel(String).
+	 *
+	 * The header is read from a memory mapped view of the file, and the factor matrices are bulk
+	 * copied from mapped windows of the file, so nothing is parsed and the BIF model is not needed.
+	 * Text models of version 1 are read by loadModel(BufferedReader).
 	 */
 	public void loadModel(String filename) throws IOException{
 
+		RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			FileChannel channel = file.getChannel();
+
+			// the two text lines: type name and version
+			ByteBuffer start = ByteBuffer.allocate((int) Math.min(channel.size(), 4096));
+			while (start.hasRemaining() && channel.read(start) >= 0);
+			start.flip();
+			int newLines = 0;
+			int versionStart = 0;
+			while (newLines < 2 && start.hasRemaining()) {
+				if (start.get() == '\n') {
+					newLines++;
+					if (newLines == 1)
+						versionStart = start.position();
+				}
+			}
+			if (newLines < 2)
+				throw new IOException("Unexpected end of file " + filename);
+			int bodyStart = start.position();
+			String version = new String(start.array(), versionStart, bodyStart - versionStart - 1, StandardCharsets.UTF_8).trim();
+
+			if (version.equals("1")) {
+				BufferedReader reader = Model.getReader(filename, this.getClass());
+				try {
+					loadModel(reader);
+				} finally {
+					reader.close();
+				}
+				return;
+			}
+			if (!version.equals(SNAPSHOT_VERSION))
+				throw new IOException("Unknown model version " + version + " in " + filename);
+
+			ByteBuffer prefix = channel.map(FileChannel.MapMode.READ_ONLY, bodyStart, 16).order(ByteOrder.LITTLE_ENDIAN);
+			if (prefix.getInt() != SNAPSHOT_MAGIC || prefix.getInt() != Integer.parseInt(SNAPSHOT_VERSION))
+				throw new IOException("Not an LTM_FR snapshot: " + filename);
+			long dataOffset = prefix.getLong();
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, bodyStart + 16, dataOffset - bodyStart - 16).order(ByteOrder.LITTLE_ENDIAN);
+			int level = header.getInt();
+			int numUsers = header.getInt();
+			int numItems = header.getInt();
+			int f = header.getInt();
+
+			Object[] variables = new Object[f];
+			for (int k = 0 ; k < f ; k++) {
+				String name = getString(header);
+				int cardinality = header.getInt();
+				ArrayList<String> states = new ArrayList<String>(cardinality);
+				for (int s = 0 ; s < cardinality ; s++)
+					states.add(getString(header));
+				variables[k] = new Variable(name, states);
+			}
+			double[] normalization = new double[f];
+			for (int k = 0 ; k < f ; k++)
+				normalization[k] = header.getDouble();
+			IEntityMapping userMapping = getMapping(header);
+			IEntityMapping itemMapping = getMapping(header);
+
+			if (dataOffset + 8L * ((long) numUsers + numItems) * f > channel.size())
+				throw new IOException("Truncated model file " + filename);
+			DenseDoubleMatrix users = new DenseDoubleMatrix(numUsers, f);
+			readDoubles(channel, dataOffset, users.data);
+			DenseDoubleMatrix items = new DenseDoubleMatrix(numItems, f);
+			readDoubles(channel, dataOffset + 8L * users.data.length, items.data);
+
+			this.latentLevel = level;
+			this.numFactors = f;
+			this._variables = variables;
+			this._normalization = normalization;
+			this.userFactors = users;
+			this.itemFactors = items;
+			this._itemScale = null;
+			this.maxUserID = numUsers - 1;
+			this.maxItemID = numItems - 1;
+			if (userMapping != null)
+				this._user_mapping = userMapping;
+			if (itemMapping != null)
+				this._item_mapping = itemMapping;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Internal IDs 0 ... size-1 with their original IDs, or null if there is no mapping to store
+	 */
+	private static byte[][] encodeMapping(IEntityMapping mapping, int size) {
+		if (mapping == null)
+			return null;
+		byte[][] ids = new byte[size][];
+		for (int id : mapping.internalIDs()) {
+			if (id >= 0 && id < size)
+				ids[id] = mapping.toOriginalID(id).getBytes(StandardCharsets.UTF_8);
+		}
+		return ids;
+	}
+
+	private static long mappingSize(byte[][] ids) {
+		long size = 4;
+		if (ids != null)
+			for (byte[] id : ids)
+				size += 4 + (id == null ? 0 : id.length);
+		return size;
+	}
+
+	/**
+	 * Writes the number of entries (-1 for no mapping) and then the original ID of every internal ID,
+	 * with length -1 for internal IDs that are not mapped
+	 */
+	private static void putMapping(ByteBuffer buffer, byte[][] ids) {
+		if (ids == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		buffer.putInt(ids.length);
+		for (byte[] id : ids) {
+			if (id == null)
+				buffer.putInt(-1);
+			else
+				putBytes(buffer, id);
+		}
+	}
+
+	private static IEntityMapping getMapping(ByteBuffer buffer) {
+		int size = buffer.getInt();
+		if (size < 0)
+			return null;
+		org.mymedialite.data.EntityMapping mapping = new org.mymedialite.data.EntityMapping();
+		mapping.original_to_internal = new HashMap<String, Integer>(2 * size);
+		mapping.internal_to_original = new HashMap<Integer, String>(2 * size);
+		for (int id = 0 ; id < size ; id++) {
+			String original_id = getString(buffer);
+			if (original_id == null)
+				continue;
+			mapping.original_to_internal.put(original_id, id);
+			mapping.internal_to_original.put(id, original_id);
+		}
+		return mapping;
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static void writeDoubles(FileChannel channel, double[] data, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(8 * SNAPSHOT_WINDOW_DOUBLES).order(ByteOrder.LITTLE_ENDIAN);
+		for (int start = 0 ; start < size ; start += SNAPSHOT_WINDOW_DOUBLES) {
+			int length = Math.min(SNAPSHOT_WINDOW_DOUBLES, size - start);
+			buffer.clear();
+			buffer.asDoubleBuffer().put(data, start, length);
+			buffer.limit(8 * length);
+			writeFully(channel, buffer);
+		}
+	}
+
+	/**
+	 * Fills data from the file, starting at position, one mapped window at a time
+	 */
+	private static void readDoubles(FileChannel channel, long position, double[] data) throws IOException {
+		int window = 1 << 26; // 512MB, a mapping cannot be larger than 2GB
+		for (int start = 0 ; start < data.length ; start += window) {
+			int length = Math.min(window, data.length - start);
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position + 8L * start, 8L * length);
+			mapped.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(data, start, length);
+		}
 	}
 
 	@Override
@@ -596,10 +1270,36 @@ public class LTM_FR extends ItemRecommender {
 	}
 
 	/**
-	 * Todo:Implement this later
+	 * Load the text model written by saveModel(PrintWriter): the item factors and the variable names.
+	 * The user factors are not part of this format, so all users are unknown until the model is retrained.
 	 */
 	public void loadModel(BufferedReader reader) throws IOException{
+		DenseDoubleMatrix items = (DenseDoubleMatrix) IMatrixExtensions.readDoubleMatrix(reader, new DenseDoubleMatrix(0, 0));
+
+		String line = reader.readLine();
+		if (line == null)
+			throw new IOException("Unexpected end of file: expected the variable names");
+		String[] names = line.split(",");
+		if (names.length != items.dim2)
+			throw new IOException("Expected " + items.dim2 + " variable names, found " + names.length);
+
+		Object[] variables = new Object[names.length];
+		for (int k = 0 ; k < names.length ; k++) {
+			ArrayList<String> states = new ArrayList<String>();
+			states.add("s0");
+			states.add("s1");
+			variables[k] = new Variable(names[k], states);
+		}
 
+		System.err.println("WARNING: text model has no user factors, retrain or use a binary snapshot to serve recommendations");
+		this.numFactors = items.dim2;
+		this._variables = variables;
+		this.itemFactors = items;
+		this._itemScale = null;
+		this.userFactors = new DenseDoubleMatrix(0, numFactors);
+		this._normalization = new double[numFactors];
+		this.maxItemID = items.dim1 - 1;
+		this.maxUserID = -1;
 	}
 
 	  public String toString() {
@@ -608,8 +1308,8 @@ public class LTM_FR extends ItemRecommender {
 		        " latentLevel="       + latentLevel +
 		    	" PZ1threshold=" + PZ1threshold+
 		    	" Model Name=" + modelPath+
-		    	" # of Actual test users=" + test_users.size()+
-		    	" # of Actual test items=" + candidate_items.size()+
+		    	" # of Actual test users=" + (test_users == null ? 0 : test_users.size())+
+		    	" # of Actual test items=" + (candidate_items == null ? 0 : candidate_items.size())+
 		    	" History size= "+ historySize +
 		    	" userHistorySize"+ userHistorySize +
 		    	" TimeinGroupPreference= " + timeInGroupPreference+
@@ -0,0 +1,138 @@
+package org.mymedialite.itemrec;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mymedialite.datatype.EntityMappingVariable;
+
+/**
+ * Bounded concurrent cache from a user's positive evidence to P(Z=1|u,m) of the latent variables.
+ *
+ * The posterior only depends on which manifest variables are observed, so users with the same
+ * evidence, e.g. the same truncated recent basket, share one propagation. The key is the sorted
+ * list of consumed items that are in the model. Once the cache holds capacity entries, new
+ * patterns are no longer stored; the first patterns seen are usually the frequent ones.
+ * @author fkhawar
+ *
+ */
+public class PosteriorCache {
+
+  /** the maximum number of evidence patterns stored */
+  public final int capacity;
+
+  private final ConcurrentHashMap<Signature, double[]> posteriors;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /** The key of an evidence pattern: the sorted IDs of the consumed items that are in the model */
+  public static final class Signature {
+    final int[] items;
+    final int hash;
+
+    Signature(int[] items) {
+      this.items = items;
+      this.hash = Arrays.hashCode(items);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Signature && hash == ((Signature) o).hash && Arrays.equals(items, ((Signature) o).items);
+    }
+  }
+
+  /**
+   * Create an empty cache
+   * @param capacity the maximum number of evidence patterns stored
+   */
+  public PosteriorCache(int capacity) {
+    this.capacity = capacity;
+    this.posteriors = new ConcurrentHashMap<Signature, double[]>(Math.min(capacity, 1 << 16));
+  }
+
+  /**
+   * Get the cached posteriors of an evidence pattern, counting a hit or a miss.
+   * @param signature the evidence pattern, from signature()
+   * @param posteriors receives the cached posteriors on a hit
+   * @return true on a hit
+   */
+  public boolean get(Signature signature, double[] posteriors) {
+    double[] cached = this.posteriors.get(signature);
+    if (cached == null) {
+      misses.increment();
+      return false;
+    }
+    hits.increment();
+    System.arraycopy(cached, 0, posteriors, 0, cached.length);
+    return true;
+  }
+
+  /**
+   * Store the posteriors of an evidence pattern, unless the cache is full
+   * @param signature the evidence pattern, from signature()
+   * @param posteriors the posteriors to store, which are copied
+   */
+  public void put(Signature signature, double[] posteriors) {
+    if (this.posteriors.size() >= capacity)
+      return;
+    this.posteriors.putIfAbsent(signature, posteriors.clone());
+  }
+
+  /** @return the number of lookups that found the evidence pattern */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** @return the number of lookups that did not find the evidence pattern */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /** @return the number of stored evidence patterns */
+  public int size() {
+    return posteriors.size();
+  }
+
+  /** Remove all stored patterns, e.g. after the model changed */
+  public void clear() {
+    posteriors.clear();
+  }
+
+  @Override
+  public String toString() {
+    long h = hits(), m = misses();
+    return "posterior cache: size=" + size() + " hits=" + h + " misses=" + m
+        + " hit rate=" + (h + m == 0 ? 0 : (double) h / (h + m));
+  }
+
+  /**
+   * Get the evidence pattern of a user
+   * @param items the internal IDs of the consumed items, may be null
+   * @param mapping the mapping of internal item IDs to the manifest variables of the model; other items are ignored
+   * @return the key to look up the pattern with
+   */
+  public static Signature signature(IntCollection items, EntityMappingVariable mapping) {
+    int[] signature = new int[items == null ? 0 : items.size()];
+    int n = 0;
+    if (items != null) {
+      IntIterator it = items.iterator();
+      while (it.hasNext()) {
+        int item = it.nextInt();
+        if (mapping.internal_to_original.get(item) != null)
+          signature[n++] = item;
+      }
+    }
+    signature = Arrays.copyOf(signature, n);
+    Arrays.sort(signature);
+    return new Signature(signature);
+  }
+
+}
@@ -0,0 +1,445 @@
+package org.mymedialite.itemrec;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mymedialite.IRecommender;
+import org.mymedialite.data.IEntityMapping;
+import org.mymedialite.data.IPosOnlyFeedback;
+import org.mymedialite.datatype.IBooleanMatrix;
+import org.mymedialite.util.LatencyHistogram;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers top-K requests over HTTP from a recommender that is trained or loaded once.
+ *
+ * Endpoints, all GET, answered in the format of --prediction-file (label, a tab, and [item:score,...]):
+ *   /recommend?user=ID&amp;k=N           top N items for a known user, without the user's training items
+ *   /recommend?items=ID,ID,...&amp;k=N   top N items for an ad-hoc basket, without the basket items (LTM_FR only)
+ *   /stats                           latency histograms and batching counters
+ *
+ * Requests for known users are queued and scored in blocks of up to Extensions.BATCH_SIZE users, so an
+ * IBatchItemRecommender reads the item factors once per block. Baskets are folded in with one restricted
+ * propagation on the ctps LTM_FR keeps ready. HTTP requests are handled by a bounded pool; when its queue
+ * is full the request is answered 503 by a separate thread, so the accepting thread never handles it.
+ * @author fkhawar
+ *
+ */
+public class RecommendationServer {
+
+  /** the port to listen on */
+  public int port = 8080;
+
+  /** listen on the loopback interface only */
+  public boolean local = true;
+
+  /** number of threads handling HTTP requests */
+  public int threads = 2 * Runtime.getRuntime().availableProcessors();
+
+  /** number of threads scoring blocks of users */
+  public int scoringThreads = Runtime.getRuntime().availableProcessors();
+
+  /** number of requests that may wait for a thread, or for scoring */
+  public int queueCapacity = 1024;
+
+  /** how long a scoring thread waits for more users to fill a block, in milliseconds */
+  public long batchDelay = 2;
+
+  /** how long a request waits for its block to be scored before it is answered 503, in milliseconds */
+  public long requestTimeout = 10000;
+
+  /** number of items returned if the request does not set k */
+  public int defaultK = 10;
+
+  private final IRecommender recommender;
+  private final IPosOnlyFeedback training_data;
+  private final int[] candidates;
+  private final IEntityMapping user_mapping;
+  private final IEntityMapping item_mapping;
+
+  private HttpServer server;
+  private ThreadPoolExecutor workers;
+  private ThreadPoolExecutor rejecter;
+  private BlockingQueue<UserRequest> pending;
+  private List<Thread> scorers;
+  private volatile boolean running;
+
+  private final LatencyHistogram userLatency = new LatencyHistogram("user");
+  private final LatencyHistogram basketLatency = new LatencyHistogram("basket");
+  private final LatencyHistogram scoringLatency = new LatencyHistogram("block scoring");
+  private final AtomicLong numBlocks = new AtomicLong();
+  private final AtomicLong numBlockUsers = new AtomicLong();
+  private final AtomicLong numRejected = new AtomicLong();
+
+  /** true on the thread that answers the requests the workers have no room for */
+  private static final ThreadLocal<Boolean> rejecting = new ThreadLocal<Boolean>();
+
+  /** the training items of a user with no row in the training data */
+  private static final IntCollection NO_ITEMS = new IntOpenHashSet();
+
+  /** a request for a known user, waiting to be scored */
+  private static class UserRequest {
+    final int user_id;
+    final int k;
+    final CompletableFuture<String> result = new CompletableFuture<String>();
+
+    UserRequest(int user_id, int k) {
+      this.user_id = user_id;
+      this.k = k;
+    }
+  }
+
+  /**
+   * Create a server, call start() to accept requests
+   * @param recommender a trained recommender
+   * @param training_data the training data, whose items are not recommended again to the same user
+   * @param candidate_items the items to rank
+   * @param user_mapping the user ID mapping
+   * @param item_mapping the item ID mapping
+   */
+  public RecommendationServer(IRecommender recommender, IPosOnlyFeedback training_data, Collection<Integer> candidate_items,
+      IEntityMapping user_mapping, IEntityMapping item_mapping) {
+    this.recommender = recommender;
+    this.training_data = training_data;
+    this.candidates = Extensions.toIntArray(candidate_items);
+    this.user_mapping = user_mapping;
+    this.item_mapping = item_mapping;
+  }
+
+  /**
+   * Start listening. Returns once the server accepts requests.
+   */
+  public void start() throws IOException {
+    if (recommender instanceof LTM_FR) {
+      try {
+        ((LTM_FR) recommender).prepareFoldIn();
+      } catch (IllegalStateException e) {
+        System.err.println("Basket recommendations disabled: " + e.getMessage());
+      }
+    }
+
+    // build the user matrix now, the scoring threads only read it
+    training_data.userMatrix();
+
+    running = true;
+    pending = new ArrayBlockingQueue<UserRequest>(queueCapacity);
+    scorers = new ArrayList<Thread>();
+    for (int i = 0; i < scoringThreads; i++) {
+      Thread scorer = new Thread(new Runnable() {
+        public void run() {
+          scoreBlocks();
+        }
+      }, "scorer-" + i);
+      scorer.setDaemon(true);
+      scorer.start();
+      scorers.add(scorer);
+    }
+
+    // when its queue is full too, the rejecter throws and the accepting thread closes the connection
+    rejecter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+          public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+              public void run() {
+                rejecting.set(Boolean.TRUE);
+                r.run();
+              }
+            }, "rejecter");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            numRejected.incrementAndGet();
+            rejecter.execute(r);
+          }
+        });
+
+    InetAddress address = local ? InetAddress.getLoopbackAddress() : null;
+    server = HttpServer.create(new InetSocketAddress(address, port), queueCapacity);
+    server.createContext("/recommend", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        if (rejecting.get() != null)
+          respond(exchange, 503, "Too many requests\n");
+        else
+          recommend(exchange);
+      }
+    });
+    server.createContext("/stats", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        if (rejecting.get() != null)
+          respond(exchange, 503, "Too many requests\n");
+        else
+          respond(exchange, 200, stats());
+      }
+    });
+    server.setExecutor(workers);
+    server.start();
+    System.out.println("Serving recommendations on " + server.getAddress());
+  }
+
+  /**
+   * Stop accepting requests, and wait up to delay seconds for the running ones.
+   * The requests still waiting for scoring are answered 503.
+   * @param delay the number of seconds to wait
+   */
+  public void stop(int delay) {
+    running = false;
+    // answered while their exchanges are still open
+    failPending();
+    server.stop(delay);
+    for (Thread scorer : scorers)
+      scorer.interrupt();
+    workers.shutdown();
+    rejecter.shutdown();
+    failPending();
+  }
+
+  private void failPending() {
+    List<UserRequest> left = new ArrayList<UserRequest>();
+    pending.drainTo(left);
+    for (UserRequest request : left)
+      request.result.completeExceptionally(new IllegalStateException("The server is stopping"));
+  }
+
+  /**
+   * @return the latency histograms and batching counters, one per line
+   */
+  public String stats() {
+    long blocks = numBlocks.get();
+    return userLatency + "\n"
+        + basketLatency + "\n"
+        + scoringLatency + "\n"
+        + "blocks=" + blocks + " mean block size=" + (blocks == 0 ? 0 : (double) numBlockUsers.get() / blocks)
+        + " rejected=" + numRejected.get() + "\n";
+  }
+
+  private void recommend(HttpExchange exchange) throws IOException {
+    long start = System.nanoTime();
+    HashMap<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+
+    int k = defaultK;
+    try {
+      if (parameters.containsKey("k"))
+        k = Integer.parseInt(parameters.get("k"));
+    } catch (NumberFormatException e) {
+      respond(exchange, 400, "k must be a number\n");
+      return;
+    }
+
+    String user = parameters.get("user");
+    String basket = parameters.get("items");
+    if (user != null) {
+      if (!user_mapping.originalIDs().contains(user)) {
+        respond(exchange, 404, "Unknown user " + user + "\n");
+        return;
+      }
+      if (!running) {
+        respond(exchange, 503, "The server is stopping\n");
+        return;
+      }
+      UserRequest request = new UserRequest(user_mapping.toInternalID(user), k);
+      if (!pending.offer(request)) {
+        numRejected.incrementAndGet();
+        respond(exchange, 503, "Too many requests\n");
+        return;
+      }
+      try {
+        respond(exchange, 200, request.result.get(requestTimeout, TimeUnit.MILLISECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        respond(exchange, 503, "Interrupted\n");
+      } catch (TimeoutException e) {
+        // a scoring thread that takes the request later completes it for nobody
+        request.result.cancel(false);
+        numRejected.incrementAndGet();
+        respond(exchange, 503, "Timed out\n");
+      } catch (ExecutionException e) {
+        if (!running) {
+          respond(exchange, 503, "The server is stopping\n");
+        } else {
+          e.printStackTrace();
+          respond(exchange, 500, e.getCause() + "\n");
+        }
+      }
+      userLatency.record(System.nanoTime() - start);
+    } else if (basket != null) {
+      if (!(recommender instanceof LTM_FR)) {
+        respond(exchange, 501, "Basket recommendations need LTM_FR\n");
+        return;
+      }
+      try {
+        respond(exchange, 200, recommendBasket(basket, k));
+      } catch (IllegalStateException e) {
+        respond(exchange, 501, e.getMessage() + "\n");
+      }
+      basketLatency.record(System.nanoTime() - start);
+    } else {
+      respond(exchange, 400, "Please give user=ID or items=ID,ID,...\n");
+    }
+  }
+
+  /**
+   * Rank the candidates for a basket of original item IDs; unknown items are ignored
+   */
+  private String recommendBasket(String basket, int k) {
+    IntCollection basket_items = new IntOpenHashSet();
+    for (String item : basket.split(",")) {
+      item = item.trim();
+      if (item_mapping.originalIDs().contains(item))
+        basket_items.add(item_mapping.toInternalID(item));
+    }
+
+    LTM_FR ltm = (LTM_FR) recommender;
+    double[] factors = ltm.foldIn(basket_items);
+
+    int n = candidates.length;
+    int[] items = candidates.clone();
+    double[] scores = new double[n];
+    ltm.predict(factors, items, n, scores);
+
+    int count = Extensions.selectTopK(items, scores, n, Extensions.numberToSelect(n, k, basket_items));
+    StringWriter out = new StringWriter();
+    PrintWriter writer = new PrintWriter(out);
+    Extensions.writeRanking("basket", items, scores, count, basket_items, k, writer, item_mapping);
+    writer.flush();
+    return out.toString();
+  }
+
+  /**
+   * Loop of a scoring thread: take a request, wait up to batchDelay for more, and score them as one block
+   */
+  private void scoreBlocks() {
+    boolean batch = recommender instanceof IBatchItemRecommender;
+    int block_size = batch ? Extensions.BATCH_SIZE : 1;
+    int n = candidates.length;
+
+    List<UserRequest> block = new ArrayList<UserRequest>(block_size);
+    int[] users = new int[block_size];
+    double[] block_scores = new double[block_size * n];
+    int[] items = new int[n];
+    double[] scores = new double[n];
+    StringWriter out = new StringWriter();
+    PrintWriter writer = new PrintWriter(out);
+
+    while (running) {
+      block.clear();
+      try {
+        addUnlessCancelled(block, pending.take());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelay);
+        while (block.size() < block_size) {
+          UserRequest request = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (request == null)
+            break;
+          addUnlessCancelled(block, request);
+        }
+        if (block.isEmpty())
+          continue;
+      } catch (InterruptedException e) {
+        for (UserRequest request : block)
+          request.result.completeExceptionally(e);
+        return;
+      }
+
+      long start = System.nanoTime();
+      try {
+        int num_users = block.size();
+        for (int u = 0; u < num_users; u++)
+          users[u] = block.get(u).user_id;
+
+        if (batch) {
+          ((IBatchItemRecommender) recommender).predict(users, num_users, candidates, n, block_scores);
+        } else {
+          for (int i = 0; i < n; i++)
+            block_scores[i] = recommender.predict(users[0], candidates[i]);
+        }
+
+        for (int u = 0; u < num_users; u++) {
+          UserRequest request = block.get(u);
+          IntCollection ignore_items = trainingItems(request.user_id);
+          System.arraycopy(candidates, 0, items, 0, n);
+          System.arraycopy(block_scores, u * n, scores, 0, n);
+          int count = Extensions.selectTopK(items, scores, n, Extensions.numberToSelect(n, request.k, ignore_items));
+
+          out.getBuffer().setLength(0);
+          Extensions.writeRanking(user_mapping.toOriginalID(request.user_id), items, scores, count, ignore_items, request.k, writer, item_mapping);
+          writer.flush();
+          request.result.complete(out.toString());
+        }
+      } catch (Throwable e) {
+        // an Error too, or the requests of the block would wait until they time out
+        for (UserRequest request : block)
+          request.result.completeExceptionally(e);
+      }
+      scoringLatency.record(System.nanoTime() - start);
+      numBlocks.incrementAndGet();
+      numBlockUsers.addAndGet(block.size());
+    }
+  }
+
+  private static void addUnlessCancelled(List<UserRequest> block, UserRequest request) {
+    if (!request.result.isDone())
+      block.add(request);
+  }
+
+  /**
+   * The training items of a user, without growing the user matrix for a user it has no row for:
+   * the scoring threads share the matrix and only read it
+   */
+  private IntCollection trainingItems(int user_id) {
+    IBooleanMatrix user_matrix = training_data.userMatrix();
+    return user_id < user_matrix.numberOfRows() ? user_matrix.get(user_id) : NO_ITEMS;
+  }
+
+  private static HashMap<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+    HashMap<String, String> parameters = new HashMap<String, String>();
+    if (query == null)
+      return parameters;
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq <= 0)
+        continue;
+      parameters.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+    }
+    return parameters;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream os = exchange.getResponseBody();
+    os.write(bytes);
+    os.close();
+  }
+
+}
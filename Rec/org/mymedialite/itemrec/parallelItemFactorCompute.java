@@ -1,21 +1,21 @@
 package org.mymedialite.itemrec;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 
-import org.latlab.util.Variable;
 import org.mymedialite.data.IPosOnlyFeedback;
+import org.mymedialite.datatype.DenseDoubleMatrix;
 import org.mymedialite.datatype.EntityMappingVariable;
-import org.mymedialite.datatype.Matrix;
+import org.mymedialite.datatype.IBooleanMatrix;
 
-import it.unimi.dsi.fastutil.ints.IntCollection;
-import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 /**
+ * Computes the item factors n(g|Z_k=1,D,m) = sum_{u consumed g} P(Z_k=1|u,m) / sum_u P(Z_k=1|u,m)
+ * as a sparse x dense product of the item-user matrix (in CSR form) and the user factors.
  *
  * @author fkhawar
  *
@@ -24,38 +24,67 @@ public class parallelItemFactorCompute {
 
 	private static ForkJoinPool threadPool = null;
 
+	/**
+	 * Number of work chunks per core, so that work stealing can even out chunks that run slow
+	 */
+	private static final int CHUNKS_PER_CORE = 4;
+
 	public parallelItemFactorCompute() {
 
 	}
-	public void parallelItemFactorCompute1(Collection<Integer> candidate_items,Matrix<Double> itemFactors,
+
+	/**
+	 * @param relevantUsers not used: every consuming user contributes to an item factor, as the
+	 * normalization is also taken over all users
+	 */
+	public void parallelItemFactorCompute1(Collection<Integer> candidate_items,DenseDoubleMatrix itemFactors,
 			IPosOnlyFeedback feedback,EntityMappingVariable EntityMapping,Object[] _variables,
 			boolean timeInGroupPreference,IPosOnlyFeedback _timeRestrictedtrainData,
-			Matrix<Double>  userFactors, ArrayList<Double> normalization,List<Integer> relevantUsers){
+			DenseDoubleMatrix userFactors, double[] normalization,List<Integer> relevantUsers){
+
+		IBooleanMatrix itemMatrix = timeInGroupPreference ? _timeRestrictedtrainData.itemMatrix() : feedback.itemMatrix();
 
+		int numItems = feedback.maxItemID()+1;
 
-		HashMap<Integer,Boolean> candidateUsers = new HashMap<Integer,Boolean>();
-		for (int user: feedback.allUsers()) {
-			// if we have a list of candidate users and that list does not contain this user then we just skip it
-			if(relevantUsers!=null && !relevantUsers.contains(user)){
-				candidateUsers.put(user, false);
+		// the items to compute: candidates (if given) that are also in the model
+		BitSet itemFilter = new BitSet(numItems);
+		if (candidate_items != null) {
+			for (int item : candidate_items) {
+				if (item >= 0 && item < numItems)
+					itemFilter.set(item);
 			}
-			else
-				candidateUsers.put(user, true);
+		} else {
+			itemFilter.set(0, numItems);
+		}
+		// if the model is leaened on test set items than all item in trainset will not be in the model, so we skip them
+		for (int item = itemFilter.nextSetBit(0); item >= 0; item = itemFilter.nextSetBit(item + 1)) {
+			if (EntityMapping.internal_to_original.get(item) == null)
+				itemFilter.clear(item);
+		}
 
+		// CSR row pointers of the filtered item-user matrix. Reading the rows here, on one thread, also
+		// makes sure the matrix does not grow during the parallel phase
+		int[] items = new int[itemFilter.cardinality()];
+		int[] rowPtr = new int[items.length + 1];
+		int n = 0;
+		for (int item = itemFilter.nextSetBit(0); item >= 0; item = itemFilter.nextSetBit(item + 1)) {
+			items[n] = item;
+			rowPtr[n + 1] = rowPtr[n] + itemMatrix.get(item).size();
+			n++;
 		}
 
-		parallelItemFactorComputation.Context context =
-				new parallelItemFactorComputation.Context(candidate_items,EntityMapping, _variables, feedback, itemFactors, timeInGroupPreference,
-						_timeRestrictedtrainData, userFactors, normalization,candidateUsers);
+		double NumberOfProcessorsPower2 = Math.floor(Math.log10(Runtime.getRuntime().availableProcessors())/Math.log10(2));
+		int numChunks = (int) Math.pow(2, NumberOfProcessorsPower2) * CHUNKS_PER_CORE;
 
+		parallelItemFactorComputation.Context context =
+				new parallelItemFactorComputation.Context(items, rowPtr, itemMatrix, itemFactors,
+						userFactors, normalization, _variables.length, numChunks);
 
 		parallelItemFactorComputation computation =
-			new parallelItemFactorComputation(context, 0,feedback.maxItemID()+1 );
-
+			new parallelItemFactorComputation(context, 0, context.chunkStart.length - 1);
 
 		getForkJoinPool().invoke(computation);
 
-
 	}
 
 	protected static ForkJoinPool getForkJoinPool() {
@@ -71,120 +100,115 @@ public class parallelItemFactorCompute {
 		public static class Context {
 
 			/**
-			 * Threshold at after which we would split into 2, i.e maximum variable size for one thread
-			 * to iterate over
+			 * The items to compute, in increasing order
+			 */
+			public final int[] items;
+			/**
+			 * CSR row pointers: the consumers of items[i] are colIdx[rowPtr[i]] ... colIdx[rowPtr[i+1]-1]
 			 */
-			public final int splitThreshold;
-			public Collection<Integer> candidate_items;
-			public EntityMappingVariable EntityMapping;
-			public Object[] _variables;
-			public IPosOnlyFeedback feedback;
-			public Matrix<Double> itemFactors;
-			public boolean timeInGroupPreference;
-			public IPosOnlyFeedback _timeRestrictedtrainData;
-			public Matrix<Double>  userFactors;
-			public  ArrayList<Double> normalization;
-			public HashMap<Integer,Boolean> candidateUsers;
-
-			public Context(Collection<Integer> candidate_items,EntityMappingVariable EntityMapping, Object[] _variables
-					,IPosOnlyFeedback feedback, Matrix<Double> itemFactors, boolean timeInGroupPreference,
-					IPosOnlyFeedback _timeRestrictedtrainData, Matrix<Double>  userFactors,  ArrayList<Double> normalization, HashMap<Integer,Boolean> candidateUsers) {
-
-				this.candidate_items = candidate_items;
-				this.EntityMapping =EntityMapping;
-				this._variables =  _variables;
-				this.feedback = feedback;
+			public final int[] rowPtr;
+			/**
+			 * CSR column indices (user IDs), filled by the chunk that owns the rows
+			 */
+			public final int[] colIdx;
+			/**
+			 * Chunk boundaries (indices into items) with about the same number of non-zeros each
+			 */
+			public final int[] chunkStart;
+			public final IBooleanMatrix itemMatrix;
+			public final DenseDoubleMatrix itemFactors;
+			public final DenseDoubleMatrix userFactors;
+			public final double[] normalization;
+			public final int numFactors;
+
+			public Context(int[] items, int[] rowPtr, IBooleanMatrix itemMatrix, DenseDoubleMatrix itemFactors,
+					DenseDoubleMatrix userFactors, double[] normalization, int numFactors, int numChunks) {
+
+				this.items = items;
+				this.rowPtr = rowPtr;
+				this.colIdx = new int[rowPtr[items.length]];
+				this.itemMatrix = itemMatrix;
 				this.itemFactors = itemFactors;
-				this.timeInGroupPreference = timeInGroupPreference;
-				this._timeRestrictedtrainData = _timeRestrictedtrainData;
 				this.userFactors = userFactors;
 				this.normalization = normalization;
-				this.candidateUsers = candidateUsers;
-				double NumberOfProcessorsPower2 = Math.floor(Math.log10(Runtime.getRuntime().availableProcessors())/Math.log10(2));
-
-				splitThreshold =(int) Math.ceil((feedback.maxItemID()+1) / Math.pow(2,NumberOfProcessorsPower2));
-
+				this.numFactors = numFactors;
+
+				// cost of an item is its number of consumers times numFactors, plus a constant for the row itself
+				long totalCost = rowPtr[items.length] + (long) items.length;
+				numChunks = Math.max(1, Math.min(numChunks, items.length));
+				int[] starts = new int[numChunks + 1];
+				int chunk = 1;
+				for (int i = 0; i < items.length && chunk < numChunks; i++) {
+					long cost = rowPtr[i] + (long) i;
+					if (cost * numChunks >= totalCost * chunk)
+						starts[chunk++] = i;
+				}
+				for ( ; chunk <= numChunks; chunk++)
+					starts[chunk] = items.length;
+				this.chunkStart = starts;
 			}
 
 		}
 
 		private final Context context;
-		private final int start;
-		private final int length;
-
+		private final int startChunk;
+		private final int endChunk;
 
-
-		public parallelItemFactorComputation(Context context, int start, int length) {
+		public parallelItemFactorComputation(Context context, int startChunk, int endChunk) {
 			this.context = context;
-			this.start = start;
-			this.length = length;
+			this.startChunk = startChunk;
+			this.endChunk = endChunk;
 
 		}
 
 		@Override
 		protected void compute() {
-			if (length <= context.splitThreshold) {
+			if (endChunk - startChunk <= 1) {
 				computeDirectly();
 				return;
 			}
 
-			int split = length / 2;
-			parallelItemFactorComputation c1 = new parallelItemFactorComputation(context, start, split);
-			parallelItemFactorComputation c2 =
-					new parallelItemFactorComputation(context, start + split, length - split);
+			int split = (startChunk + endChunk) / 2;
+			parallelItemFactorComputation c1 = new parallelItemFactorComputation(context, startChunk, split);
+			parallelItemFactorComputation c2 = new parallelItemFactorComputation(context, split, endChunk);
 			invokeAll(c1, c2);
 
-
-
 		}
 
 		private void computeDirectly() {
-			for(int item = start ; item < start+length ; item++){
-
-				// if we have a list of candidate items and that list does not contain this item then we just skip it
-				if(context.candidate_items !=null && !context.candidate_items.contains(item)){
-					continue;
-				}
-
-				//ArrayList<Double> iList = new ArrayList<Double>();
-
-				// if the model is leaened on test set items than all item in trainset will not be in the model, so we skip them
-				if(context.EntityMapping.internal_to_original.get(item)== null){
-					continue;
-				}
-
-				// get users who consumed this item
-				IntCollection consumingUsers;
-
-				if(context.timeInGroupPreference == false)
-					consumingUsers = context.feedback.itemMatrix().get(item);
+			if (startChunk >= endChunk)
+				return;
 
-				else {
-					consumingUsers = context._timeRestrictedtrainData.itemMatrix().get(item);
+			int[] rowPtr = context.rowPtr;
+			int[] colIdx = context.colIdx;
+			int f = context.numFactors;
+			double[] userData = context.userFactors.data;
+			double[] itemData = context.itemFactors.data;
+			double[] weightedCount = new double[f]; // sum_j(n(g|u_j,D)*P(Z=1|u_j,m))
+
+			for (int i = context.chunkStart[startChunk] ; i < context.chunkStart[endChunk] ; i++) {
+
+				// fill this row of the CSR matrix, sorted so the user factor rows are read in memory order
+				int p = rowPtr[i];
+				IntIterator it = context.itemMatrix.get(context.items[i]).iterator();
+				while (it.hasNext())
+					colIdx[p++] = it.nextInt();
+				Arrays.sort(colIdx, rowPtr[i], rowPtr[i + 1]);
+
+				// one pass over the consuming users accumulates all factors
+				Arrays.fill(weightedCount, 0);
+				for (int q = rowPtr[i] ; q < rowPtr[i + 1] ; q++) {
+					int offset = colIdx[q] * f;
+					for (int k = 0 ; k < f ; k++)
+						weightedCount[k] += userData[offset + k];
 				}
 
-				for (int i = 0 ; i < context._variables.length ; i++){
-
-					double weightedCount = 0; // sum_j(n(g|u_j,D)*P(Z=1|u_j,m))
-
-					for(int user : consumingUsers)	{// for all users who consumed this item
-
-						Double pZ1givenU = context.userFactors.get(user,i);
-
-						weightedCount = weightedCount + pZ1givenU;
-
-					}
-
-
-					context.itemFactors.set(item, i, weightedCount/context.normalization.get(i));
-				}
+				int itemOffset = context.items[i] * f;
+				for (int k = 0 ; k < f ; k++)
+					itemData[itemOffset + k] = weightedCount[k] / context.normalization[k];
 			}
 		}
 
-
-
 	}
 
-
-
 }
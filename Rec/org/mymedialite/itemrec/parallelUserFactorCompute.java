@@ -1,35 +1,29 @@
 package org.mymedialite.itemrec;
 
 import it.unimi.dsi.fastutil.ints.IntCollection;
-import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntIterator;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 
-import org.latlab.graph.AbstractNode;
-import org.latlab.learner.CliqueTreePropagationGroupRec;
 import org.latlab.model.BayesNet;
 import org.latlab.model.BeliefNode;
 import org.latlab.model.LTM;
-import org.latlab.reasoner.CliqueNode;
-import org.latlab.reasoner.CliqueTree;
-import org.latlab.reasoner.CliqueTreePropagationRec;
-import org.latlab.util.Function;
+import org.latlab.reasoner.CompiledCliqueTree;
+import org.latlab.reasoner.CompiledCliqueTreeBatchPropagation;
+import org.latlab.reasoner.CompiledCliqueTreePropagation;
+import org.latlab.reasoner.IslandMessageTable;
 import org.latlab.util.Variable;
 import org.mymedialite.data.IPosOnlyFeedback;
+import org.mymedialite.datatype.DenseDoubleMatrix;
 import org.mymedialite.datatype.EntityMappingVariable;
-import org.mymedialite.datatype.Matrix;
 
 /**
  *
@@ -43,86 +37,83 @@ public class parallelUserFactorCompute {
 
 	}
 
-	protected HashMap<LinkedHashSet<Variable>,Map<AbstractNode,Function>> _defaultMessages = null;
-	protected HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>> _defaultAlphas = null;
-	protected HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>> _defaultLogAlphas = null;
-	protected HashMap<LinkedHashSet<Variable>,LinkedList<Function>> _defaultfunctions = null;
-	protected HashMap<LinkedHashSet<Variable>,LinkedHashSet<CliqueNode>> _defualtQualifiedNeiMsgs = null;
-	protected HashMap<LinkedHashSet<Variable>,Function> _defaultmsgsProd = null;
-
-	protected static HashMap<Variable,Double> _defaultposteriors = new HashMap<Variable,Double>();
+	/**
+	 * P(Z=1) of each latent variable in _variables when no evidence is set, indexed like _variables
+	 */
+	protected static double[] _defaultposteriors = null;
 
 	private static ForkJoinPool threadPool = null;
-	public ArrayList<Double> normalization;
+	public double[] normalization;
+
+	/**
+	 * If not null, users with the same evidence as an earlier user take its posteriors from here instead of propagating
+	 */
+	public PosteriorCache cache = null;
+
+	/**
+	 * The number of users propagated together in one sweep over the compiled clique tree, 1 to propagate user by user
+	 * and 0 to choose by the tree (see CompiledCliqueTreeBatchPropagation.chooseBatchSize)
+	 */
+	public int batchSize = 0;
+
+	/**
+	 * If true, the propagation of a user starts from the messages of the user before, and only the subtrees whose
+	 * evidence changed are collected again
+	 */
+	public boolean incrementalPropagation = true;
+
+	/**
+	 * If true, the users are propagated in the order of orderUsersByEvidence() instead of by ID, so consecutive users
+	 * of a task share most of their evidence
+	 */
+	public boolean orderUsersByEvidence = true;
 
 	public void parallelUserFactorCompute1(EntityMappingVariable EntityMapping, Object[] _variables
 			,IPosOnlyFeedback feedback,  boolean timeUserPreference,
 			boolean timeInGroupPreference, IPosOnlyFeedback _timeRestrictedtrainData,
-			Matrix<Double>  userFactors,
+			DenseDoubleMatrix userFactors,
 			boolean recomputeUserFactors,List<Integer> test_users,int userHistorySize,
 			HashMap<Integer,List<Map.Entry<Integer, Double>>> timeData,LTM _model,
 			HashMap<Variable, HashSet<Integer>> variableUserGroupMap,HashSet<String> topLevel){
 
 
-		// create a group of ctp based on the parallelism of the machine, see parallel em to do this via chickering....
-		double NumberOfProcessorsPower2 = Math.floor(Math.log10(Runtime.getRuntime().availableProcessors())/Math.log10(2));
-
-		CliqueTreePropagationGroupRec ctps = CliqueTreePropagationGroupRec.constructFromModel(_model,
-					16);
-		//CliqueTreePropagationGroupRec ctps = CliqueTreePropagationGroupRec.constructFromModel(_model,
-		//		getForkJoinPool().getParallelism()+1);
-
-		/*
-		 * Below code chunk is for implementing the restricted propagation over the tree. Specifically computing defualt messages. It is a littel inefficient simnce the same computation is done for all ctps
-		 */
-		_defaultMessages = new HashMap<LinkedHashSet<Variable>,Map<AbstractNode,Function>>();
-		_defaultAlphas = new HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>>();
-		_defaultLogAlphas = new HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>>();
-		_defaultfunctions = new HashMap<LinkedHashSet<Variable>,LinkedList<Function>>();
-		_defualtQualifiedNeiMsgs = new HashMap<LinkedHashSet<Variable>,LinkedHashSet<CliqueNode>>();
-		_defaultmsgsProd = new HashMap<LinkedHashSet<Variable>,Function>();
-
-
-		BlockingQueue<CliqueTreePropagationRec> queue = new ArrayBlockingQueue<CliqueTreePropagationRec>(ctps.capacity);
-		CliqueTreePropagationRec ctp1 = ctps.take();
-
-		// get and save the default messages, these messages dont contain the reference to the actual messages
-		CliqueTree defaultCtp = ctp1.makeDefaultMessageMap(_defaultMessages,_defaultAlphas, _defaultLogAlphas, _defaultfunctions, _defualtQualifiedNeiMsgs,
-		 _defaultmsgsProd);
-		ctps.put(ctp1);
-
-		for(int i = 0 ; i < ctps.capacity ; i++) {
-			CliqueTreePropagationRec ctp = ctps.take();
-			// copy the default messages to ctp
-			ctp.setDefaultMessages(_defaultMessages,_defaultAlphas, _defaultLogAlphas,_defaultfunctions, _defualtQualifiedNeiMsgs,
-			 _defaultmsgsProd,defaultCtp);
-			queue.add(ctp);
+		// one compiled clique tree shared by all threads, each thread propagates with its own buffers
+		CompiledCliqueTree tree = compileCliqueTree(_model, topLevel);
+		int[] variableIndices = indicesOf(tree, _variables);
 
+		// get the posterior of the latent variables at the selected level with no evidence set
+		_defaultposteriors = computeDefaultPosteriors(tree, variableIndices);
+
+		// the users to propagate and the prefix sums of their estimated costs. Users without evidence in the
+		// model get the default posteriors here, so they make no tasks
+		int numUsers = feedback.maxUserID()+1;
+		int[] order = null;
+		long[] costs = null;
+		if (!timeUserPreference) {
+			costs = estimateUserCosts(tree, EntityMapping, feedback);
+			if (orderUsersByEvidence)
+				order = orderUsersByEvidence(tree, EntityMapping, feedback);
 		}
 
-		for(int i = 0 ; i < ctps.capacity ; i++) {
-
-			CliqueTreePropagationRec ctp = null;
-			try {
-				 ctp = queue.take();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		double[] defaultNormalization = new double[_variables.length];
+		int[] users = new int[numUsers];
+		long[] costPrefix = new long[numUsers + 1];
+		int numPropagated = 0;
+		for (int k = 0 ; k < numUsers ; k++){
+			int u = order == null ? k : order[k];
+			if (costs != null && costs[u] == 0) {
+				for(int i = 0 ; i < _variables.length ; i++){
+					defaultNormalization[i] += _defaultposteriors[i];
+					userFactors.setDouble(u, i, _defaultposteriors[i]);
+				}
+				continue;
 			}
-
-			ctps.put(ctp);
-
+			users[numPropagated] = u;
+			costPrefix[numPropagated + 1] = costPrefix[numPropagated] + (costs == null ? 1 : costs[u]);
+			numPropagated++;
 		}
-
-		// get the posterior of the latent variables at the selected level with no evidence set
-		CliqueTreePropagationRec ctp = ctps.take();
-		for(int i = 0 ; i < _variables.length ; i++){
-			Function posterior = ctp.computeBelief((Variable)_variables[i]);
-
-			Double pZequal1 = posterior.getCells()[1]; // get P(Z=1|u,m)
-			_defaultposteriors.put((Variable)_variables[i], pZequal1);
-		}
-		ctps.put(ctp);
+		users = Arrays.copyOf(users, numPropagated);
+		costPrefix = Arrays.copyOf(costPrefix, numPropagated + 1);
 
 
 		parallelUserFactorComputation.Context context =
@@ -132,22 +123,187 @@ public class parallelUserFactorCompute {
 					userFactors,
 					 recomputeUserFactors,test_users,userHistorySize,
 					timeData,_model,
-					ctps,variableUserGroupMap,topLevel);
+					tree,variableIndices,variableUserGroupMap,topLevel,cache,
+					CompiledCliqueTreeBatchPropagation.chooseBatchSize(tree, batchSize),
+					users,costPrefix,incrementalPropagation);
 
 
 
 		parallelUserFactorComputation computation =
-			new parallelUserFactorComputation(context, 0,feedback.maxUserID()+1 );
+			new parallelUserFactorComputation(context, 0,numPropagated );
 
 
 		getForkJoinPool().invoke(computation);
 
 		normalization = computation.getNormalization();
+		for(int i = 0 ; i < normalization.length ; i++)
+			normalization[i] += defaultNormalization[i];
+
 
+	}
 
+	/**
+	 * Compile the clique tree of the model for restricted propagation with positive-only evidence,
+	 * with the island messages tabulated
+	 * @param _model the latent tree model
+	 * @param topLevel names of the top level latent variables
+	 */
+	public static CompiledCliqueTree compileCliqueTree(LTM _model, HashSet<String> topLevel){
+		return new CompiledCliqueTree(_model, topLevel, new IslandMessageTable(_model));
 	}
 
-	public ArrayList<Double> getNorm() {
+	/**
+	 * @return the number of each latent variable of _variables in the compiled tree
+	 */
+	public static int[] indicesOf(CompiledCliqueTree tree, Object[] _variables){
+		int[] indices = new int[_variables.length];
+		for(int i = 0 ; i < _variables.length ; i++){
+			indices[i] = tree.indexOf((Variable)_variables[i]);
+			if (indices[i] < 0)
+				throw new IllegalArgumentException("Variable " + _variables[i] + " is not in the model");
+		}
+		return indices;
+	}
+
+	/**
+	 * P(Z=1) of each latent variable when no evidence is set
+	 * @param variableIndices the numbers of the latent variables in the compiled tree, from indicesOf()
+	 */
+	public static double[] computeDefaultPosteriors(CompiledCliqueTree tree, int[] variableIndices){
+		CompiledCliqueTreePropagation ctp = new CompiledCliqueTreePropagation(tree);
+		double[] posteriors = new double[variableIndices.length];
+		for(int i = 0 ; i < variableIndices.length ; i++){
+			posteriors[i] = ctp.computeBelief(variableIndices[i], 1); // get P(Z=1|u,m)
+		}
+		return posteriors;
+	}
+
+	/**
+	 * Compute P(Z=1|u,m) of each latent variable for one user on a compiled clique tree. Latent variables
+	 * outside the propagation range of the evidence keep their default posteriors.
+	 * @param ctp a propagation owned by the calling thread
+	 * @param evidenceVar the manifest variables consumed by the user
+	 * @param variableIndices the numbers of the latent variables in the compiled tree, from indicesOf()
+	 * @param factors receives P(Z=1|u,m), indexed like variableIndices
+	 * @return the number of evidence variables set
+	 */
+	public static int computeUserFactor(CompiledCliqueTreePropagation ctp, Set<Variable> evidenceVar,
+			int[] variableIndices, double[] factors){
+		return computeUserFactor(ctp, evidenceVar, variableIndices, factors, false);
+	}
+
+	/**
+	 * Same as computeUserFactor(), but if incremental is true the propagation starts from the messages of
+	 * the user propagated before with ctp, see CompiledCliqueTreePropagation.propagateIncrementally()
+	 */
+	public static int computeUserFactor(CompiledCliqueTreePropagation ctp, Set<Variable> evidenceVar,
+			int[] variableIndices, double[] factors, boolean incremental){
+
+		int countEvidenceSet = ctp.setPositiveOnlyEvidence(evidenceVar);
+		if (incremental)
+			ctp.propagateIncrementally();
+		else
+			ctp.propagate();
+
+		for(int i = 0 ; i < variableIndices.length ; i++){
+			factors[i] = ctp.computeBelief(variableIndices[i], 1); // get P(Z=1|u,m)
+		}
+
+		return countEvidenceSet;
+	}
+
+	/**
+	 * Get the numbers of the manifest variables consumed by a user in the compiled tree
+	 * @param row the internal IDs of the consumed items, may be null
+	 * @param leaves receives the numbers, at least as long as the number of manifest variables
+	 * @return the number of consumed items that are in the model
+	 */
+	private static int evidenceIndices(CompiledCliqueTree tree, EntityMappingVariable EntityMapping,
+			IntCollection row, int[] leaves){
+		int n = 0;
+		if (row == null)
+			return n;
+		IntIterator it = row.iterator();
+		while (it.hasNext()) {
+			Variable var = EntityMapping.internal_to_original.get(it.nextInt());
+			int v = var == null ? -1 : tree.indexOf(var);
+			if (v >= 0)
+				leaves[n++] = v;
+		}
+		return n;
+	}
+
+	/**
+	 * Estimate the cost of propagating each user: the number of evidence variables plus the number of latent
+	 * variables in the propagation range, which grows with the number of top level subtrees the evidence touches
+	 * @return the cost of each user 0..maxUserID, 0 for users without evidence in the model
+	 */
+	public static long[] estimateUserCosts(CompiledCliqueTree tree, EntityMappingVariable EntityMapping,
+			IPosOnlyFeedback feedback){
+		int numUsers = feedback.maxUserID()+1;
+		long[] costs = new long[numUsers];
+		int[] leaves = new int[tree.size()];
+		for (int u = 0 ; u < numUsers ; u++){
+			int n = evidenceIndices(tree, EntityMapping, feedback.userMatrix().get(u), leaves);
+			if (n > 0)
+				costs[u] = n + tree.estimateRangeSize(leaves, n);
+		}
+		return costs;
+	}
+
+	/**
+	 * Order the users by their evidence: by the smallest and then the second smallest number of their consumed
+	 * manifest variables in the compiled tree. The tree numbers the variables level by level, so the manifest
+	 * variables of a subtree are close together, and users next to each other in the order share most of their
+	 * propagation range. Each task of the user factor computation then gets a run of similar users. Users without
+	 * evidence come first, ties keep the order of the user IDs.
+	 * @return the IDs of all users 0..maxUserID in the new order
+	 */
+	public static int[] orderUsersByEvidence(CompiledCliqueTree tree, EntityMappingVariable EntityMapping,
+			IPosOnlyFeedback feedback){
+		int numUsers = feedback.maxUserID()+1;
+
+		// the smallest and second smallest numbers plus one, 0 if there is none
+		int[] first = new int[numUsers];
+		int[] second = new int[numUsers];
+		int[] leaves = new int[tree.size()];
+		for (int u = 0 ; u < numUsers ; u++){
+			int n = evidenceIndices(tree, EntityMapping, feedback.userMatrix().get(u), leaves);
+			for (int k = 0 ; k < n ; k++) {
+				int v = leaves[k];
+				if (first[u] == 0 || v + 1 < first[u]) {
+					second[u] = first[u];
+					first[u] = v + 1;
+				} else if (v + 1 != first[u] && (second[u] == 0 || v + 1 < second[u])) {
+					second[u] = v + 1;
+				}
+			}
+		}
+
+		// radix sort, by the second number and then stably by the first
+		int[] users = new int[numUsers];
+		for (int u = 0 ; u < numUsers ; u++)
+			users[u] = u;
+		users = countingSort(users, second, tree.size() + 1);
+		return countingSort(users, first, tree.size() + 1);
+	}
+
+	/**
+	 * Stable sort of users by keys in 0..range-1
+	 */
+	private static int[] countingSort(int[] users, int[] keys, int range){
+		int[] start = new int[range + 1];
+		for (int u : users)
+			start[keys[u] + 1]++;
+		for (int k = 0 ; k < range ; k++)
+			start[k + 1] += start[k];
+		int[] sorted = new int[users.length];
+		for (int u : users)
+			sorted[start[keys[u]]++] = u;
+		return sorted;
+	}
+
+	public double[] getNorm() {
 		return normalization;
 	}
 
@@ -159,32 +315,44 @@ public class parallelUserFactorCompute {
 		return threadPool;
 	}
 
+	/**
+	 * The number of tasks per thread the users are split into
+	 */
+	public static final int TASKS_PER_THREAD = 8;
+
 	@SuppressWarnings("serial")
 	public static class parallelUserFactorComputation extends RecursiveAction {
 
 		public static class Context {
-			public final int splitThreshold;
+			public final long splitThreshold; // the estimated cost up to which a task propagates its users itself
 			public final EntityMappingVariable EntityMapping;
 			public final Object[] _variables;
 			public final IPosOnlyFeedback feedback;
-			public Matrix<Double> userFactors;
+			public DenseDoubleMatrix userFactors;
 			public final boolean timeUserPreference;
 			public final boolean timeInGroupPreference;
 			public final boolean recomputeUserFactors;
 			public final List<Integer> test_users;
 			public final int userHistorySize;
-			public final CliqueTreePropagationGroupRec ctps;
+			public final CompiledCliqueTree tree;
+			public final int[] variableIndices; // the numbers of _variables in tree
 			public final Set<Variable>  ManifestVars;
 			public final HashSet<String> topLevel; // Names of the top level latent variables
+			public final PosteriorCache cache;
+			public final int batchSize;
+			public final int[] users; // the users in the order to propagate them
+			public final long[] costPrefix; // costPrefix[k] is the estimated cost of users[0..k-1]
+			public final boolean incremental; // whether to propagate incrementally from the user before
 
 			public Context(EntityMappingVariable EntityMapping, Object[] _variables
 					,IPosOnlyFeedback feedback, boolean timeUserPreference,
 					boolean timeInGroupPreference, IPosOnlyFeedback _timeRestrictedtrainData,
-					Matrix<Double>  userFactors,
+					DenseDoubleMatrix userFactors,
 					boolean recomputeUserFactors,List<Integer> test_users,int userHistorySize,
 					HashMap<Integer,List<Map.Entry<Integer, Double>>> timeData,LTM _model,
-					CliqueTreePropagationGroupRec ctps,HashMap<Variable, HashSet<Integer>> variableUserGroupMap,
-					HashSet<String> topLevel) {
+					CompiledCliqueTree tree,int[] variableIndices,HashMap<Variable, HashSet<Integer>> variableUserGroupMap,
+					HashSet<String> topLevel, PosteriorCache cache, int batchSize,
+					int[] users, long[] costPrefix, boolean incremental) {
 
 				this.EntityMapping = EntityMapping;
 				this._variables =  _variables;
@@ -195,23 +363,29 @@ public class parallelUserFactorCompute {
 				this.timeInGroupPreference = timeInGroupPreference;
 				this.test_users = test_users;
 				this.userHistorySize= userHistorySize;
-				this.ctps = ctps;
+				this.tree = tree;
+				this.variableIndices = variableIndices;
 				this.ManifestVars= _model.getManifestVars();
 				this.topLevel = topLevel;
+				this.cache = cache;
+				this.batchSize = batchSize;
+				this.users = users;
+				this.costPrefix = costPrefix;
+				this.incremental = incremental;
 
 
-				double NumberOfProcessorsPower2 = Math.floor(Math.log10(Runtime.getRuntime().availableProcessors())/Math.log10(2));
-
-				splitThreshold =(int) Math.ceil((feedback.maxUserID()+1) / (double) Math.pow(2, NumberOfProcessorsPower2));
-				System.out.println(splitThreshold+","+ (feedback.maxUserID()+1) );
+				// several tasks per thread of about the same cost, so threads that finish early steal the rest
+				long totalCost = costPrefix[costPrefix.length - 1];
+				int tasks = TASKS_PER_THREAD * getForkJoinPool().getParallelism();
+				splitThreshold = Math.max(1, (totalCost + tasks - 1) / tasks);
 			}
 		}
 		private final Context context;
 		private final int start;
 		private final int length1;
-		public ArrayList<Double> normalization;
+		public double[] normalization;
 
-		public ArrayList<Double> getNormalization() {
+		public double[] getNormalization() {
 			return normalization;
 		}
 
@@ -224,16 +398,20 @@ public class parallelUserFactorCompute {
 		@Override
 		protected void compute() {
 
-			normalization = new ArrayList<Double>(context._variables.length);
+			normalization = new double[context._variables.length];
 
-			if (length1 <= context.splitThreshold) {
-				System.out.println("start:"+start+","+"length"+length1);
+			long[] costPrefix = context.costPrefix;
+			if (length1 <= 1 || costPrefix[start + length1] - costPrefix[start] <= context.splitThreshold) {
 				computeDirectly();
-				System.out.println("Core for user "+start+" till user "+ (start+length1) +" completed");
 				return;
 			}
 
-			int split = length1 / 2;
+			// split where half of the cost is reached
+			long half = costPrefix[start] + (costPrefix[start + length1] - costPrefix[start]) / 2;
+			int split = Arrays.binarySearch(costPrefix, start, start + length1 + 1, half);
+			if (split < 0)
+				split = -split - 1;
+			split = Math.min(Math.max(split - start, 1), length1 - 1);
 			parallelUserFactorComputation c1 = new parallelUserFactorComputation(context, start, split);
 			parallelUserFactorComputation c2 =
 					new parallelUserFactorComputation(context, start + split, length1 - split);
@@ -242,54 +420,32 @@ public class parallelUserFactorCompute {
 			invokeAll(c1, c2);
 
 			for (int i = 0 ; i < context._variables.length ; i++) {
-				normalization.add(i, c1.normalization.get(i)+c2.normalization.get(i));
+				normalization[i] = c1.normalization[i]+c2.normalization[i];
 			}
 
 
 
 
-		}
-
-		/**
-		 * Get the recent user (userHistorySize) ratings from timeData for a particular user
-		 * @param the user for who the recent rating need to be gotten
-		 * @return
-		 */
-		public static IntCollection getRecentUserRatings(int user, int userHistorySize,HashMap<Integer, List<Map.Entry<Integer, Double>>> timeData ){
-			IntCollection recentRatings = new IntOpenHashSet();
-			List<Map.Entry<Integer, Double>> sortedItems=timeData.get(user);
-
-			for (int i = 0 ; i < userHistorySize ; i++){
-
-	    		if (i >= sortedItems.size()){ // b/c we increase length we need this condition to avoid index out of bounds
-	    			break;
-	    		}
-
-	    		recentRatings.add(sortedItems.get(i).getKey());
-	    	}
-
-			return recentRatings;
-
 		}
 
 		private void computeDirectly() {
 
-			CliqueTreePropagationRec posteriorCtp = context.ctps.take();
-
+			CompiledCliqueTreePropagation posteriorCtp = null;
+			CompiledCliqueTreeBatchPropagation batch = null;
+			if (context.batchSize > 1)
+				batch = new CompiledCliqueTreeBatchPropagation(context.tree, context.batchSize);
+			else
+				posteriorCtp = new CompiledCliqueTreePropagation(context.tree);
 
+			// the users and evidence patterns of the batch
+			int[] batchUsers = new int[context.batchSize];
+			PosteriorCache.Signature[] batchSignatures = new PosteriorCache.Signature[context.batchSize];
 
-			Set<CliqueNode> lastPropagationRangeCliques = null;
-
-			// initialize the normalization
-			for(int i = 0 ; i < context._variables.length ; i++){
-				normalization.add(i,0.0);
-			}
+			double[] factors = new double[context._variables.length];
 
 			// Go over the dataSet user wise and get P(Z | u, m) for each Z for each u
-			for (int u = start ; u < start+length1  ; u++){
-
-				posteriorCtp.clearEvidence();
-
+			for (int k = start ; k < start+length1  ; k++){
+				int u = context.users[k];
 
 				// See if only recent transactions have to be used for user latent vector
 				IntCollection row=null;
@@ -300,55 +456,66 @@ public class parallelUserFactorCompute {
 
 				}
 
-				Set<Variable> evidenceVar = context.EntityMapping.toOriginalIDSet(row); // get the corresponding evidence variables
-
-				// set evidence of the user data case
-				int countEvidenceSet = posteriorCtp.setPositiveOnlyEvidence(evidenceVar, context.ManifestVars);
-
-				HashSet<Variable> lastPropvars = new HashSet<Variable>();
-
-				//set the _focusedSubtree in the clique tree
-				if(countEvidenceSet != 0) {
-
-					if (lastPropagationRangeCliques != null)
-						posteriorCtp.resetMessages(lastPropagationRangeCliques);
-
-					lastPropagationRangeCliques =  posteriorCtp.findAndSetPropagationRange(context.topLevel);
-					for (CliqueNode clique : lastPropagationRangeCliques) {
-						lastPropvars.addAll(clique.getVariables());
-					}
-					posteriorCtp.propagate();
+				// users with the same evidence have the same posteriors
+				PosteriorCache.Signature signature = null;
+				boolean cached = false;
+				if (context.cache != null) {
+					signature = PosteriorCache.signature(row, context.EntityMapping);
+					cached = context.cache.get(signature, factors);
 				}
 
+				if (cached) {
+					setUserFactors(u, factors);
+					continue;
+				}
 
+				Set<Variable> evidenceVar = context.EntityMapping.toOriginalIDSet(row); // get the corresponding evidence variables
 
-				// Calculate P(Z = 1 |u,m)
-
-				//ArrayList<Double> uList = new ArrayList<Double>();
-				for(int i = 0 ; i < context._variables.length ; i++){
-
-					Double pZequal1 = null;
-					Variable latent = (Variable)context._variables[i];
-					if(countEvidenceSet != 0 && lastPropvars.contains(latent)) {
-						Function posterior = posteriorCtp.computeBelief(latent);
-
-						pZequal1 = posterior.getCells()[1]; // get P(Z=1|u,m)
-
-					}
-					else {
-						pZequal1 = _defaultposteriors.get(latent);
+				if (batch == null) {
+					computeUserFactor(posteriorCtp, evidenceVar, context.variableIndices, factors, context.incremental);
+					if (context.cache != null)
+						context.cache.put(signature, factors);
+					setUserFactors(u, factors);
+					continue;
+				}
 
-					}
+				int b = batch.addPositiveOnlyEvidence(evidenceVar);
+				batchUsers[b] = u;
+				batchSignatures[b] = signature;
+				if (batch.isFull())
+					flush(batch, batchUsers, batchSignatures, factors);
+			}
 
+			if (batch != null)
+				flush(batch, batchUsers, batchSignatures, factors);
+		}
 
-					normalization.set(i,(normalization.get(i)+pZequal1));
+		/**
+		 * Propagate the users of a batch in one sweep and set their factors
+		 */
+		private void flush(CompiledCliqueTreeBatchPropagation batch, int[] batchUsers,
+				PosteriorCache.Signature[] batchSignatures, double[] factors) {
+			if (batch.size() == 0)
+				return;
 
-					context.userFactors.set(u, i, pZequal1);
+			batch.propagate();
+			for (int b = 0 ; b < batch.size() ; b++) {
+				for(int i = 0 ; i < factors.length ; i++){
+					factors[i] = batch.computeBelief(context.variableIndices[i], 1, b); // get P(Z=1|u,m)
 				}
-
+				if (context.cache != null)
+					context.cache.put(batchSignatures[b], factors);
+				setUserFactors(batchUsers[b], factors);
 			}
+			batch.clear();
+		}
 
-			context.ctps.put(posteriorCtp);
+		private void setUserFactors(int u, double[] factors) {
+			for(int i = 0 ; i < factors.length ; i++){
+				normalization[i] += factors[i];
+
+				context.userFactors.setDouble(u, i, factors[i]);
+			}
 		}
 	}
 
@@ -0,0 +1,93 @@
+package org.mymedialite.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with power-of-two buckets.
+ *
+ * Bucket 0 counts latencies below 1 microsecond, bucket b counts latencies in [2^(b-1), 2^b) microseconds.
+ * Percentiles are reported as the upper bound of the bucket they fall in, so they are accurate to a factor of two.
+ * @author fkhawar
+ *
+ */
+public class LatencyHistogram {
+
+  /** 2^38 microseconds is about 3 days, anything longer goes to the last bucket */
+  private static final int NUM_BUCKETS = 40;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sumNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Create an empty histogram
+   * @param name the name used by toString()
+   */
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Record one latency
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0)
+      nanos = 0;
+    long micros = nanos / 1000;
+    int bucket = micros == 0 ? 0 : Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    sumNanos.addAndGet(nanos);
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+      max = maxNanos.get();
+  }
+
+  /**
+   * @return the number of recorded latencies
+   */
+  public long count() {
+    return count.get();
+  }
+
+  /**
+   * Get an upper bound of a percentile of the recorded latencies
+   * @param p the percentile, between 0 and 100
+   * @return the upper bound of the bucket holding the percentile, in milliseconds, or 0 if nothing was recorded
+   */
+  public double percentile(double p) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+
+    long rank = (long) Math.ceil(p / 100 * n);
+    long seen = 0;
+    for (int b = 0; b < NUM_BUCKETS; b++) {
+      seen += counts.get(b);
+      if (seen >= rank && seen > 0)
+        return (1L << b) / 1000.0;
+    }
+    return maxNanos.get() / 1e6;
+  }
+
+  /**
+   * @return a one-line summary: count, mean, p50, p90, p99 and max in milliseconds
+   */
+  @Override
+  public String toString() {
+    long n = count.get();
+    double mean = n == 0 ? 0 : sumNanos.get() / 1e6 / n;
+    return name + " count=" + n
+        + " mean=" + String.format("%.3f", mean) + "ms"
+        + " p50<=" + percentile(50) + "ms"
+        + " p90<=" + percentile(90) + "ms"
+        + " p99<=" + percentile(99) + "ms"
+        + " max=" + String.format("%.3f", maxNanos.get() / 1e6) + "ms";
+  }
+
+}
@@ -0,0 +1,38 @@
+package org.latlab.benchmark;
+
+/**
+ * One operation measured by BenchmarkRunner.
+ *
+ * @author fkhawar
+ */
+public abstract class Benchmark {
+
+	/**
+	 * The name in the report, e.g. the method that is measured
+	 */
+	public final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Prepares the state of the operation. It is called once, before the warm up, and is not measured.
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Runs the operation once. The result is consumed by the runner, so that the JIT cannot remove the
+	 * work that computes it.
+	 *
+	 * @return the result of the operation, or any object that depends on it.
+	 */
+	public abstract Object run() throws Exception;
+
+	/**
+	 * Releases the state of the operation, after the measurement.
+	 */
+	public void tearDown() throws Exception {
+	}
+}
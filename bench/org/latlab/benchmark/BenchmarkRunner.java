@@ -0,0 +1,119 @@
+package org.latlab.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Runs benchmarks for a fixed time per iteration and reports their throughput and allocation rate.
+ * </p>
+ *
+ * <p>
+ * Every benchmark gets warm up iterations, so that the hot code is compiled, and then measurement
+ * iterations. An iteration calls the operation until the iteration time is used up. The allocation is
+ * read from the thread MXBean of the JVM, so it only covers the thread that runs the operation and is
+ * reported as 0 if the JVM cannot measure it. Parallel operations should be measured with one thread.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public class BenchmarkRunner {
+
+	public int warmupIterations = 3;
+	public int iterations = 5;
+	public long iterationMillis = 1000;
+
+	/**
+	 * Only benchmarks whose name matches this pattern are run, or all if it is null
+	 */
+	public Pattern filter = null;
+
+	private final com.sun.management.ThreadMXBean _threads;
+
+	/**
+	 * Consumes the results of the operations
+	 */
+	private volatile int _sink;
+
+	public BenchmarkRunner() {
+		com.sun.management.ThreadMXBean threads = null;
+		try {
+			threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (threads.isThreadAllocatedMemorySupported())
+				threads.setThreadAllocatedMemoryEnabled(true);
+			else
+				threads = null;
+		} catch (ClassCastException e) {
+			threads = null;
+		}
+		_threads = threads;
+	}
+
+	/**
+	 * Runs the benchmarks one after the other and prints one line per benchmark.
+	 */
+	public void run(List<Benchmark> benchmarks) throws Exception {
+		System.out.println(String.format(Locale.ROOT, "%-56s %14s %10s %12s %12s %12s", "benchmark",
+				"ops/s", "+-", "us/op", "bytes/op", "MB/s alloc"));
+		for (Benchmark benchmark : benchmarks) {
+			if (filter != null && !filter.matcher(benchmark.name).find())
+				continue;
+
+			benchmark.setUp();
+			try {
+				for (int i = 0; i < warmupIterations; i++)
+					iterate(benchmark);
+
+				double[] throughput = new double[iterations];
+				long ops = 0, nanos = 0, bytes = 0;
+				for (int i = 0; i < iterations; i++) {
+					long[] result = iterate(benchmark);
+					ops += result[0];
+					nanos += result[1];
+					bytes += result[2];
+					throughput[i] = result[0] * 1e9 / result[1];
+				}
+				report(benchmark.name, throughput, ops, nanos, bytes);
+			} finally {
+				benchmark.tearDown();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of operations, the nanoseconds and the allocated bytes of one iteration
+	 */
+	private long[] iterate(Benchmark benchmark) throws Exception {
+		long thread = Thread.currentThread().getId();
+		long bytes = _threads == null ? 0 : _threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long end = start + iterationMillis * 1000000L;
+		long ops = 0;
+		long now;
+		int sink = 0;
+		do {
+			sink ^= System.identityHashCode(benchmark.run());
+			ops++;
+			now = System.nanoTime();
+		} while (now < end);
+		_sink ^= sink;
+		bytes = _threads == null ? 0 : _threads.getThreadAllocatedBytes(thread) - bytes;
+		return new long[] { ops, now - start, bytes };
+	}
+
+	private void report(String name, double[] throughput, long ops, long nanos, long bytes) {
+		double mean = 0;
+		for (double t : throughput)
+			mean += t;
+		mean /= throughput.length;
+		double variance = 0;
+		for (double t : throughput)
+			variance += (t - mean) * (t - mean);
+		double deviation = throughput.length > 1 ? Math.sqrt(variance / (throughput.length - 1)) : 0;
+
+		System.out.println(String.format(Locale.ROOT, "%-56s %14.1f %10.1f %12.3f %12.0f %12.1f", name, mean,
+				deviation, nanos / 1e3 / ops, (double) bytes / ops, bytes / 1048576.0 / (nanos / 1e9)));
+	}
+}
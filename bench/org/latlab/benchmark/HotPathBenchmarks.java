@@ -0,0 +1,525 @@
+package org.latlab.benchmark;
+
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.latlab.learner.CliqueTreePropagationGroupRec;
+import org.latlab.learner.SparseDataSet;
+import org.latlab.model.BeliefNode;
+import org.latlab.reasoner.CliqueTreePropagation;
+import org.latlab.reasoner.CliqueTreePropagationRec;
+import org.latlab.reasoner.CompiledCliqueTree;
+import org.latlab.reasoner.CompiledCliqueTreePropagation;
+import org.latlab.util.DataSet;
+import org.latlab.util.Function;
+import org.latlab.util.Variable;
+import org.mymedialite.correlation.CorrelationMatrix;
+import org.mymedialite.data.EntityMapping;
+import org.mymedialite.datatype.DenseDoubleMatrix;
+import org.mymedialite.eval.measures.RankingMetrics;
+import org.mymedialite.io.ItemData;
+import org.mymedialite.itemrec.Extensions;
+import org.mymedialite.itemrec.ItemRecommender;
+import org.mymedialite.itemrec.parallelUserFactorCompute;
+
+import FastHLTA.EmpiricalMiComputerForBinaryDataStep;
+import FastHLTA.MiNeighbourIndex;
+
+/**
+ * <p>
+ * Benchmarks of the hot paths of learning, inference and evaluation on synthetic data, so that
+ * optimizations can be measured without the real data sets.
+ * </p>
+ *
+ * <p>
+ * The model is a SyntheticLTM and the feedback a SyntheticFeedback over the same items. The sizes are
+ * set by options of the form --name value:
+ * </p>
+ *
+ * <ul>
+ * <li>--items, --island-size, --levels, --card: the shape of the model.</li>
+ * <li>--users, --basket, --zipf: the number of users, their mean basket size and the skew of the item
+ * popularity.</li>
+ * <li>--mi-variables: the number of variables of the pairwise mutual information.</li>
+ * <li>--bands: the number of LSH bands of the approximate neighbours.</li>
+ * <li>--factors: the number of factors of the ranking recommender.</li>
+ * <li>--warmup, --iterations, --time: the warm up and measurement iterations and the milliseconds per
+ * iteration.</li>
+ * <li>--filter: a regular expression, only the benchmarks whose name it matches are run.</li>
+ * <li>--seed: the seed of the model and the data.</li>
+ * </ul>
+ *
+ * <p>
+ * For example
+ * </p>
+ *
+ * <pre>
+ * java -cp ... org.latlab.benchmark.HotPathBenchmarks --items 5000 --filter propagate
+ * </pre>
+ *
+ * @author fkhawar
+ */
+public class HotPathBenchmarks {
+
+	/**
+	 * The number of users whose evidence the inference benchmarks cycle through
+	 */
+	private static final int EVIDENCE_USERS = 1000;
+
+	/**
+	 * The number of users in a dense batch
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * The number of partners kept for each item by the neighbour indexes
+	 */
+	private static final int NEIGHBOURS = 20;
+
+	private final SyntheticLTM _ltm;
+	private final SyntheticFeedback _data;
+	private final Map<String, String> _options;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 == args.length)
+				throw new IllegalArgumentException("Expected --name value pairs: " + Arrays.toString(args));
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner();
+		runner.warmupIterations = getInt(options, "warmup", runner.warmupIterations);
+		runner.iterations = getInt(options, "iterations", runner.iterations);
+		runner.iterationMillis = getInt(options, "time", (int) runner.iterationMillis);
+		if (options.containsKey("filter"))
+			runner.filter = Pattern.compile(options.get("filter"));
+
+		HotPathBenchmarks benchmarks = new HotPathBenchmarks(options);
+		runner.run(benchmarks.createBenchmarks());
+	}
+
+	public HotPathBenchmarks(Map<String, String> options) {
+		_options = options;
+		long seed = getInt(options, "seed", 1);
+
+		long start = System.currentTimeMillis();
+		_ltm = new SyntheticLTM(getInt(options, "items", 2000), getInt(options, "island-size", 8), getInt(
+				options, "levels", 3), getInt(options, "card", 2), seed);
+		_data = new SyntheticFeedback(getInt(options, "users", 20000), _ltm.manifests.length, getDouble(
+				options, "basket", 10), getDouble(options, "zipf", 1.0), seed);
+
+		System.out.println("=== " + _ltm.manifests.length + " items, " + _ltm.model.getNodes().size()
+				+ " nodes in " + _ltm.levels.size() + " latent levels, " + _data.users + " users, "
+				+ _data.feedback.size() + " events, generated in " + (System.currentTimeMillis() - start)
+				+ " ms ===");
+	}
+
+	/**
+	 * @return the benchmarks in the order they are run
+	 */
+	public List<Benchmark> createBenchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(dataBenchmarks());
+		benchmarks.addAll(learningBenchmarks());
+		benchmarks.addAll(inferenceBenchmarks());
+		benchmarks.addAll(rankingBenchmarks());
+		return benchmarks;
+	}
+
+	private List<Benchmark> dataBenchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		benchmarks.add(new FileBenchmark("ItemData.read") {
+			public Object run() throws Exception {
+				return ItemData.read(file.getPath(), new EntityMapping(), new EntityMapping(), false);
+			}
+		});
+
+		benchmarks.add(new FileBenchmark("SparseDataSet.GiveDenseBatch") {
+			private SparseDataSet _sparse;
+
+			public void setUp() throws Exception {
+				super.setUp();
+				_sparse = new SparseDataSet(file.getPath());
+			}
+
+			public Object run() {
+				return _sparse.GiveDenseBatch(Math.min(BATCH_SIZE, _data.users));
+			}
+		});
+
+		benchmarks.add(new Benchmark("DataSet.addDataCase") {
+			private int[][] _cases;
+
+			public void setUp() {
+				_cases = _data.denseCases(_ltm.manifests, 0, Math.min(BATCH_SIZE, _data.users));
+			}
+
+			public Object run() {
+				DataSet data = new DataSet(_ltm.manifests.clone());
+				for (int[] states : _cases)
+					data.addDataCase(states, 1);
+				return data;
+			}
+		});
+
+		benchmarks.add(new Benchmark("DataSet.project") {
+			private DataSet _batch;
+			private ArrayList<Variable> _island;
+
+			public void setUp() {
+				_batch = _data.denseData(_ltm.manifests, 0, Math.min(BATCH_SIZE, _data.users));
+				_island = new ArrayList<Variable>();
+				for (int i = 0; i < Math.min(_ltm.manifests.length, getInt(_options, "island-size", 8)); i++)
+					_island.add(_ltm.manifests[i]);
+			}
+
+			public Object run() {
+				return _batch.project(_island);
+			}
+		});
+
+		return benchmarks;
+	}
+
+	private List<Benchmark> learningBenchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		benchmarks.add(new Benchmark("EmpiricalMiComputerForBinaryDataStep.computerPairwise") {
+			private DataSet _batch;
+			private List<Variable> _variables;
+
+			public void setUp() {
+				Variable[] variables = Arrays.copyOf(_ltm.manifests,
+						Math.min(_ltm.manifests.length, getInt(_options, "mi-variables", 200)));
+				_batch = _data.denseData(variables, 0, Math.min(BATCH_SIZE, _data.users));
+				_variables = Arrays.asList(variables);
+			}
+
+			public Object run() {
+				return new EmpiricalMiComputerForBinaryDataStep(_batch, _variables).computerPairwise();
+			}
+		});
+
+		benchmarks.add(new Benchmark("EmpiricalMiComputerForBinaryDataStep.computeNeighbours") {
+			private EmpiricalMiComputerForBinaryDataStep _computer;
+
+			public void setUp() {
+				_computer = new EmpiricalMiComputerForBinaryDataStep(_data.denseData(_ltm.manifests, 0,
+						_data.users), Arrays.asList(_ltm.manifests));
+			}
+
+			public Object run() {
+				return _computer.computeNeighbours(NEIGHBOURS, "cosine");
+			}
+		});
+
+		benchmarks.add(new Benchmark("EmpiricalMiComputerForBinaryDataStep.computeApproximateNeighbours") {
+			private EmpiricalMiComputerForBinaryDataStep _computer;
+			private int _bands;
+
+			public void setUp() {
+				_computer = new EmpiricalMiComputerForBinaryDataStep(_data.denseData(_ltm.manifests, 0,
+						_data.users), Arrays.asList(_ltm.manifests));
+				_bands = getInt(_options, "bands", 64);
+
+				// the quality of the approximation, once
+				MiNeighbourIndex exact = _computer.computeNeighbours(NEIGHBOURS, "cosine");
+				MiNeighbourIndex approximate = (MiNeighbourIndex) run();
+				System.out.println(String.format(Locale.ROOT, "recall of the top %d neighbours with %d bands: %.3f",
+						NEIGHBOURS, _bands, approximate.recall(exact, NEIGHBOURS)));
+			}
+
+			public Object run() {
+				return _computer.computeApproximateNeighbours(NEIGHBOURS, "cosine", _bands, 1, 1);
+			}
+		});
+
+		benchmarks.add(new Benchmark("Function.times+sumOut") {
+			private Function _parent;
+			private Function _child;
+			private Variable _latent;
+
+			public void setUp() {
+				// the CPT of a first level latent variable and of one of its manifest children
+				_latent = _ltm.levels.get(0).get(0);
+				_parent = _ltm.model.getNode(_latent).getCpt();
+				_child = _ltm.model.getNode(_ltm.manifests[0]).getCpt();
+			}
+
+			public Object run() {
+				return _parent.times(_child).sumOut(_latent);
+			}
+		});
+
+		return benchmarks;
+	}
+
+	private List<Benchmark> inferenceBenchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		final List<Set<Variable>> evidence = new ArrayList<Set<Variable>>();
+		for (int u = 0; u < Math.min(EVIDENCE_USERS, _data.users); u++) {
+			Set<Variable> consumed = new HashSet<Variable>();
+			IntIterator it = _data.getItems(u).iterator();
+			while (it.hasNext())
+				consumed.add(_ltm.manifests[it.nextInt()]);
+			evidence.add(consumed);
+		}
+		final Set<Variable> manifests = new HashSet<Variable>(Arrays.asList(_ltm.manifests));
+		final HashSet<String> topLevel = new HashSet<String>(_ltm.getTopLevelNames());
+		final Object[] factorVariables = _ltm.levels.get(0).toArray();
+
+		benchmarks.add(new InferenceBenchmark("CliqueTreePropagationRec.propagate full", evidence) {
+			private CliqueTreePropagationRec _ctp;
+
+			public void setUp() {
+				_ctp = new CliqueTreePropagationRec(_ltm.model);
+			}
+
+			public Object run() {
+				_ctp.clearEvidence();
+				_ctp.setSparsePositiveOnlyEvidence(nextEvidence(), manifests);
+				return _ctp.propagate();
+			}
+		});
+
+		benchmarks.add(new InferenceBenchmark("CliqueTreePropagationRec.propagate restricted", evidence) {
+			private CliqueTreePropagationRec _ctp;
+			private double[] _defaults;
+			private double[] _factors;
+
+			public void setUp() {
+				CliqueTreePropagationGroupRec group = RestrictedPropagationBaseline.constructPropagationGroup(
+						_ltm.model, 1);
+				_defaults = RestrictedPropagationBaseline.computeDefaultPosteriors(group, factorVariables);
+				_ctp = group.take();
+				_factors = new double[factorVariables.length];
+			}
+
+			public Object run() {
+				RestrictedPropagationBaseline.computeUserFactor(_ctp, nextEvidence(), manifests, topLevel,
+						factorVariables, _defaults, _factors);
+				return _factors;
+			}
+		});
+
+		benchmarks.add(new InferenceBenchmark("CompiledCliqueTreePropagation.propagate full", evidence) {
+			private CompiledCliqueTreePropagation _ctp;
+
+			public void setUp() {
+				_ctp = new CompiledCliqueTreePropagation(new CompiledCliqueTree(_ltm.model, null, null));
+			}
+
+			public Object run() {
+				_ctp.setPositiveOnlyEvidence(nextEvidence());
+				return _ctp.propagate();
+			}
+		});
+
+		benchmarks.add(new InferenceBenchmark("CompiledCliqueTreePropagation.propagate restricted", evidence) {
+			private CompiledCliqueTreePropagation _ctp;
+			private int[] _indices;
+			private double[] _factors;
+
+			public void setUp() {
+				CompiledCliqueTree tree = parallelUserFactorCompute.compileCliqueTree(_ltm.model, topLevel);
+				_ctp = new CompiledCliqueTreePropagation(tree);
+				_indices = parallelUserFactorCompute.indicesOf(tree, factorVariables);
+				_factors = new double[factorVariables.length];
+			}
+
+			public Object run() {
+				parallelUserFactorCompute.computeUserFactor(_ctp, nextEvidence(), _indices, _factors);
+				return _factors;
+			}
+		});
+
+		return benchmarks;
+	}
+
+	private List<Benchmark> rankingBenchmarks() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		final FactorRecommender recommender = new FactorRecommender(_data.users, _data.items, getInt(_options,
+				"factors", 64), getInt(_options, "seed", 1));
+		final List<Integer> candidates = new ArrayList<Integer>(_data.items);
+		for (int i = 0; i < _data.items; i++)
+			candidates.add(i);
+
+		benchmarks.add(new UserBenchmark("Extensions.predictItems") {
+			public Object run() {
+				return Extensions.predictItems(recommender, nextUser(), candidates);
+			}
+		});
+
+		benchmarks.add(new UserBenchmark("Extensions.predictTopK 500") {
+			public Object run() {
+				return Extensions.predictTopK(recommender, nextUser(), candidates, 500);
+			}
+		});
+
+		benchmarks.add(new UserBenchmark("RankingMetrics.accumulate") {
+			private final RankingMetrics _metrics = new RankingMetrics(5, 10, 20, 50, 100, 500);
+			private final double[] _sums = _metrics.newAccumulator();
+			private int[][] _ranked;
+			private BitSet[] _correct;
+
+			public void setUp() {
+				// the rankings are computed once, only the measures are benchmarked
+				int n = Math.min(EVIDENCE_USERS, _data.users);
+				_ranked = new int[n][];
+				_correct = new BitSet[n];
+				for (int u = 0; u < n; u++) {
+					List<Integer> ranked = Extensions.predictItems(recommender, u, candidates);
+					_ranked[u] = new int[ranked.size()];
+					for (int i = 0; i < _ranked[u].length; i++)
+						_ranked[u][i] = ranked.get(i);
+					_correct[u] = new BitSet(_data.items);
+					IntIterator it = _data.getItems(u).iterator();
+					while (it.hasNext())
+						_correct[u].set(it.nextInt());
+				}
+			}
+
+			public Object run() {
+				int u = nextUser() % _ranked.length;
+				_metrics.accumulate(_ranked[u], _ranked[u].length, _correct[u], null, _sums);
+				return _sums;
+			}
+		});
+
+		return benchmarks;
+	}
+
+	/**
+	 * A benchmark on the feedback written to a temporary file
+	 */
+	private abstract class FileBenchmark extends Benchmark {
+		protected File file;
+
+		protected FileBenchmark(String name) {
+			super(name);
+		}
+
+		public void setUp() throws Exception {
+			file = File.createTempFile("feedback", ".txt");
+			file.deleteOnExit();
+			_data.write(file);
+		}
+
+		public void tearDown() {
+			file.delete();
+		}
+	}
+
+	/**
+	 * A benchmark that goes through the users one by one
+	 */
+	private abstract class UserBenchmark extends Benchmark {
+		private int _user = 0;
+
+		protected UserBenchmark(String name) {
+			super(name);
+		}
+
+		protected int nextUser() {
+			int user = _user;
+			_user = (_user + 1) % Math.min(EVIDENCE_USERS, _data.users);
+			return user;
+		}
+	}
+
+	/**
+	 * A benchmark that goes through the consumed items of the users one by one
+	 */
+	private abstract class InferenceBenchmark extends UserBenchmark {
+		private final List<Set<Variable>> _evidence;
+
+		protected InferenceBenchmark(String name, List<Set<Variable>> evidence) {
+			super(name);
+			_evidence = evidence;
+		}
+
+		protected Set<Variable> nextEvidence() {
+			return _evidence.get(nextUser() % _evidence.size());
+		}
+	}
+
+	/**
+	 * Scores items by the dot product of random user and item factors, so that ranking can be
+	 * benchmarked without training a model.
+	 */
+	private static class FactorRecommender extends ItemRecommender {
+		private final DenseDoubleMatrix _userFactors;
+		private final DenseDoubleMatrix _itemFactors;
+
+		FactorRecommender(int users, int items, int factors, long seed) {
+			Random random = new Random(seed);
+			_userFactors = new DenseDoubleMatrix(users, factors);
+			_itemFactors = new DenseDoubleMatrix(items, factors);
+			for (int u = 0; u < users; u++)
+				for (int f = 0; f < factors; f++)
+					_userFactors.set(u, f, random.nextGaussian());
+			for (int i = 0; i < items; i++)
+				for (int f = 0; f < factors; f++)
+					_itemFactors.set(i, f, random.nextGaussian());
+		}
+
+		public double predict(int userId, int itemId) {
+			return _userFactors.rowScalarProduct(userId, _itemFactors, itemId);
+		}
+
+		public void train() {
+		}
+
+		public void train(CliqueTreePropagation ctp, HashMap<Integer, Variable> variableIntToVariable,
+				double _RatioNegativeSamples) {
+		}
+
+		public int[][] train(CorrelationMatrix correlation, double _RatioNegativeSamples) {
+			return null;
+		}
+
+		public void loadModel(String filename) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void loadModel(BufferedReader reader) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void saveModel(String filename) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		public void saveModel(PrintWriter writer) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static int getInt(Map<String, String> options, String name, int defaultValue) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+
+	private static double getDouble(Map<String, String> options, String name, double defaultValue) {
+		return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+	}
+}
@@ -0,0 +1,142 @@
+package org.latlab.benchmark;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.latlab.graph.AbstractNode;
+import org.latlab.learner.CliqueTreePropagationGroupRec;
+import org.latlab.model.LTM;
+import org.latlab.reasoner.CliqueNode;
+import org.latlab.reasoner.CliqueTree;
+import org.latlab.reasoner.CliqueTreePropagationRec;
+import org.latlab.reasoner.IslandMessageTable;
+import org.latlab.util.Function;
+import org.latlab.util.Variable;
+
+/**
+ * <p>
+ * The user factor computation on CliqueTreePropagationRec with restricted propagation, as it was
+ * before the compiled clique tree. The recommender only uses the compiled clique tree now; this is
+ * kept as the baseline of the inference benchmarks.
+ * </p>
+ *
+ * @author fkhawar
+ */
+final class RestrictedPropagationBaseline {
+
+	private RestrictedPropagationBaseline() {
+	}
+
+	/**
+	 * Create a group of ctps on the model that are ready for restricted propagation, i.e. they all
+	 * share the default messages of the model with no evidence set. The ctps also share the island
+	 * message table of the model, so the leaf cliques of the islands are not propagated over.
+	 *
+	 * @param model
+	 *            the latent tree model.
+	 * @param capacity
+	 *            the number of ctps in the group.
+	 */
+	static CliqueTreePropagationGroupRec constructPropagationGroup(LTM model, int capacity) {
+		CliqueTreePropagationGroupRec ctps = CliqueTreePropagationGroupRec.constructFromModel(model, capacity);
+
+		HashMap<LinkedHashSet<Variable>, Map<AbstractNode, Function>> defaultMessages =
+				new HashMap<LinkedHashSet<Variable>, Map<AbstractNode, Function>>();
+		HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>> defaultAlphas =
+				new HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>>();
+		HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>> defaultLogAlphas =
+				new HashMap<LinkedHashSet<Variable>, HashMap<AbstractNode, Double>>();
+		HashMap<LinkedHashSet<Variable>, LinkedList<Function>> defaultFunctions =
+				new HashMap<LinkedHashSet<Variable>, LinkedList<Function>>();
+		HashMap<LinkedHashSet<Variable>, LinkedHashSet<CliqueNode>> defaultQualifiedNeiMsgs =
+				new HashMap<LinkedHashSet<Variable>, LinkedHashSet<CliqueNode>>();
+		HashMap<LinkedHashSet<Variable>, Function> defaultMsgsProd = new HashMap<LinkedHashSet<Variable>, Function>();
+
+		// the default messages are computed on one ctp and copied to all of them
+		CliqueTreePropagationRec first = ctps.take();
+		CliqueTree defaultCtp = first.makeDefaultMessageMap(defaultMessages, defaultAlphas, defaultLogAlphas,
+				defaultFunctions, defaultQualifiedNeiMsgs, defaultMsgsProd);
+		ctps.put(first);
+
+		// the upward messages of the islands for every evidence pattern, computed once for all ctps
+		IslandMessageTable islandTable = new IslandMessageTable(model);
+
+		CliqueTreePropagationRec[] all = new CliqueTreePropagationRec[ctps.capacity];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = ctps.take();
+			all[i].setDefaultMessages(defaultMessages, defaultAlphas, defaultLogAlphas, defaultFunctions,
+					defaultQualifiedNeiMsgs, defaultMsgsProd, defaultCtp);
+			all[i].setIslandMessageTable(islandTable);
+		}
+		for (CliqueTreePropagationRec ctp : all)
+			ctps.put(ctp);
+
+		return ctps;
+	}
+
+	/**
+	 * @return P(Z=1) of each latent variable in variables when no evidence is set.
+	 */
+	static double[] computeDefaultPosteriors(CliqueTreePropagationGroupRec ctps, Object[] variables) {
+		CliqueTreePropagationRec ctp = ctps.take();
+		double[] posteriors = new double[variables.length];
+		for (int i = 0; i < variables.length; i++)
+			posteriors[i] = ctp.computeBelief((Variable) variables[i]).getCells()[1];
+		ctps.put(ctp);
+		return posteriors;
+	}
+
+	/**
+	 * Computes P(Z=1|u,m) of each latent variable for one user, with propagation restricted to the
+	 * subtrees of the top level variables that hold evidence. The messages of the propagation range are
+	 * reset to the defaults before returning, so the ctp can be used for the next user straight away.
+	 *
+	 * @param ctp
+	 *            a ctp from a group made by constructPropagationGroup().
+	 * @param evidenceVar
+	 *            the manifest variables consumed by the user.
+	 * @param manifestVars
+	 *            all manifest variables of the model.
+	 * @param topLevel
+	 *            names of the top level latent variables.
+	 * @param variables
+	 *            the latent variables of the selected level.
+	 * @param defaultPosteriors
+	 *            P(Z=1) with no evidence, indexed like variables.
+	 * @param factors
+	 *            receives P(Z=1|u,m), indexed like variables.
+	 * @return the number of evidence variables set.
+	 */
+	static int computeUserFactor(CliqueTreePropagationRec ctp, Set<Variable> evidenceVar,
+			Set<Variable> manifestVars, HashSet<String> topLevel, Object[] variables,
+			double[] defaultPosteriors, double[] factors) {
+		ctp.clearEvidence();
+		int countEvidenceSet = ctp.setSparsePositiveOnlyEvidence(evidenceVar, manifestVars);
+
+		Set<CliqueNode> propagationRangeCliques = null;
+		HashSet<Variable> propVars = new HashSet<Variable>();
+		if (countEvidenceSet != 0) {
+			propagationRangeCliques = ctp.findAndSetPropagationRange(topLevel);
+			for (CliqueNode clique : propagationRangeCliques)
+				propVars.addAll(clique.getVariables());
+			ctp.propagate();
+		}
+
+		for (int i = 0; i < variables.length; i++) {
+			Variable latent = (Variable) variables[i];
+			if (countEvidenceSet != 0 && propVars.contains(latent))
+				factors[i] = ctp.computeBelief(latent).getCells()[1];
+			else
+				factors[i] = defaultPosteriors[i];
+		}
+
+		if (propagationRangeCliques != null)
+			ctp.resetMessages(propagationRangeCliques);
+
+		return countEvidenceSet;
+	}
+}
@@ -0,0 +1,143 @@
+package org.latlab.benchmark;
+
+import it.unimi.dsi.fastutil.ints.IntCollection;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.latlab.util.DataSet;
+import org.latlab.util.Variable;
+import org.mymedialite.data.PosOnlyFeedback;
+import org.mymedialite.datatype.SparseBooleanMatrix;
+
+/**
+ * <p>
+ * Generates implicit feedback with Zipfian item popularity, for benchmarks.
+ * </p>
+ *
+ * <p>
+ * Item i is drawn with probability proportional to 1 / (i + 1)^exponent, so item 0 is the most
+ * popular one. The basket size of a user is geometric with the given mean, and at least 1. Users and
+ * items are numbered 0..users-1 and 0..items-1, and are written to files under these IDs.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public final class SyntheticFeedback {
+
+	public final int users;
+	public final int items;
+	public final PosOnlyFeedback<SparseBooleanMatrix> feedback;
+
+	/**
+	 * Generates the feedback.
+	 *
+	 * @param users
+	 *            the number of users.
+	 * @param items
+	 *            the number of items.
+	 * @param meanBasket
+	 *            the mean number of draws per user; repeated draws of an item count once.
+	 * @param exponent
+	 *            the exponent of the Zipf distribution, 0 for uniform popularity.
+	 * @param seed
+	 *            the seed of the generator.
+	 */
+	public SyntheticFeedback(int users, int items, double meanBasket, double exponent, long seed) {
+		if (users < 1 || items < 1 || meanBasket < 1 || exponent < 0)
+			throw new IllegalArgumentException("users=" + users + " items=" + items + " meanBasket="
+					+ meanBasket + " exponent=" + exponent);
+
+		this.users = users;
+		this.items = items;
+		try {
+			feedback = new PosOnlyFeedback<SparseBooleanMatrix>(SparseBooleanMatrix.class);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		double[] cdf = new double[items];
+		double sum = 0;
+		for (int i = 0; i < items; i++) {
+			sum += 1.0 / Math.pow(i + 1, exponent);
+			cdf[i] = sum;
+		}
+
+		Random random = new Random(seed);
+		double p = 1.0 / meanBasket;
+		for (int u = 0; u < users; u++) {
+			int basket = 1 + (int) (Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+			if (p == 1.0)
+				basket = 1;
+			for (int k = 0; k < basket; k++) {
+				int item = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+				feedback.add(u, Math.min(items - 1, item < 0 ? -item - 1 : item));
+			}
+		}
+	}
+
+	/**
+	 * @return the items of a user, for evidence and ranking
+	 */
+	public IntCollection getItems(int user) {
+		return feedback.userMatrix().get(user);
+	}
+
+	/**
+	 * Writes the feedback in the format ItemData.read() and SparseDataSet read, one "user item" pair
+	 * per line.
+	 */
+	public void write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(file);
+		try {
+			for (int u = 0; u < users; u++) {
+				IntIterator it = getItems(u).iterator();
+				while (it.hasNext())
+					out.println(u + "," + it.nextInt());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Converts the baskets of some users into dense binary data cases, as SparseDataSet.GiveDenseBatch()
+	 * does.
+	 *
+	 * @param manifests
+	 *            the variable of item i at [i].
+	 * @param firstUser
+	 *            the first user.
+	 * @param numUsers
+	 *            the number of users.
+	 * @return the data cases, state 1 for consumed items.
+	 */
+	public int[][] denseCases(Variable[] manifests, int firstUser, int numUsers) {
+		int[][] cases = new int[numUsers][];
+		for (int u = 0; u < numUsers; u++) {
+			int[] states = new int[manifests.length];
+			IntIterator it = getItems(firstUser + u).iterator();
+			while (it.hasNext()) {
+				int item = it.nextInt();
+				if (item < states.length)
+					states[item] = 1;
+			}
+			cases[u] = states;
+		}
+		return cases;
+	}
+
+	/**
+	 * @return a data set over the manifest variables with the baskets of some users
+	 */
+	public DataSet denseData(Variable[] manifests, int firstUser, int numUsers) {
+		DataSet data = new DataSet(manifests.clone());
+		for (int[] states : denseCases(manifests, firstUser, numUsers))
+			data.addDataCase(states, 1);
+		return data;
+	}
+}
@@ -0,0 +1,150 @@
+package org.latlab.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.latlab.graph.AbstractNode;
+import org.latlab.model.BeliefNode;
+import org.latlab.model.LTM;
+import org.latlab.util.Function;
+import org.latlab.util.Variable;
+
+/**
+ * <p>
+ * Generates LTMs with the shape of the models FastHLTA learns, for benchmarks.
+ * </p>
+ *
+ * <p>
+ * The manifest variables are binary and named by the item IDs 0..items-1, as SparseDataSet names
+ * them. The items are split into islands of islandSize consecutive items, each under one latent
+ * variable of the first level. Every further level groups the latent variables of the level below
+ * under new latent variables, with the fan-in chosen so that the last level is the root. The
+ * latent variables of the level below the root are the top level variables of restricted propagation.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public final class SyntheticLTM {
+
+	public final LTM model;
+
+	/**
+	 * The manifest variables, the variable of item i at [i]
+	 */
+	public final Variable[] manifests;
+
+	/**
+	 * The latent variables of each level, the first level at [0] and the root at [levels - 1]
+	 */
+	public final List<List<Variable>> levels;
+
+	/**
+	 * Generates a model with random parameters.
+	 *
+	 * @param items
+	 *            the number of manifest variables.
+	 * @param islandSize
+	 *            the number of manifest children of a latent variable of the first level.
+	 * @param levels
+	 *            the number of latent levels including the root, at least 2.
+	 * @param cardinality
+	 *            the cardinality of the latent variables.
+	 * @param seed
+	 *            the seed of the parameters.
+	 */
+	public SyntheticLTM(int items, int islandSize, int levels, int cardinality, long seed) {
+		if (items < 1 || islandSize < 1 || levels < 2 || cardinality < 2)
+			throw new IllegalArgumentException("items=" + items + " islandSize=" + islandSize + " levels="
+					+ levels + " cardinality=" + cardinality);
+
+		model = new LTM("synthetic");
+		manifests = new Variable[items];
+		this.levels = new ArrayList<List<Variable>>(levels);
+
+		ArrayList<String> binary = new ArrayList<String>();
+		binary.add("s0");
+		binary.add("s1");
+
+		// the islands
+		List<BeliefNode> below = new ArrayList<BeliefNode>();
+		for (int start = 0; start < items; start += islandSize) {
+			BeliefNode latent = model.addNode(new Variable(cardinality));
+			for (int i = start; i < Math.min(items, start + islandSize); i++) {
+				manifests[i] = new Variable(Integer.toString(i), binary);
+				model.addEdge(model.addNode(manifests[i]), latent);
+			}
+			below.add(latent);
+		}
+		this.levels.add(variables(below));
+
+		// the upper levels, the last one being the root
+		for (int level = 1; level < levels; level++) {
+			int remaining = levels - level;
+			int fanIn = remaining == 1 ? below.size()
+					: Math.max(2, (int) Math.ceil(Math.pow(below.size(), 1.0 / remaining)));
+
+			List<BeliefNode> above = new ArrayList<BeliefNode>();
+			for (int start = 0; start < below.size(); start += fanIn) {
+				BeliefNode latent = model.addNode(new Variable(cardinality));
+				for (int i = start; i < Math.min(below.size(), start + fanIn); i++)
+					model.addEdge(below.get(i), latent);
+				above.add(latent);
+			}
+			below = above;
+			this.levels.add(variables(below));
+		}
+
+		parameterize(new Random(seed));
+	}
+
+	/**
+	 * @return the names of the top level latent variables, the children of the root
+	 */
+	public Set<String> getTopLevelNames() {
+		Set<String> names = new HashSet<String>();
+		for (Variable var : levels.get(levels.size() - 2))
+			names.add(var.getName());
+		return names;
+	}
+
+	/**
+	 * Sets random CPTs like BayesNet.randomlyParameterize(), but from a seeded generator so that
+	 * benchmark runs are comparable. Items are rare: P(X=1|Y) is below 0.2 for every state Y.
+	 */
+	private void parameterize(Random random) {
+		for (AbstractNode n : model.getNodes()) {
+			BeliefNode node = (BeliefNode) n;
+			Variable var = node.getVariable();
+			Function cpt = node.getCpt();
+			double[] cells = cpt.getCells();
+			for (int i = 0; i < cells.length; i++) {
+				if (!node.isLeaf())
+					cells[i] = random.nextDouble();
+				else
+					cells[i] = isZeroState(cpt, var, i) ? 0.8 + 0.2 * random.nextDouble() : 0.2 * random.nextDouble();
+			}
+			cpt.normalize(var);
+		}
+	}
+
+	private static boolean isZeroState(Function cpt, Variable var, int cell) {
+		List<Variable> vars = cpt.getVariables();
+		int stride = 1;
+		for (int d = vars.size() - 1; d >= 0; d--) {
+			if (vars.get(d) == var)
+				return (cell / stride) % var.getCardinality() == 0;
+			stride *= vars.get(d).getCardinality();
+		}
+		return false;
+	}
+
+	private static List<Variable> variables(List<BeliefNode> nodes) {
+		List<Variable> vars = new ArrayList<Variable>(nodes.size());
+		for (BeliefNode node : nodes)
+			vars.add(node.getVariable());
+		return vars;
+	}
+}
@@ -1,24 +1,45 @@
 package FastHLTA;
 
+import it.unimi.dsi.fastutil.ints.IntIterator;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.latlab.learner.SparseDataSet;
 import org.latlab.util.DataSet;
-import org.latlab.util.DataSet.DataCase;
 import org.latlab.util.Variable;
 
 public class EmpiricalMiComputerForBinaryDataStep{
 	private final DataSet data;
+	private final SparseDataSet sparseData;
 	private final List<Variable> variables;
 
 	public EmpiricalMiComputerForBinaryDataStep(DataSet data,
 			List<Variable> variables) {
 		this.data = data;
+		this.sparseData = null;
 		this.variables = variables;
 
 	}
+
+	/**
+	 * Counts the frequencies from the rows of the sparse data instead of the dense data cases. All
+	 * the datacases are counted, so the result is the same as with getWholeDenseData(), without
+	 * going over the zero entries of the dense data.
+	 *
+	 * @author fkhawar
+	 */
+	public EmpiricalMiComputerForBinaryDataStep(SparseDataSet sparseData,
+			List<Variable> variables) {
+		this.data = null;
+		this.sparseData = sparseData;
+		this.variables = variables;
+	}
+
 	/**
 	 * Computes a the mutual information between each pair of variables. It does
 	 * not contain any valid value on the diagonal.
@@ -28,46 +49,7 @@ public class EmpiricalMiComputerForBinaryDataStep{
 	 * @return mutual information for each pair of variables
 	 */
 	public ArrayList<double[]> computerPairwise() {
-		int numberOfVariables = variables.size();
-		double totalWeight = data.getTotalWeight();
-		ArrayList<double[]> f = new FrequencyCounter().computeSequential();
-		ArrayList<double[]> results = new ArrayList<double[]>(numberOfVariables);
-
-
-		for(int i = 0; i<numberOfVariables;i++){
-			results.add(new double[numberOfVariables]);
-		}
-
-		for (int i = 0; i < numberOfVariables; i++) {
-			for (int j = i + 1; j < numberOfVariables; j++) {
-				double mi = 0;
-				double[] pi = getMarginal(f.get(i)[i] / totalWeight);
-				double[] pj = getMarginal(f.get(j)[j]/ totalWeight);
-
-				double[][] pij = new double[2][2];
-				pij[1][1] = f.get(i)[j] / totalWeight;
-				pij[1][0] = pi[1] - pij[1][1];
-				pij[0][1] = pj[1] - pij[1][1];
-				pij[0][0] = 1 - pi[1] - pj[1] + pij[1][1];
-
-
-				for (int xi = 0; xi < 2; xi++) {
-					for (int xj = 0; xj < 2; xj++) {
-						if (pij[xi][xj] > 0) {
-							mi +=
-									pij[xi][xj]
-											* Math.log(pij[xi][xj]
-													/ (pi[xi] * pj[xj]));
-						}
-					}
-				}
-
-
-
-				assert !Double.isNaN(mi);
-			}
-		}
-		return results;
+		return computerPairwise(false);
 	}
 	/**
 	 * Computes a the mutual information between each pair of variables. It does
@@ -78,152 +60,291 @@ public class EmpiricalMiComputerForBinaryDataStep{
 	 * @return mutual information for each pair of variables
 	 */
 	public ArrayList<double[]> computerPairwise(String cosine) {
-		int numberOfVariables = variables.size();
-		double totalWeight = data.getTotalWeight();
-		ArrayList<double[]> f = new FrequencyCounter().computeSequential();
-		ArrayList<double[]> results = new ArrayList<double[]>(numberOfVariables);
+		return computerPairwise(true);
+	}
 
+	/**
+	 * Computes the k variables with the largest mutual information to each variable, without
+	 * holding the values of all the pairs.
+	 *
+	 * @param k
+	 *            the number of partners kept for each variable
+	 * @return the neighbour index of the variables, indexed like variables
+	 */
+	public MiNeighbourIndex computeNeighbours(int k) {
+		return computeNeighbours(k, false);
+	}
 
-		for(int i = 0; i<numberOfVariables;i++){
-			results.add(new double[numberOfVariables]);
-		}
+	/**
+	 * Computes the k variables with the largest cosine similarity to each variable, without holding
+	 * the values of all the pairs.
+	 *
+	 * @param k
+	 *            the number of partners kept for each variable
+	 * @return the neighbour index of the variables, indexed like variables
+	 */
+	public MiNeighbourIndex computeNeighbours(int k, String cosine) {
+		return computeNeighbours(k, true);
+	}
 
-		for (int i = 0; i < numberOfVariables; i++) {
-			for (int j = i + 1; j < numberOfVariables; j++) {
-				double mi = 0;
+	/**
+	 * Approximates computeNeighbours(int) on catalogs where the values of all the pairs are too
+	 * many to compute. The partners of each variable are searched among candidates from MinHash
+	 * signatures with LSH banding: two variables are candidates if their signatures agree on all the
+	 * rows of a band. Only the frequencies of the candidates are counted, exactly. A pair with a
+	 * small Jaccard similarity of its data cases is rarely a candidate, so its value is not known and
+	 * the pair is never a partner; use MiNeighbourIndex.recall() against the exact index to choose
+	 * bands and rows.
+	 *
+	 * @param k
+	 *            the number of partners kept for each variable
+	 * @param bands
+	 *            the number of LSH bands, more bands find more candidates.
+	 * @param rows
+	 *            the number of signature rows of a band, more rows find fewer but more similar
+	 *            candidates.
+	 * @param seed
+	 *            the seed of the hash functions.
+	 * @return the neighbour index of the variables over the candidates
+	 * @author fkhawar
+	 */
+	public MiNeighbourIndex computeApproximateNeighbours(int k, int bands, int rows, long seed) {
+		return computeApproximateNeighbours(k, false, bands, rows, seed);
+	}
 
-				// Computing Cosine similarity
-				if( f.get(i)[j]==0 ||  f.get(i)[i]==0|| f.get(j)[j]==0 )
-					mi = 0;
-				else
-					mi = f.get(i)[j] / Math.sqrt(f.get(i)[i] * f.get(j)[j]);//
+	/**
+	 * Same as computeApproximateNeighbours(int, int, int, long) with the cosine similarity
+	 *
+	 * @author fkhawar
+	 */
+	public MiNeighbourIndex computeApproximateNeighbours(int k, String cosine, int bands, int rows,
+			long seed) {
+		return computeApproximateNeighbours(k, true, bands, rows, seed);
+	}
 
-				results.get(i)[j] = mi;
-				results.get(j)[i] = mi;
+	private MiNeighbourIndex computeApproximateNeighbours(int k, boolean cosine, int bands, int rows,
+			long seed) {
+		if (bands < 1 || rows < 1)
+			throw new IllegalArgumentException("bands=" + bands + " rows=" + rows);
 
-				assert !Double.isNaN(mi);
-			}
-		}
-		return results;
+		PositiveEntries entries = positiveEntries();
+		return new MiNeighbourIndex(k, cosine, entries, new MinHashCandidates(entries, bands, rows, seed));
 	}
 
-	private double[] getMarginal(double p_1) {
-		double[] result = { 1 - p_1, p_1 };
-		return result;
+	private MiNeighbourIndex computeNeighbours(int k, boolean cosine) {
+		return new MiNeighbourIndex(k, cosine, positiveEntries(), null);
 	}
 
-	private class FrequencyCounter {
-		private FrequencyCounter() {
-		}
+	private ArrayList<double[]> computerPairwise(boolean cosine) {
+		PositiveEntries entries = positiveEntries();
 
-		public ArrayList<double[]> computeParallel() {
-			ParallelComputation c =
-					new ParallelComputation(0, data.getNumberOfEntries());
-			ForkJoinPool pool = new ForkJoinPool();
-			pool.invoke(c);
-			return c.frequencies;
-		}
-
-		private ArrayList<double[]> computeSequential() {
-			return computeFrequencies(0, data.getNumberOfEntries());
+		int numberOfVariables = variables.size();
+		ArrayList<double[]> frequencies = new ArrayList<double[]>(numberOfVariables);
+		for (int i = 0; i < numberOfVariables; i++) {
+			frequencies.add(new double[numberOfVariables]);
 		}
 
-		protected ArrayList<double[]> computeFrequencies(int start, int end) {
-			// the diagonal entries contain the frequencies of a single variable
-			ArrayList<double[]> frequencies =
-					new ArrayList<double[]>(variables.size());
+		ForkJoinPool.commonPool().invoke(
+				new PairwiseComputation(entries, frequencies, cosine, 0, numberOfVariables));
+		return frequencies;
+	}
 
-			for(int i = 0; i<variables.size();i++){
-				frequencies.add(new double[variables.size()]);
-			}
+	/**
+	 * The number of data cases a thread takes at a time when reading the data
+	 */
+	private static final int CASE_BLOCK = 256;
 
-			System.out.println("Initialized the map");
+	private int numberOfCases() {
+		return sparseData != null ? sparseData.getTotalWeight() : data.getNumberOfEntries();
+	}
 
+	private double totalWeight() {
+		return sparseData != null ? sparseData.getTotalWeight() : data.getTotalWeight();
+	}
 
-			ArrayList<DataCase> cases = data.getData();
-			for (int caseIndex = start; caseIndex < end; caseIndex++) {
-				DataCase c = cases.get(caseIndex);
-				int[] states = c.getStates();
-				double weight = c.getWeight();
+	/**
+	 * Finds the indices of the positive entries of a data case.
+	 *
+	 * @param itemPositions
+	 *            the index of each item of the sparse data in variables, from
+	 *            SparseDataSet.getItemPositions(). Not used with dense data.
+	 * @return the number of indices written to entries
+	 */
+	private int positives(int caseIndex, int[] itemPositions, int[] entries) {
+		int size = 0;
+		if (sparseData != null) {
+			IntIterator it = sparseData.getRow(caseIndex).iterator();
+			while (it.hasNext()) {
+				int internal_ID = it.nextInt();
+				if (internal_ID < itemPositions.length && itemPositions[internal_ID] >= 0)
+					entries[size++] = itemPositions[internal_ID];
+			}
+		} else {
+			int[] states = data.getData().get(caseIndex).getStates();
+			for (int s = 0; s < states.length; s++) {
+				if (states[s] > 0) {
+					entries[size++] = s;
+				}
+			}
+		}
+		return size;
+	}
 
-				// find the indices of states that are greater than zero
-				List<Integer> entries = new ArrayList<Integer>(states.length);
-				for (int s = 0; s < states.length; s++) {
-					if (states[s] > 0) {
-						entries.add(s);
+	/**
+	 * Reads the positive entries of all the data cases, in parallel over blocks of data cases: their
+	 * numbers first, and then the entries into their place.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the data has too many positive entries to index them with an int
+	 */
+	PositiveEntries positiveEntries() {
+		final int numberOfVariables = variables.size();
+		final int numberOfCases = numberOfCases();
+		final int[] itemPositions = sparseData != null ? sparseData.getItemPositions(variables) : null;
+		final int parallelism = Runtime.getRuntime().availableProcessors();
+
+		final int[] sizes = new int[numberOfCases];
+		final AtomicInteger cursor = new AtomicInteger();
+		List<RecursiveAction> counting = new ArrayList<RecursiveAction>(parallelism);
+		for (int t = 0; t < parallelism; t++) {
+			counting.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					int[] entries = new int[numberOfVariables];
+					int start;
+					while ((start = cursor.getAndAdd(CASE_BLOCK)) < numberOfCases) {
+						for (int c = start; c < Math.min(numberOfCases, start + CASE_BLOCK); c++)
+							sizes[c] = positives(c, itemPositions, entries);
 					}
 				}
+			});
+		}
+		// the calling thread runs the first task, the common pool the others
+		ForkJoinTask.invokeAll(counting);
+
+		final int[] caseStart = PositiveEntries.caseStart(sizes);
+		final int[] caseVariables = new int[caseStart[numberOfCases]];
+		final double[] weights = sparseData != null ? null : new double[numberOfCases];
+		cursor.set(0);
+		List<RecursiveAction> reading = new ArrayList<RecursiveAction>(parallelism);
+		for (int t = 0; t < parallelism; t++) {
+			reading.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					int[] entries = new int[numberOfVariables];
+					int start;
+					while ((start = cursor.getAndAdd(CASE_BLOCK)) < numberOfCases) {
+						for (int c = start; c < Math.min(numberOfCases, start + CASE_BLOCK); c++) {
+							int size = positives(c, itemPositions, entries);
+							System.arraycopy(entries, 0, caseVariables, caseStart[c], size);
+							if (weights != null)
+								weights[c] = data.getData().get(c).getWeight();
+						}
+					}
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(reading);
 
-				// update the single and joint counts
-				for (int i : entries) {
-				//	int iInVariables = idMappingFromDataToVariables[i];
-					int iInVariables = i;
-					if (iInVariables < 0)
-						continue;
-
-					for (int j : entries) {
-						//int jInVariables = idMappingFromDataToVariables[j];
-						int jInVariables = j;
-						if (jInVariables < 0)
-							continue;
-
-
-						double freq = frequencies.get(iInVariables)[jInVariables];
-						freq += weight;
-						frequencies.get(iInVariables)[jInVariables]=freq;
+		return new PositiveEntries(numberOfVariables, totalWeight(), caseStart, caseVariables, weights);
+	}
 
-					}
+	static double mi(double fi, double fj, double fij, double totalWeight) {
+		double mi = 0;
+		double[] pi = getMarginal(fi / totalWeight);
+		double[] pj = getMarginal(fj / totalWeight);
+
+		double[][] pij = new double[2][2];
+		pij[1][1] = fij / totalWeight;
+		pij[1][0] = pi[1] - pij[1][1];
+		pij[0][1] = pj[1] - pij[1][1];
+		pij[0][0] = 1 - pi[1] - pj[1] + pij[1][1];
+
+
+		for (int xi = 0; xi < 2; xi++) {
+			for (int xj = 0; xj < 2; xj++) {
+				if (pij[xi][xj] > 0) {
+					mi +=
+							pij[xi][xj]
+									* Math.log(pij[xi][xj]
+											/ (pi[xi] * pj[xj]));
 				}
 			}
-
-			return frequencies;
 		}
+		return mi;
+	}
+
+	static double cosine(double fi, double fj, double fij) {
+		// Computing Cosine similarity
+		if( fij==0 ||  fi==0|| fj==0 )
+			return 0;
+		else
+			return fij / Math.sqrt(fi * fj);//
+	}
 
-		@SuppressWarnings("serial")
-		private class ParallelComputation extends RecursiveAction {
+	private static double[] getMarginal(double p_1) {
+		double[] result = { 1 - p_1, p_1 };
+		return result;
+	}
 
-			private final int start;
-			private final int end;
-			private static final int THRESHOLD = 500;
-			private ArrayList<double[]> frequencies;
+	/**
+	 * Counts the joint frequencies of a range of rows in the upper triangle, replaces them by the mutual
+	 * information or cosine similarity, and mirrors them to the lower triangle. Each pair is counted by
+	 * the task of the row of its smaller variable, so the tasks do not share any accumulator.
+	 */
+	@SuppressWarnings("serial")
+	private class PairwiseComputation extends RecursiveAction {
+
+		private final PositiveEntries entries;
+		private final ArrayList<double[]> frequencies;
+		private final boolean cosine;
+		private final int start;
+		private final int end;
+		private static final int THRESHOLD = 16;
+
+		private PairwiseComputation(PositiveEntries entries, ArrayList<double[]> frequencies,
+				boolean cosine, int start, int end) {
+			this.entries = entries;
+			this.frequencies = frequencies;
+			this.cosine = cosine;
+			this.start = start;
+			this.end = end;
+		}
 
-			private ParallelComputation(int start, int end) {
-				this.start = start;
-				this.end = end;
-			}
+		private void computeDirectly() {
+			int numberOfVariables = variables.size();
+			double[] single = entries.single;
+			for (int i = start; i < end; i++) {
+				double[] row = frequencies.get(i);
+				entries.addUpperRow(i, row);
+				for (int j = i + 1; j < numberOfVariables; j++) {
+					double mi = cosine ? cosine(single[i], single[j], row[j])
+							: mi(single[i], single[j], row[j], entries.totalWeight);
 
-			private void computeDirectly() {
-				frequencies = computeFrequencies(start, end);
-			}
+					row[j] = mi;
+					frequencies.get(j)[i] = mi;
 
-			@Override
-			protected void compute() {
-				int length = end - start;
-				if (length <= THRESHOLD) {
-					computeDirectly();
-					return;
+					assert !Double.isNaN(mi);
 				}
+			}
+		}
 
-				int split = length / 2;
-				ParallelComputation c1 =
-						new ParallelComputation(start, start + split);
-				ParallelComputation c2 =
-						new ParallelComputation(start + split, end);
-				invokeAll(c1, c2);
-
-				// This is not very efficient for combining the results
-				// from subtasks.
-				frequencies = c1.frequencies;
-				for (int i = 0; i < frequencies.size();i++) {
-					for (int j = 0; j < frequencies.get(i).length; j++) {
-						double t1 = frequencies.get(i)[j];
-						double t2 = c2.frequencies.get(i)[j];
-						frequencies.get(i)[j] = t1+t2;
-					}
-				}
+		@Override
+		protected void compute() {
+			int length = end - start;
+			if (length <= THRESHOLD) {
+				computeDirectly();
+				return;
 			}
+
+			int split = length / 2;
+			invokeAll(new PairwiseComputation(entries, frequencies, cosine, start, start + split),
+					new PairwiseComputation(entries, frequencies, cosine, start + split, end));
 		}
 	}
 
 }
-
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -18,6 +19,7 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import org.latlab.graph.AbstractNode;
 import org.latlab.graph.DirectedNode;
@@ -142,9 +144,24 @@ public class ForestLTM {
 	 */
 	private int _maxIsland;
 	/**
-	 * The collection of pairwise mutual information.
+	 * The top partners of each variable by pairwise mutual information, indexed by _varId.
 	 */
-	private ArrayList<double[]> _mis;
+	private MiNeighbourIndex _mis;
+	/**
+	 * The number of partners kept for each variable in _mis
+	 */
+	private int _miNeighbours = 100;
+	/**
+	 * If true, the partners of the manifest variables are searched among MinHash/LSH candidates
+	 * instead of all the variables, see setApproximateMis()
+	 */
+	private boolean _approximateMis = false;
+	private int _minHashBands = 64;
+	private int _minHashRows = 1;
+	/**
+	 * The number of islands whose EM runs at the same time in FastLTA_flat(), see setParallelIslands()
+	 */
+	private int _parallelIslands = Runtime.getRuntime().availableProcessors();
 	/**
 	 * whether true class labels are included in data file.
 	 */
@@ -183,7 +200,9 @@ public class ForestLTM {
 
 
 	/**
-	 * Main Method
+	 * Main Method. The partners of the first level are set with system properties, e.g.
+	 * -DForestLTM.miNeighbours=100 -DForestLTM.approximateMis=true -DForestLTM.minHashBands=64
+	 * -DForestLTM.minHashRows=1, see setMiNeighbours() and setApproximateMis().
 	 *
 	 * @param args
 	 * @throws Throwable
@@ -192,6 +211,7 @@ public class ForestLTM {
 	public static void main(String[] args) throws Exception {
 		if (args.length != 14 &&args.length != 1 &&args.length != 3 &&args.length!= 0) {
 			System.err.println("Usage: java ForestLTM trainingdata (EmMaxSteps EmNumRestarts EM-threshold UDtest-threshold outputmodel MaxIsland MaxTop GlobalsizeBatch GlobalMaxEpochs GlobalEMmaxsteps FirstBatch IslandEmMaxSteps IslandEmNumRestarts");
+			System.err.println("Options: -DForestLTM.miNeighbours=k -DForestLTM.approximateMis=true -DForestLTM.minHashBands=b -DForestLTM.minHashRows=r");
 			System.exit(1);
 		}
 		// TODO Auto-generated method stub
@@ -199,6 +219,11 @@ public class ForestLTM {
 		if(args.length ==14||args.length ==1||args.length ==0){
 			ForestLTM Fast_learner = new ForestLTM();
 			Fast_learner.initialize(args);
+			Fast_learner.setMiNeighbours(Integer.getInteger("ForestLTM.miNeighbours",
+					Fast_learner._miNeighbours));
+			Fast_learner.setApproximateMis(Boolean.getBoolean("ForestLTM.approximateMis"),
+					Integer.getInteger("ForestLTM.minHashBands", Fast_learner._minHashBands),
+					Integer.getInteger("ForestLTM.minHashRows", Fast_learner._minHashRows));
 
 
 			Fast_learner.IntegratedLearn();
@@ -340,8 +365,10 @@ public class ForestLTM {
 			System.out.println("Start hard assignment...");
 
 			long startHA = System.currentTimeMillis();
-			// non-parallel hardAssignment
-			_workingData = IslandHardAssign(_workingData);
+			// parallel hardAssignment, gives the same data as IslandHardAssign()
+			ParallelForestHardAssignment hardAssignment = new ParallelForestHardAssignment();
+			hardAssignment.ParallelHardAssignmentCompute(_workingData, _hierarchies);
+			_workingData = hardAssignment.getData();
 
 			System.out.println("--- Hard Assignment Time: "+ (System.currentTimeMillis() - startHA) + " ms ---");
 
@@ -431,13 +458,16 @@ public class ForestLTM {
 		int i = 1;
 		initialize(_data);
 		System.out.println("===========Building Level "+ (Level-1)+ "=============");
+		// the islands being fitted in parallel, in the order they were grown
+		List<IslandFit> fits = new ArrayList<IslandFit>();
+		ForkJoinPool islandPool = _parallelIslands > 1 ? new ForkJoinPool(_parallelIslands) : null;
 		// Call lcmLearner iteratively and learn the LCMs.
 		while (!isDone()) {
 			System.out.println("======================= Learn Island : " + i
 					+ " , number of variables left: " + _VariablesSet.size()
 					+ "  =================================");
 			if (_VariablesSet.size() == 3) {
-				if (_mis.isEmpty()) {
+				if (_mis == null) {
 					// compute MI and find the pair with the largest MI value
 					long startMI = System.currentTimeMillis();
 					_mis = computeMis(_data);
@@ -462,11 +492,18 @@ public class ForestLTM {
 			ArrayList<Variable> bestPair = new ArrayList<Variable>();
 			// _mis only needs to compute once
 
-			if (_mis.isEmpty()) {
+			if (_mis == null) {
 				// compute MI and find the pair with the largest MI value
 				long startMI = System.currentTimeMillis();
-				if (Level ==2) {
-					_mis = computeMis(_data,_Variables,"cosine");
+				if (Level ==2 && _approximateMis) {
+					_mis = computeApproximateMis(_data);
+				}
+				else if (Level ==2) {
+					// the first level over all the datacases is counted from the sparse rows
+					if (_data == _OrigDenseData && _sizeFirstBatch.contains("all"))
+						_mis = computeMis(_OrigSparseData,_Variables,"cosine",_miNeighbours);
+					else
+						_mis = computeMis(_data,_Variables,"cosine",_miNeighbours);
 				}
 				else
 					_mis = computeMis( _data);
@@ -508,6 +545,17 @@ public class ForestLTM {
 					LTM LCM = LTM.createLCM(new ArrayList<Variable>(cluster), 2);
 					LCM.randomlyParameterize();
 
+					if (islandPool != null) {
+						// the growth of the next islands does not depend on the fitted model, only on its variables
+						IslandFit fit = new IslandFit(LCM, new ArrayList<Variable>(cluster), bestPair, _data);
+						islandPool.execute(fit);
+						fits.add(fit);
+
+						updateVariablesSet(LCM);
+						updateVariableArray(LCM);
+						break;
+					}
+
 					DataSet data_proj2l =
 							_data.project(new ArrayList<Variable>(cluster)); // projected data for current working set
 
@@ -521,6 +569,13 @@ public class ForestLTM {
 			}
 			i++;
 		}
+
+		for (IslandFit fit : fits) {
+			updateHierarchies(fit.join(), fit.bestPair);
+		}
+		if (islandPool != null)
+			islandPool.shutdown();
+
 		LTM latentTree = null;
 
 		// link the islands.
@@ -536,6 +591,8 @@ public class ForestLTM {
 
 	private LTM islandEM(LTM model, DataSet data) {
 		ParallelEmLearner emLearner = new ParallelEmLearner();
+		if (_parallelIslands > 1)
+			emLearner.setParallelism(1); // the islands are fitted in parallel instead
 		emLearner.setLocalMaximaEscapeMethod("ChickeringHeckerman");
 		emLearner.setMaxNumberOfSteps(_IslandEmMaxSteps);
 		emLearner.setNumberOfRestarts(_IslandEmNumRestarts);
@@ -549,6 +606,31 @@ public class ForestLTM {
 		return newModel ;
 
 	}
+	/**
+	 * Projects the data and runs IslandEM for an island, in a thread of the island pool of FastLTA_flat()
+	 * @author fkhawar
+	 */
+	@SuppressWarnings("serial")
+	private class IslandFit extends RecursiveTask<LTM> {
+
+		private final LTM model;
+		private final ArrayList<Variable> cluster;
+		private final ArrayList<Variable> bestPair;
+		private final DataSet data;
+
+		private IslandFit(LTM model, ArrayList<Variable> cluster, ArrayList<Variable> bestPair, DataSet data) {
+			this.model = model;
+			this.cluster = cluster;
+			this.bestPair = bestPair;
+			this.data = data;
+		}
+
+		@Override
+		protected LTM compute() {
+			return islandEM(model, data.project(cluster));
+		}
+	}
+
 	/**
 	 * Learn a 3 node LCM
 	 *
@@ -734,6 +816,8 @@ public class ForestLTM {
 
 		for (DirectedNode child : root.getChildren()) {
 			_VariablesSet.remove(((BeliefNode) child).getVariable());
+			if (_mis != null)
+				_mis.remove(_varId.get(child.getName()));
 		}
 	}
 
@@ -804,6 +888,7 @@ public class ForestLTM {
 
 	 /**
 	 * Do hardassignment for each island. Note that hardassignment is done use the working data and not the original data. For minimizing inference
+	 * This is the sequential version of ParallelForestHardAssignment, which FastHLTA_learn() uses.
 	 * @author fkhawar
 	 * @param _data the working dataset that is to be hardassigned
 	 */
@@ -1166,20 +1251,20 @@ public class ForestLTM {
 
 	}
 
-	protected ArrayList<double[]> computeMis(DataSet _data) {
+	protected MiNeighbourIndex computeMis(DataSet _data) {
 		return computeMisByCount(_data);
 	}
 
 
 
-	protected ArrayList<double[]> computeMisByCount(DataSet _data) {
+	protected MiNeighbourIndex computeMisByCount(DataSet _data) {
 
 
 		EmpiricalMiComputerForBinaryDataStep computer =
 				new EmpiricalMiComputerForBinaryDataStep(_data, _Variables);
-		ArrayList<double[]> miArray = computer.computerPairwise();
+		MiNeighbourIndex miIndex = computer.computeNeighbours(_miNeighbours);
 
-		return  miArray;
+		return  miIndex;
 	}
 
 	/**
@@ -1187,22 +1272,91 @@ public class ForestLTM {
 	 * @param _data
 	 * @param Variables
 	 * @param cosine
+	 * @param k the number of partners kept for each variable
 	 * @return
 	 */
-	public static ArrayList<double[]> computeMis(DataSet _data,ArrayList<Variable> Variables ,String cosine ) {
-		return computeMisByCount(_data,Variables,cosine);
+	public static MiNeighbourIndex computeMis(DataSet _data,ArrayList<Variable> Variables ,String cosine, int k ) {
+		return computeMisByCount(_data,Variables,cosine,k);
 	}
 
-	protected static ArrayList<double[]> computeMisByCount(DataSet _data,ArrayList<Variable> Variables, String cosine ) {
+	protected static MiNeighbourIndex computeMisByCount(DataSet _data,ArrayList<Variable> Variables, String cosine, int k ) {
+
+
+		EmpiricalMiComputerForBinaryDataStep computer =
+				new EmpiricalMiComputerForBinaryDataStep(_data, Variables);
+		MiNeighbourIndex miIndex = computer.computeNeighbours(k, cosine);
 
+		return  miIndex;
+	}
 
+	/**
+	 * Same as computeMis(DataSet, ArrayList, String, int), counting the frequencies from the rows of the
+	 * sparse data over all its datacases
+	 * @author fkhawar
+	 */
+	public static MiNeighbourIndex computeMis(SparseDataSet _data,ArrayList<Variable> Variables ,String cosine, int k ) {
 		EmpiricalMiComputerForBinaryDataStep computer =
 				new EmpiricalMiComputerForBinaryDataStep(_data, Variables);
-		ArrayList<double[]> miArray = computer.computerPairwise(cosine);
+		return computer.computeNeighbours(k, cosine);
+	}
+
 
-		return  miArray;
+	/**
+	 * Approximate the cosine similarities of the manifest variables with MinHash/LSH candidates, for
+	 * catalogs where the exact similarities of all pairs take too long
+	 * @author fkhawar
+	 */
+	private MiNeighbourIndex computeApproximateMis(DataSet _data) {
+		EmpiricalMiComputerForBinaryDataStep computer;
+		if (_data == _OrigDenseData && _sizeFirstBatch.contains("all"))
+			computer = new EmpiricalMiComputerForBinaryDataStep(_OrigSparseData, _Variables);
+		else
+			computer = new EmpiricalMiComputerForBinaryDataStep(_data, _Variables);
+		return computer.computeApproximateNeighbours(_miNeighbours, "cosine", _minHashBands,
+				_minHashRows, Random.getInstance().nextLong());
 	}
 
+	/**
+	 * Use MinHash/LSH candidates instead of all the pairs of manifest variables when building the
+	 * first level. More bands or fewer rows find more of the exact neighbours, at a higher cost.
+	 * @param approximate whether to approximate
+	 * @param bands the number of LSH bands
+	 * @param rows the number of MinHash rows per band
+	 * @author fkhawar
+	 */
+	public void setApproximateMis(boolean approximate, int bands, int rows) {
+		if (bands < 1 || rows < 1)
+			throw new IllegalArgumentException("The numbers of bands and rows must be positive: bands="
+					+ bands + " rows=" + rows);
+		_approximateMis = approximate;
+		_minHashBands = bands;
+		_minHashRows = rows;
+	}
+
+	/**
+	 * Keep this many partners of each manifest variable by mutual information when building the first
+	 * level. More partners find the best pairs more often once the variables of the islands are
+	 * removed, at the cost of memory.
+	 * @param neighbours the number of partners kept for each variable
+	 * @author fkhawar
+	 */
+	public void setMiNeighbours(int neighbours) {
+		if (neighbours < 1)
+			throw new IllegalArgumentException("The number of partners must be positive: " + neighbours);
+		_miNeighbours = neighbours;
+	}
+
+	/**
+	 * Run the EM of this many islands at the same time when building a level, each with one thread.
+	 * With 1, the islands are fitted one after the other and each EM uses all the threads.
+	 * @param islands the number of islands fitted at the same time
+	 * @author fkhawar
+	 */
+	public void setParallelIslands(int islands) {
+		if (islands < 1)
+			throw new IllegalArgumentException("The number of parallel islands must be positive: " + islands);
+		_parallelIslands = islands;
+	}
 
 	/**
 	 *
@@ -1232,7 +1386,7 @@ public class ForestLTM {
 				Variable vj = vars.get(j);
 				varPair.set(1, vj);
 				int jId = _varId.get(vj.getName());
-				double mi = _mis.get(iId)[jId];
+				double mi = _mis.get(iId, jId);
 
 				// update max MI and indices of best pair
 				if (mi > maxMi) {
@@ -1323,32 +1477,33 @@ public class ForestLTM {
 	 * @return
 	 */
 	private ArrayList<Variable> findShortestOutLink(
-			ArrayList<double[]> mis,
+			MiNeighbourIndex mis,
 			ArrayList<Variable> bestPair, Set<Variable> cluster,
 			Set<Variable> VariablesSet) {
-		double maxMi = Double.NEGATIVE_INFINITY;
 		Variable bestInCluster = null, bestOutCluster = null;
 
+		// the variables outside VariablesSet have been removed from mis
+		BitSet clusterIds = new BitSet(_Variables.size());
+		int[] sources = new int[cluster.size()];
+		int nSources = 0;
 		for (Variable inCluster : cluster) {
-			boolean a = bestPair == null;
-			if (a || !bestPair.contains(inCluster)) {
-				for(int l = 0; l< mis.get(_varId.get(inCluster.getName())).length;l++ ){
-				//for (Entry<Integer, Double> entry : mis.get(_varId.get(inCluster.getName())).entrySet()) {
-					Variable outCluster =_Variables.get(l);
-					double mi = mis.get(_varId.get(inCluster.getName()))[l];
-
-					// skip variables already in cluster
-					if (cluster.contains(outCluster)
-							|| !(VariablesSet.contains(outCluster))) {
-						continue;
-					}
+			int id = _varId.get(inCluster.getName());
+			clusterIds.set(id);
+			if (bestPair == null || !bestPair.contains(inCluster))
+				sources[nSources++] = id;
+		}
 
-					// keep the variable with max MI.
-					if (mi > maxMi) {
-						maxMi = mi;
-						bestInCluster = inCluster;
-						bestOutCluster = outCluster;
-					}
+		int[] link = mis.bestOutLink(Arrays.copyOf(sources, nSources), clusterIds);
+		if (link != null) {
+			bestInCluster = _Variables.get(link[0]);
+			bestOutCluster = _Variables.get(link[1]);
+		} else if (mis.isApproximate() && nSources > 0) {
+			// no candidate is left for the cluster, take the next remaining variable in random order
+			for (Variable outCluster : _VariableArray) {
+				if (!cluster.contains(outCluster) && VariablesSet.contains(outCluster)) {
+					bestInCluster = _Variables.get(sources[0]);
+					bestOutCluster = outCluster;
+					break;
 				}
 			}
 		}
@@ -1449,7 +1604,7 @@ private LTM BuildHierarchy(LTM OldModel, LTM tree) {
 
 		_Variables = new ArrayList<Variable>();
 		_VariablesSet = new HashSet<Variable>();
-		_mis = new ArrayList<double[]>();
+		_mis = null;
 
 		// add all manifest variable to variable set _VariableSet.
 		for (Variable var : data.getVariables()) {
@@ -0,0 +1,381 @@
+package FastHLTA;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Keeps the k partners with the largest mutual information (or cosine similarity) of each variable,
+ * sorted, instead of the values of all the pairs. The variables are numbered like the variables of
+ * EmpiricalMiComputerForBinaryDataStep, which builds the index.
+ * </p>
+ *
+ * <p>
+ * Variables are removed from the index as they are put into islands. The partner lists skip removed
+ * variables lazily when they are queried. When all kept partners of a variable have been removed, its
+ * list is computed again over the remaining variables, so the queries give the same answer as a scan
+ * over the full matrix. Ties go to the variable with the smaller number.
+ * </p>
+ *
+ * <p>
+ * Only the lists are kept, not the frequencies of the pairs: a list is computed, and get() counts
+ * the joint frequency of a pair, from the positive entries of the data. The memory is the lists plus
+ * the positive entries of the data.
+ * </p>
+ *
+ * <p>
+ * An approximate index only values the candidate pairs of MinHash/LSH, see
+ * EmpiricalMiComputerForBinaryDataStep.computeApproximateNeighbours(). Its partners are the best
+ * candidates, and the other pairs are treated as if their variables never co-occur.
+ * </p>
+ *
+ * <p>
+ * The index is built in parallel but is not thread safe to query.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public class MiNeighbourIndex {
+
+	/**
+	 * The number of rows a thread takes at a time when the lists are built
+	 */
+	private static final int BLOCK = 16;
+
+	private final int k;
+	private final boolean cosine;
+
+	/**
+	 * The data the frequencies are counted from
+	 */
+	private final PositiveEntries entries;
+
+	/**
+	 * The candidate pairs the partners are searched among, null to search all the pairs
+	 */
+	private final MinHashCandidates candidates;
+	private final double totalWeight;
+
+	/**
+	 * The frequency of each variable
+	 */
+	private final double[] single;
+
+	/**
+	 * The kept partners of each variable and their values, the largest value first
+	 */
+	private final int[][] neighbours;
+	private final double[][] values;
+	private final int[] sizes;
+
+	/**
+	 * All the partners before the cursor of a variable have been removed
+	 */
+	private final int[] cursors;
+
+	/**
+	 * Whether a variable has more partners than its list keeps
+	 */
+	private final boolean[] truncated;
+
+	private final BitSet removed;
+
+	/**
+	 * The scratch arrays of the queries, made when a list is first computed again
+	 */
+	private Scratch scratch;
+
+	/**
+	 * @param candidates
+	 *            the candidate pairs of an approximate index, null for an exact index.
+	 */
+	MiNeighbourIndex(int k, boolean cosine, PositiveEntries entries, MinHashCandidates candidates) {
+		if (k < 1)
+			throw new IllegalArgumentException("k must be positive: " + k);
+
+		this.k = k;
+		this.cosine = cosine;
+		this.entries = entries;
+		this.candidates = candidates;
+		this.totalWeight = entries.totalWeight;
+		this.single = entries.single;
+
+		int n = single.length;
+		neighbours = new int[n][];
+		values = new double[n][];
+		sizes = new int[n];
+		cursors = new int[n];
+		truncated = new boolean[n];
+		removed = new BitSet(n);
+
+		final AtomicInteger cursor = new AtomicInteger();
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(parallelism);
+		for (int t = 0; t < parallelism; t++) {
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					Scratch scratch = new Scratch(single.length);
+					int start;
+					while ((start = cursor.getAndAdd(BLOCK)) < single.length) {
+						for (int i = start; i < Math.min(single.length, start + BLOCK); i++)
+							fill(i, MiNeighbourIndex.this.k, scratch);
+					}
+				}
+			});
+		}
+		// the calling thread runs the first task, the common pool the others
+		ForkJoinTask.invokeAll(tasks);
+	}
+
+	/**
+	 * @return the number of variables
+	 */
+	public int size() {
+		return single.length;
+	}
+
+	/**
+	 * @return the number of partners kept for each variable
+	 */
+	public int getK() {
+		return k;
+	}
+
+	public boolean isApproximate() {
+		return candidates != null;
+	}
+
+	/**
+	 * Computes the value of a pair from the data, whether or not the pair is kept. In an approximate
+	 * index, a pair that is not a candidate is valued as if it never co-occurs.
+	 */
+	public double get(int i, int j) {
+		double fij = candidates == null || candidates.isCandidate(i, j) ? entries.joint(i, j) : 0;
+		return value(i, j, fij);
+	}
+
+	/**
+	 * Removes a variable, it is not a partner of any variable afterwards.
+	 */
+	public void remove(int v) {
+		removed.set(v);
+	}
+
+	public boolean isRemoved(int v) {
+		return removed.get(v);
+	}
+
+	/**
+	 * Finds the remaining variable outside a cluster with the largest value to one of the given
+	 * variables of the cluster, as a scan of their rows in the full matrix would.
+	 *
+	 * @param sources
+	 *            the variables of the cluster whose partners are searched, in the order of the scan.
+	 * @param cluster
+	 *            all the variables of the cluster, none of them is returned as a partner.
+	 * @return the source and the partner, or null if no remaining variable is outside the cluster.
+	 */
+	public int[] bestOutLink(int[] sources, BitSet cluster) {
+		double max = Double.NEGATIVE_INFINITY;
+		int[] best = null;
+		for (int source : sources) {
+			int slot = bestPartner(source, cluster);
+			if (slot >= 0 && values[source][slot] > max) {
+				max = values[source][slot];
+				best = new int[] { source, neighbours[source][slot] };
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the slot of the first partner of i that is neither removed nor excluded, or -1 if there
+	 *         is none.
+	 */
+	private int bestPartner(int i, BitSet excluded) {
+		while (true) {
+			int[] list = neighbours[i];
+			int size = sizes[i];
+
+			// the removed partners at the head of the list are skipped for good
+			while (cursors[i] < size && removed.get(list[cursors[i]]))
+				cursors[i]++;
+
+			for (int s = cursors[i]; s < size; s++) {
+				int j = list[s];
+				if (!removed.get(j) && !excluded.get(j))
+					return s;
+			}
+
+			if (!truncated[i])
+				return -1;
+
+			// room for the excluded variables, so that a refilled list always holds a partner
+			if (scratch == null)
+				scratch = new Scratch(single.length);
+			fill(i, k + excluded.cardinality(), scratch);
+		}
+	}
+
+	/**
+	 * The arrays of the size of the number of variables that computing a list needs, one per thread
+	 */
+	private static final class Scratch {
+		final double[] row;
+		final boolean[] seen;
+		final int[] partners;
+		final int[] candidates;
+
+		Scratch(int n) {
+			row = new double[n];
+			seen = new boolean[n];
+			partners = new int[n];
+			candidates = new int[n];
+		}
+	}
+
+	/**
+	 * Computes the list of i over the remaining variables, or the remaining candidates of i.
+	 *
+	 * @param scratch
+	 *            the scratch arrays of the calling thread, they are cleared again before returning.
+	 */
+	private void fill(int i, int capacity, Scratch scratch) {
+		int[] list = new int[capacity];
+		double[] listValues = new double[capacity];
+		int size = 0;
+		int found = 0;
+
+		if (candidates != null) {
+			int m = candidates.candidates(i, scratch.candidates, scratch.seen);
+
+			// the joint frequencies from the row of i if that goes over fewer entries than intersecting
+			// the data cases of i with those of each candidate
+			boolean byRow = entries.rowCost(i) < entries.intersectionCost(i, scratch.candidates, m);
+			int partners = byRow ? entries.row(i, scratch.row, scratch.seen, scratch.partners) : 0;
+
+			for (int p = 0; p < m; p++) {
+				int j = scratch.candidates[p];
+				if (removed.get(j))
+					continue;
+				double v = value(i, j, byRow ? scratch.row[j] : entries.joint(i, j));
+				if (Double.isNaN(v))
+					continue;
+				found++;
+				size = insert(list, listValues, size, j, v);
+			}
+
+			for (int p = 0; p < partners; p++) {
+				scratch.row[scratch.partners[p]] = 0;
+				scratch.seen[scratch.partners[p]] = false;
+			}
+		} else {
+			double[] row = scratch.row;
+			int m = entries.row(i, row, scratch.seen, scratch.partners);
+
+			for (int j = 0; j < single.length; j++) {
+				if (j == i || removed.get(j))
+					continue;
+				double v = value(i, j, row[j]);
+				if (Double.isNaN(v))
+					continue;
+				found++;
+				size = insert(list, listValues, size, j, v);
+			}
+
+			for (int p = 0; p < m; p++) {
+				row[scratch.partners[p]] = 0;
+				scratch.seen[scratch.partners[p]] = false;
+			}
+		}
+
+		neighbours[i] = list;
+		values[i] = listValues;
+		sizes[i] = size;
+		cursors[i] = 0;
+		truncated[i] = found > list.length;
+	}
+
+	/**
+	 * Inserts a partner into a sorted list if it is better than the last one of a full list.
+	 *
+	 * @return the new size of the list
+	 */
+	private static int insert(int[] list, double[] listValues, int size, int j, double v) {
+		if (size == list.length) {
+			if (!isBetter(j, v, list[size - 1], listValues[size - 1]))
+				return size;
+			size--;
+		}
+		int s = size;
+		while (s > 0 && isBetter(j, v, list[s - 1], listValues[s - 1])) {
+			list[s] = list[s - 1];
+			listValues[s] = listValues[s - 1];
+			s--;
+		}
+		list[s] = j;
+		listValues[s] = v;
+		return size + 1;
+	}
+
+	/**
+	 * Ties go to the smaller variable
+	 */
+	private static boolean isBetter(int j, double v, int other, double otherValue) {
+		return v > otherValue || (v == otherValue && j < other);
+	}
+
+	/**
+	 * Measures how many of the top partners of another index, e.g. the exact one of the same data,
+	 * are also top partners here. Both indexes have to be queried before any variable is removed.
+	 *
+	 * @param top
+	 *            the number of top partners compared, at most k.
+	 * @return the mean over the variables with partners in exact of the fraction of their top
+	 *         partners that are also top partners here.
+	 */
+	public double recall(MiNeighbourIndex exact, int top) {
+		if (exact.size() != size())
+			throw new IllegalArgumentException("The indexes are over " + size() + " and " + exact.size()
+					+ " variables");
+
+		double sum = 0;
+		int counted = 0;
+		BitSet found = new BitSet(size());
+		for (int i = 0; i < size(); i++) {
+			int expected = Math.min(top, exact.sizes[i]);
+			if (expected == 0)
+				continue;
+
+			for (int s = 0; s < Math.min(top, sizes[i]); s++)
+				found.set(neighbours[i][s]);
+			int hits = 0;
+			for (int s = 0; s < expected; s++)
+				if (found.get(exact.neighbours[i][s]))
+					hits++;
+			found.clear();
+
+			sum += (double) hits / expected;
+			counted++;
+		}
+		return counted == 0 ? 1 : sum / counted;
+	}
+
+	/**
+	 * The value of a pair is computed with the smaller variable first, so that it is the same in both
+	 * rows and equal to EmpiricalMiComputerForBinaryDataStep.computerPairwise()
+	 */
+	private double value(int i, int j, double fij) {
+		if (i > j)
+			return value(j, i, fij);
+		return cosine ? EmpiricalMiComputerForBinaryDataStep.cosine(single[i], single[j], fij)
+				: EmpiricalMiComputerForBinaryDataStep.mi(single[i], single[j], fij, totalWeight);
+	}
+}
@@ -0,0 +1,196 @@
+package FastHLTA;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The candidate pairs of variables of MinHash signatures with LSH banding: two variables are
+ * candidates if their signatures agree on all the rows of a band, i.e. if their sets of data cases
+ * are likely to have a large Jaccard similarity.
+ * </p>
+ *
+ * <p>
+ * The variables of each band are kept sorted by their bucket, so the candidates of a variable are
+ * listed from its neighbours in the bands instead of being stored by pair. The variables without any
+ * positive entry are never candidates.
+ * </p>
+ *
+ * @author fkhawar
+ */
+final class MinHashCandidates {
+
+	/**
+	 * A variable is a candidate with at most this many variables on each side of it in a bucket, so
+	 * that the variables which share a frequent signature, e.g. the rare ones, do not make a quadratic
+	 * number of candidates
+	 */
+	static final int MAX_BUCKET_PARTNERS = 100;
+
+	/**
+	 * The number of variables a thread takes at a time when computing the signatures
+	 */
+	private static final int BLOCK = 64;
+
+	private final int bands;
+
+	/**
+	 * The bucket in the high and the variable in the low 32 bits, sorted, for each band
+	 */
+	private final long[][] sorted;
+
+	/**
+	 * The position of each variable in sorted of each band, -1 for the variables without any positive
+	 * entry
+	 */
+	private final int[][] positions;
+
+	/**
+	 * @param bands
+	 *            the number of LSH bands, more bands find more candidates.
+	 * @param rows
+	 *            the number of signature rows of a band, more rows find fewer but more similar
+	 *            candidates.
+	 * @param seed
+	 *            the seed of the hash functions.
+	 */
+	MinHashCandidates(final PositiveEntries entries, final int bands, final int rows, long seed) {
+		if (bands < 1 || rows < 1)
+			throw new IllegalArgumentException("bands=" + bands + " rows=" + rows);
+
+		this.bands = bands;
+		final int numberOfVariables = entries.numberOfVariables;
+		final int parallelism = Runtime.getRuntime().availableProcessors();
+
+		// the MinHash signatures, a multiply-shift hash of the data case per row
+		final int length = bands * rows;
+		final long[] multipliers = new long[length];
+		final long[] offsets = new long[length];
+		Random random = new Random(seed);
+		for (int h = 0; h < length; h++) {
+			multipliers[h] = random.nextLong() | 1;
+			offsets[h] = random.nextLong();
+		}
+
+		final int[] signatures = new int[Math.multiplyExact(numberOfVariables, length)];
+		final AtomicInteger cursor = new AtomicInteger();
+		List<RecursiveAction> signing = new ArrayList<RecursiveAction>(parallelism);
+		for (int t = 0; t < parallelism; t++) {
+			signing.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					int start;
+					while ((start = cursor.getAndAdd(BLOCK)) < numberOfVariables) {
+						for (int i = start; i < Math.min(numberOfVariables, start + BLOCK); i++) {
+							int base = i * length;
+							Arrays.fill(signatures, base, base + length, Integer.MAX_VALUE);
+							for (int p = entries.variableStart[i]; p < entries.variableStart[i + 1]; p++) {
+								long c = entries.variableCases[p];
+								for (int h = 0; h < length; h++) {
+									int value = (int) ((multipliers[h] * c + offsets[h]) >>> 33);
+									if (value < signatures[base + h])
+										signatures[base + h] = value;
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+		// the calling thread runs the first task, the common pool the others
+		ForkJoinTask.invokeAll(signing);
+
+		// the variables of each band sorted by bucket
+		sorted = new long[bands][];
+		positions = new int[bands][];
+		final AtomicInteger bandCursor = new AtomicInteger();
+		List<RecursiveAction> banding = new ArrayList<RecursiveAction>();
+		for (int t = 0; t < Math.min(bands, parallelism); t++) {
+			banding.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					int band;
+					while ((band = bandCursor.getAndIncrement()) < bands) {
+						long[] keyed = new long[numberOfVariables];
+						int m = 0;
+						for (int i = 0; i < numberOfVariables; i++) {
+							if (entries.variableStart[i] == entries.variableStart[i + 1])
+								continue;
+							int key = 1;
+							for (int r = 0; r < rows; r++)
+								key = 31 * key + signatures[i * length + band * rows + r];
+							keyed[m++] = ((long) (key * 0x9E3779B9) << 32) | i;
+						}
+						Arrays.sort(keyed, 0, m);
+
+						int[] position = new int[numberOfVariables];
+						Arrays.fill(position, -1);
+						for (int a = 0; a < m; a++)
+							position[(int) keyed[a]] = a;
+
+						sorted[band] = Arrays.copyOf(keyed, m);
+						positions[band] = position;
+					}
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(banding);
+	}
+
+	/**
+	 * Lists the candidates of variable i, each once.
+	 *
+	 * @param partners
+	 *            receives the candidates, at least as long as the number of variables.
+	 * @param seen
+	 *            false everywhere, it is false everywhere again when the method returns.
+	 * @return the number of candidates listed
+	 */
+	int candidates(int i, int[] partners, boolean[] seen) {
+		int size = 0;
+		for (int band = 0; band < bands; band++) {
+			int a = positions[band][i];
+			if (a < 0)
+				continue;
+			long[] keyed = sorted[band];
+			int bucket = (int) (keyed[a] >>> 32);
+			int from = Math.max(0, a - MAX_BUCKET_PARTNERS);
+			int to = Math.min(keyed.length, a + 1 + MAX_BUCKET_PARTNERS);
+			for (int b = from; b < to; b++) {
+				if (b == a || (int) (keyed[b] >>> 32) != bucket)
+					continue;
+				int j = (int) keyed[b];
+				if (!seen[j]) {
+					seen[j] = true;
+					partners[size++] = j;
+				}
+			}
+		}
+		for (int s = 0; s < size; s++)
+			seen[partners[s]] = false;
+		return size;
+	}
+
+	/**
+	 * @return whether variables i and j are candidates
+	 */
+	boolean isCandidate(int i, int j) {
+		for (int band = 0; band < bands; band++) {
+			int a = positions[band][i];
+			int b = positions[band][j];
+			if (a >= 0 && b >= 0 && Math.abs(a - b) <= MAX_BUCKET_PARTNERS
+					&& (sorted[band][a] >>> 32) == (sorted[band][b] >>> 32))
+				return true;
+		}
+		return false;
+	}
+}
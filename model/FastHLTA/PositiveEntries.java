@@ -0,0 +1,193 @@
+package FastHLTA;
+
+/**
+ * <p>
+ * The positive entries of binary data cases, by data case and by variable. The single and joint
+ * frequencies of the variables are counted from them when they are needed, so that the memory grows
+ * with the number of positive entries of the data instead of the number of pairs of variables that
+ * co-occur.
+ * </p>
+ *
+ * <p>
+ * The variables are numbered like the variables of EmpiricalMiComputerForBinaryDataStep, which
+ * builds the entries. The entries are not changed after they are built, so they can be read by
+ * several threads.
+ * </p>
+ *
+ * @author fkhawar
+ */
+final class PositiveEntries {
+
+	final int numberOfVariables;
+	final int numberOfCases;
+	final double totalWeight;
+
+	/**
+	 * The frequency of each variable
+	 */
+	final double[] single;
+
+	/**
+	 * The weight of each data case, null if they all weigh 1
+	 */
+	private final double[] weights;
+
+	/**
+	 * The positive variables of data case c are at [caseStart[c], caseStart[c + 1]) of caseVariables
+	 */
+	private final int[] caseStart;
+	private final int[] caseVariables;
+
+	/**
+	 * The data cases where variable i is positive are at [variableStart[i], variableStart[i + 1]) of
+	 * variableCases, in increasing order
+	 */
+	final int[] variableStart;
+	final int[] variableCases;
+
+	/**
+	 * @param caseStart
+	 *            the start of the variables of each data case in caseVariables, and their end.
+	 * @param caseVariables
+	 *            the positive variables of the data cases.
+	 * @param weights
+	 *            the weight of each data case, or null if they all weigh 1.
+	 */
+	PositiveEntries(int numberOfVariables, double totalWeight, int[] caseStart, int[] caseVariables,
+			double[] weights) {
+		this.numberOfVariables = numberOfVariables;
+		this.numberOfCases = caseStart.length - 1;
+		this.totalWeight = totalWeight;
+		this.caseStart = caseStart;
+		this.caseVariables = caseVariables;
+		this.weights = weights;
+
+		// the data cases of each variable, going over the data cases in order keeps them sorted
+		variableStart = new int[numberOfVariables + 1];
+		for (int v : caseVariables)
+			variableStart[v + 1]++;
+		for (int i = 0; i < numberOfVariables; i++)
+			variableStart[i + 1] += variableStart[i];
+
+		variableCases = new int[caseVariables.length];
+		single = new double[numberOfVariables];
+		int[] next = new int[numberOfVariables];
+		System.arraycopy(variableStart, 0, next, 0, numberOfVariables);
+		for (int c = 0; c < numberOfCases; c++) {
+			double weight = weight(c);
+			for (int a = caseStart[c]; a < caseStart[c + 1]; a++) {
+				int v = caseVariables[a];
+				variableCases[next[v]++] = c;
+				single[v] += weight;
+			}
+		}
+	}
+
+	/**
+	 * @return the start of the variables of each data case for the given numbers of positive entries
+	 * @throws IllegalArgumentException
+	 *             if there are too many positive entries to index them with an int
+	 */
+	static int[] caseStart(int[] sizes) {
+		int[] start = new int[sizes.length + 1];
+		long total = 0;
+		for (int c = 0; c < sizes.length; c++) {
+			total += sizes[c];
+			if (total > Integer.MAX_VALUE - 8)
+				throw new IllegalArgumentException("The data has more than " + (Integer.MAX_VALUE - 8)
+						+ " positive entries");
+			start[c + 1] = (int) total;
+		}
+		return start;
+	}
+
+	double weight(int c) {
+		return weights == null ? 1 : weights[c];
+	}
+
+	/**
+	 * Adds the joint frequencies of variable i with each variable j > i into row[j]
+	 */
+	void addUpperRow(int i, double[] row) {
+		for (int p = variableStart[i]; p < variableStart[i + 1]; p++) {
+			int c = variableCases[p];
+			double weight = weight(c);
+			for (int a = caseStart[c]; a < caseStart[c + 1]; a++) {
+				int j = caseVariables[a];
+				if (j > i)
+					row[j] += weight;
+			}
+		}
+	}
+
+	/**
+	 * Adds the joint frequencies of variable i with the variables it co-occurs with into row, and
+	 * lists these variables in partners.
+	 *
+	 * @param row
+	 *            receives the joint frequencies, zero at the listed partners before the call.
+	 * @param seen
+	 *            false at the listed partners before the call, and true after it.
+	 * @return the number of partners listed
+	 */
+	int row(int i, double[] row, boolean[] seen, int[] partners) {
+		int size = 0;
+		for (int p = variableStart[i]; p < variableStart[i + 1]; p++) {
+			int c = variableCases[p];
+			double weight = weight(c);
+			for (int a = caseStart[c]; a < caseStart[c + 1]; a++) {
+				int j = caseVariables[a];
+				if (j == i)
+					continue;
+				if (!seen[j]) {
+					seen[j] = true;
+					partners[size++] = j;
+				}
+				row[j] += weight;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of entries row() goes over for variable i
+	 */
+	long rowCost(int i) {
+		long cost = 0;
+		for (int p = variableStart[i]; p < variableStart[i + 1]; p++) {
+			int c = variableCases[p];
+			cost += caseStart[c + 1] - caseStart[c];
+		}
+		return cost;
+	}
+
+	/**
+	 * @return the number of entries joint() goes over for variable i and each of the given variables
+	 */
+	long intersectionCost(int i, int[] others, int size) {
+		long cost = (long) size * (variableStart[i + 1] - variableStart[i]);
+		for (int s = 0; s < size; s++)
+			cost += variableStart[others[s] + 1] - variableStart[others[s]];
+		return cost;
+	}
+
+	/**
+	 * @return the joint frequency of variables i and j, from the intersection of their data cases
+	 */
+	double joint(int i, int j) {
+		double fij = 0;
+		int p = variableStart[i], q = variableStart[j];
+		while (p < variableStart[i + 1] && q < variableStart[j + 1]) {
+			if (variableCases[p] < variableCases[q])
+				p++;
+			else if (variableCases[p] > variableCases[q])
+				q++;
+			else {
+				fij += weight(variableCases[p]);
+				p++;
+				q++;
+			}
+		}
+		return fij;
+	}
+}
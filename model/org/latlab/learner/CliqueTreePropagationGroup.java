@@ -1,7 +1,9 @@
 package org.latlab.learner;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.latlab.model.BayesNet;
 import org.latlab.model.LTM;
@@ -10,46 +12,69 @@ import org.latlab.reasoner.CliqueTreePropagation;
 /**
  * Used to hold a group of the clique tree propagation on the same model.
  * 
+ * <p>
+ * take() never blocks, so it can be called from the tasks of a ForkJoinPool
+ * without parking a worker: it reuses a ctp in reserve, or constructs a new one
+ * if all are in use. At most capacity ctps are kept in reserve by put(), so
+ * capacity should be the parallelism of the pool that uses the group; more ctps
+ * only exist while more threads use the group at the same time. Constructing a
+ * group is cheap, the ctps are cloned on demand from a prototype that is never
+ * handed out and shares the variable sets of its cliques with all of them.
+ * </p>
+ * 
+ * <p>
+ * The counters of takes, constructions and discarded ctps show how contended a
+ * group is: with enough ctps in reserve, nearly all takes reuse one.
+ * </p>
+ * 
  * @author kmpoon
  * 
  */
 public class CliqueTreePropagationGroup {
-	private final BlockingQueue<CliqueTreePropagation> queue;
+	private final Queue<CliqueTreePropagation> queue;
 	public final BayesNet model;
 	public final int capacity;
 
+	/**
+	 * The number of ctps in queue, which is not bounded itself
+	 */
+	private final AtomicInteger reserved = new AtomicInteger();
+
+	/**
+	 * The ctp the members are cloned from, null until the first is needed
+	 */
+	private CliqueTreePropagation prototype = null;
+
+	private final LongAdder takes = new LongAdder();
+	private final LongAdder constructions = new LongAdder();
+	private final LongAdder discards = new LongAdder();
+
 	public static CliqueTreePropagationGroup constructFromTemplate(
 			CliqueTreePropagation template, BayesNet model, int capacity) {
 		CliqueTreePropagationGroup group =
 				new CliqueTreePropagationGroup(model, capacity);
 
-		while (group.queue.size() < capacity) {
-			CliqueTreePropagation ctp = template.clone();
-			ctp.setBayesNet(model);
-			group.queue.add(ctp);
-		}
+		group.prototype = template.clone();
+		group.prototype.setBayesNet(model);
 
 		return group;
 	}
 
 	public static CliqueTreePropagationGroup constructFromModel(BayesNet model,
 			int capacity) {
-		return new CliqueTreePropagationGroup(construct(model), capacity);
+		return new CliqueTreePropagationGroup(model, capacity);
 	}
 
 	private CliqueTreePropagationGroup(BayesNet model, int capacity) {
 		this.capacity = capacity;
 		this.model = model;
-		queue = new ArrayBlockingQueue<CliqueTreePropagation>(capacity);
+		queue = new ConcurrentLinkedQueue<CliqueTreePropagation>();
 	}
 
 	public CliqueTreePropagationGroup(CliqueTreePropagation ctp, int capacity) {
 		this(ctp.getBayesNet(), capacity);
 
-		queue.add(ctp);
-
-		while (queue.size() < capacity)
-			queue.add(construct(model));
+		put(ctp);
 	}
 
 	private static CliqueTreePropagation construct(BayesNet model) {
@@ -59,30 +84,75 @@ public class CliqueTreePropagationGroup {
 			return new CliqueTreePropagation(model);
 	}
 
+	/**
+	 * @return the prototype of the members, constructed on the first call
+	 */
+	private synchronized CliqueTreePropagation getPrototype() {
+		if (prototype == null)
+			prototype = construct(model);
+		return prototype;
+	}
+
 	/**
 	 * It constructs new clique tree propagation if necessary, otherwise reuses
-	 * the ones in reserve.
+	 * the ones in reserve. It never waits.
 	 * 
 	 * @return
 	 */
 	public CliqueTreePropagation take() {
-		try {
-			return queue.take();
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+		takes.increment();
+
+		CliqueTreePropagation ctp = queue.poll();
+		if (ctp != null) {
+			reserved.decrementAndGet();
+			return ctp;
 		}
+
+		constructions.increment();
+		return getPrototype().clone();
 	}
 
 	/**
-	 * Puts back a clique tree propagation in reserve after use.
+	 * Puts back a clique tree propagation in reserve after use. It is
+	 * discarded if capacity ctps are in reserve already.
 	 * 
 	 * @param ctp
 	 */
 	public void put(CliqueTreePropagation ctp) {
-		try {
-			queue.put(ctp);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+		if (reserved.incrementAndGet() > capacity) {
+			reserved.decrementAndGet();
+			discards.increment();
+			return;
 		}
+		queue.offer(ctp);
+	}
+
+	/**
+	 * @return the number of calls of take()
+	 */
+	public long getTakes() {
+		return takes.sum();
+	}
+
+	/**
+	 * @return the number of takes that found no ctp in reserve and constructed
+	 *         one
+	 */
+	public long getConstructions() {
+		return constructions.sum();
+	}
+
+	/**
+	 * @return the number of ctps put back while the reserve was full
+	 */
+	public long getDiscards() {
+		return discards.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "ctp group: capacity=" + capacity + " takes=" + getTakes()
+				+ " constructions=" + getConstructions() + " discards="
+				+ getDiscards();
 	}
 }
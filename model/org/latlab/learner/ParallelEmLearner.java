@@ -78,6 +78,13 @@ public class ParallelEmLearner {
 
 	private HashSet<String> _dontUpdateNodes = null;
 
+	/**
+	 * The number of threads an EM step uses, 0 for the parallelism of the
+	 * shared pool. With 1 the steps run in the calling thread, so that several
+	 * small models can be optimized at the same time from different threads.
+	 */
+	private int _parallelism = 0;
+
 	private static ForkJoinPool threadPool = null;
 
 	/**
@@ -121,7 +128,7 @@ public class ParallelEmLearner {
 
 			ctps[i] =
 					CliqueTreePropagationGroup.constructFromModel(copy,
-							getForkJoinPool().getParallelism());
+							getParallelism());
 		}
 
 		// We run several steps of emStep before killing starting points for two
@@ -379,7 +386,10 @@ public class ParallelEmLearner {
 
 		ForkComputation computation =
 				new ForkComputation(context, 0, dataSet.getData().size());
-		getForkJoinPool().invoke(computation);
+		if (_parallelism == 1)
+			computation.invoke(); // a single task, it runs in this thread
+		else
+			getForkJoinPool().invoke(computation);
 
 		// updates parameters
 		for (AbstractNode node : ctps.model.getNodes()) {
@@ -584,4 +594,27 @@ public class ParallelEmLearner {
 		_dontUpdateNodes = DontUpdate;
 	}
 
+	/**
+	 * Returns the number of threads an EM step uses.
+	 * 
+	 * @return the number of threads an EM step uses.
+	 */
+	public final int getParallelism() {
+		return _parallelism > 0 ? _parallelism : getForkJoinPool().getParallelism();
+	}
+
+	/**
+	 * Replaces the number of threads an EM step uses. 0 means the parallelism
+	 * of the shared pool.
+	 * 
+	 * @param parallelism
+	 *            new number of threads.
+	 */
+	public final void setParallelism(int parallelism) {
+		// parallelism must be non-negative
+		assert parallelism >= 0;
+
+		_parallelism = parallelism;
+	}
+
 }
\ No newline at end of file
@@ -8,8 +8,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 
@@ -17,8 +15,9 @@ import org.latlab.graph.AbstractNode;
 import org.latlab.model.BayesNet;
 import org.latlab.model.BeliefNode;
 import org.latlab.model.LTM;
-import org.latlab.reasoner.CliqueNode;
-import org.latlab.reasoner.CliqueTreePropagation;
+import org.latlab.reasoner.CompiledCliqueTree;
+import org.latlab.reasoner.CompiledCliqueTreeBatchPropagation;
+import org.latlab.reasoner.CompiledCliqueTreePropagation;
 import org.latlab.util.DataSet;
 import org.latlab.util.DataSet.DataCase;
 import org.latlab.util.Function;
@@ -113,6 +112,13 @@ public class ParallelStepwiseEmLearner {
 	 */
 	private HashSet<String> _topLevel = null;
 
+	/**
+	 * The number of data cases propagated together in one sweep over the
+	 * compiled clique tree, 1 to propagate case by case and 0 to choose by the
+	 * tree
+	 */
+	protected int _propagationBatchSize = 0;
+
 	private static ForkJoinPool threadPool = null;
 
 	/**
@@ -243,31 +249,11 @@ public class ParallelStepwiseEmLearner {
 		// selects a good starting point
 		//CliqueTreePropagationGroup ctps =chickeringHeckermanRestart(bayesNet, dataSet);
 		BayesNet copy = bayesNet.clone();
+		// emStep() propagates on a compiled clique tree, the group only holds
+		// the model and the parallelism, so none of its ctps is constructed
 		CliqueTreePropagationGroup ctps = CliqueTreePropagationGroup.constructFromModel(copy,
 						getForkJoinPool().getParallelism());
 
-		BlockingQueue<CliqueTreePropagation> queue = new ArrayBlockingQueue<CliqueTreePropagation>(ctps.capacity);
-		for(int i = 0 ; i < ctps.capacity ; i++) {
-			CliqueTreePropagation ctp = ctps.take();
-			//ctp.makeDefaultMessageMap();
-			queue.add(ctp);
-			
-		}
-		
-		for(int i = 0 ; i < ctps.capacity ; i++) {
-			
-			CliqueTreePropagation ctp = null;
-			try {
-				 ctp = queue.take();
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			
-			ctps.put(ctp);
-			
-		}
-
 		
 		// runs EM steps until convergence
 	/*	double loglikelihood;
@@ -323,22 +309,18 @@ public class ParallelStepwiseEmLearner {
 		public static class Context {
 			// input
 			public final DataSet data;
-			public final CliqueTreePropagationGroup ctps;
-			public final HashSet<String> nonUpdateNodes;
-			public final HashSet<String> topLevel; // Names of the top level latent variables
-			public Set<Variable> ManifestVars;
+			public final CompiledCliqueTree tree;
+			public final int batchSize;
 			public final int splitThreshold;
 
-			public Context(DataSet data, CliqueTreePropagationGroup ctps,
-					HashSet<String> nonUpdateNodes, HashSet<String> topLevel, Set<Variable>  ManifestVars) {
+			public Context(DataSet data, CompiledCliqueTree tree, int batchSize,
+					int parallelism) {
 				this.data = data;
-				this.ctps = ctps;
-				this.nonUpdateNodes = nonUpdateNodes;
-				this.topLevel = topLevel;
-				this.ManifestVars =  ManifestVars;
+				this.tree = tree;
+				this.batchSize = batchSize;
 				splitThreshold =
 						(int) Math.ceil(data.getNumberOfEntries()
-								/ (double) ctps.capacity);
+								/ (double) parallelism);
 			}
 		}
 
@@ -348,12 +330,12 @@ public class ParallelStepwiseEmLearner {
 
 		// the result object is assumed to be accessed by a single thread only.
 
-		// sufficient statistics for each node
-		public final HashMap<Variable, Function> suffStatstemp =
-				new HashMap<Variable, Function>();
-		
-		
-		private double loglikelihood = 0;
+		// sufficient statistics of all families, laid out like the CPTs of the
+		// compiled tree, without the default family beliefs of totalWeight
+		// data cases, see CompiledCliqueTreePropagation.addFamilyBeliefDeltas()
+		public double[] suffStatstemp;
+
+		public double totalWeight = 0;
 
 		// loglikelihood that is computed in an alternative way. In particular,
 		// log is applied during the propagation rather than after propagation
@@ -379,114 +361,74 @@ public class ParallelStepwiseEmLearner {
 					new ForkComputation(context, start + split, length - split);
 			invokeAll(c1, c2);
 
-		//	loglikelihood = c1.loglikelihood + c2.loglikelihood;
 			loglikelihoodAlternative =
 					c1.loglikelihoodAlternative + c2.loglikelihoodAlternative;
+			totalWeight = c1.totalWeight + c2.totalWeight;
 
-			for (Variable v : context.ctps.model.getVariables()) {
-				if (context.nonUpdateNodes != null
-						&& context.nonUpdateNodes.contains(v.getName()))
-					continue;
-
-				if(c1.suffStatstemp.get(v)!=null)
-				addToSufficientStatistics(suffStatstemp, v, c1.suffStatstemp.get(v));
-				if(c2.suffStatstemp.get(v)!=null)
-				addToSufficientStatistics(suffStatstemp, v, c2.suffStatstemp.get(v));
-			}
+			suffStatstemp = c1.suffStatstemp;
+			for (int i = 0; i < suffStatstemp.length; i++)
+				suffStatstemp[i] += c2.suffStatstemp[i];
 		}
 
 		private void computeDirectly() {
-			CliqueTreePropagation ctp = context.ctps.take();
-			
-			ctp.makeDefaultMessageMap(); 
+			suffStatstemp = new double[context.tree.getFamilyBeliefSize()];
+			if (context.batchSize > 1) {
+				computeDirectlyInBatches();
+				return;
+			}
+
+			CompiledCliqueTreePropagation ctp =
+					new CompiledCliqueTreePropagation(context.tree);
 
-			
-			Set<CliqueNode> lastPropagationRangeCliques = null;
-			
 			// computes datum by datum
 			for (int i = start; i < start + length; i++) {
 				DataCase dataCase = context.data.getData().get(i);
 				double weight = dataCase.getWeight();
 
-				// propagates
-				
-				double likelihoodDataCase;
-				if(context.topLevel != null) {
-					
-					//if(lastPropagationRangeCliques == null) {
-						//ctp.makeDefaultMessageMap();
-					//}
-					
-					// reset default messages of propagationRangeCliques
-					if (lastPropagationRangeCliques != null)
-						ctp.resetMessages(lastPropagationRangeCliques);
-					
-					// sets evidences
-					int count =  ctp.setEvidence(context.data.getVariables(),dataCase.getStates(),context.ManifestVars);
-					
-					//set the _focusedSubtree in the clique tree
-					if(count != 0 ) {
-						lastPropagationRangeCliques =  ctp.findAndSetPropagationRange(context.topLevel);
-						likelihoodDataCase = ctp.propagate(); // added by Farhan
-					}
-					else
-						lastPropagationRangeCliques = null; // if no evidence is set, don't do any propagation
-				}
-				else {
-					// sets evidences
-					ctp.setEvidence(context.data.getVariables(),dataCase.getStates());
-					likelihoodDataCase = ctp.propagate();
-				}
-				
+				// sets evidences and propagates over the range of the
+				// manifest variables that are not 0, starting from the
+				// messages of the data case before: the data cases are
+				// sorted, so consecutive cases share most of their states
+				ctp.setEvidence(context.data.getVariables(), dataCase.getStates());
 				double loglikelihoodAlternativeDataCase =
-						ctp.getLastLogLikelihood();
-				//assert likelihoodDataCase > Double.MIN_NORMAL;
-				// if (likelihoodDataCase <= 1e-20) {
-				// System.out.printf(
-				// "In ParallelEm, improper loglikelihood in : %e "
-				// + "on the %d-th data case. "
-				// + "Alternative loglikelihood: %e\n",
-				// likelihoodDataCase, i,
-				// loglikelihoodAlternativeDataCase);
-				// }
-
-				// updates sufficient statistics for each node
-				for (Variable var : context.ctps.model.getVariables()) {
-			//	LinkedHashSet<Variable> vars = new LinkedHashSet<Variable>();
-			//	for (CliqueNode clique : lastPropagationRangeCliques) {	
-			//		vars.addAll(clique.getVariables());
-				//}
-
-				//	for (Variable var : vars) {
-					
-					if (context.nonUpdateNodes != null
-							&& context.nonUpdateNodes.contains(var.getName()))
-						continue;
-					
-					
-					
-					Function fracWeight = ctp.computeFamilyBelief(var);
-
-					fracWeight.multiply(weight);
-					//System.out.println("Varaible name: "+var.toString()+"pivot: "+ctp.getCliqueTree().getPivot());
-					addToSufficientStatistics(suffStatstemp, var, fracWeight);
-					}
-				
+						ctp.propagateIncrementally();
+
+				// updates sufficient statistics for each node, only the
+				// families in the propagation range differ from the defaults
+				ctp.addFamilyBeliefDeltas(weight, suffStatstemp);
+				totalWeight += weight;
 
-			//	loglikelihood += Math.log(likelihoodDataCase) * weight;
 				loglikelihoodAlternative +=
 						loglikelihoodAlternativeDataCase * weight;
 			}
-
-			context.ctps.put(ctp);
 		}
 
-		private static void addToSufficientStatistics(
-				HashMap<Variable, Function> stats, Variable variable, Function f) {
-			if (stats.containsKey(variable)) {
-				stats.get(variable).plus(f);
-			} else {
-				stats.put(variable, f);
+		/**
+		 * Same as the loop of computeDirectly(), but propagates batchSize data
+		 * cases in each sweep over the clique tree.
+		 */
+		private void computeDirectlyInBatches() {
+			CompiledCliqueTreeBatchPropagation batch =
+					new CompiledCliqueTreeBatchPropagation(context.tree,
+							context.batchSize);
+			double[] weights = new double[context.batchSize];
+
+			for (int i = start; i < start + length; i++) {
+				DataCase dataCase = context.data.getData().get(i);
+				int b = batch.addEvidence(context.data.getVariables(),
+						dataCase.getStates());
+				weights[b] = dataCase.getWeight();
+
+				if (batch.isFull() || i == start + length - 1) {
+					batch.propagate();
+					batch.addFamilyBeliefDeltas(weights, suffStatstemp);
+					for (int k = 0; k < batch.size(); k++) {
+						totalWeight += weights[k];
+						loglikelihoodAlternative +=
+								batch.getLastLogLikelihood(k) * weights[k];
+					}
+					batch.clear();
+				}
 			}
 		}
 	}
@@ -511,12 +453,20 @@ public class ParallelStepwiseEmLearner {
 	 */
 	// private final void emStep(CliqueTreePropagation ctp, DataSet dataSet) {
 	public final void emStep(CliqueTreePropagationGroup ctps, DataSet dataSet, Set<Variable> ManifestVariables) {
+		// the parameters change in every step, so the tree is compiled again
+		CompiledCliqueTree tree =
+				new CompiledCliqueTree((LTM) ctps.model, _topLevel, null);
 		ForkComputation.Context context =
-				new ForkComputation.Context(dataSet, ctps, _dontUpdateNodes, _topLevel, ManifestVariables);
+				new ForkComputation.Context(dataSet, tree,
+						CompiledCliqueTreeBatchPropagation.chooseBatchSize(
+								tree, _propagationBatchSize),
+						ctps.capacity);
 
 		ForkComputation computation =
 				new ForkComputation(context, 0, dataSet.getData().size());
 		getForkJoinPool().invoke(computation);
+		tree.addDefaultFamilyBeliefs(computation.totalWeight,
+				computation.suffStatstemp);
 
 		// updates parameters
 		for (AbstractNode node : ctps.model.getNodes()) {
@@ -525,7 +475,8 @@ public class ParallelStepwiseEmLearner {
 			if (_dontUpdateNodes != null
 					&& _dontUpdateNodes.contains(bNode.getName()))
 				continue;
-			Function suffStats_batch = computation.suffStatstemp.get(bNode.getVariable());
+			Function suffStats_batch = tree.createFamilyFunction(
+					tree.indexOf(bNode.getVariable()), computation.suffStatstemp);
 
 			double eta = Math.pow(_nSteps+2, -0.75);
 			addToSufficientStatistics(bNode.getVariable(),suffStats_batch,eta);
@@ -762,4 +713,19 @@ public class ParallelStepwiseEmLearner {
 		_topLevel = topLevel;
 	}
 
+	/**
+	 * Sets the number of data cases propagated together in one sweep over the
+	 * clique tree.
+	 * 
+	 * @param propagationBatchSize
+	 *            the number of data cases, 1 to propagate case by case and 0
+	 *            to choose by the tree.
+	 */
+	public final void setPropagationBatchSize(int propagationBatchSize) {
+		// the batch size must not be negative
+		assert propagationBatchSize >= 0;
+
+		_propagationBatchSize = propagationBatchSize;
+	}
+
 }
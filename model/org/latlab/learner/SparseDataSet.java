@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
 
 import org.latlab.util.DataSet;
@@ -225,6 +226,33 @@ public class SparseDataSet {
 	public int getTotalWeight(){
 		return _totalDatacases;
 	}
+
+	/**
+	 * Return the internal item IDs of the positive entries of a datacase, in the original order of the
+	 * datacases, i.e. without randomization
+	 * @param datacase the internal user ID, from 0 to getTotalWeight()-1
+	 */
+	public IntCollection getRow(int datacase){
+		return SDataSet.userMatrix().get(datacase);
+	}
+
+	/**
+	 * Map the internal item IDs to the positions of their variables in a list of variables
+	 * @param variables variables of the dense data, e.g. a subset of them
+	 * @return the position in variables at [internal item ID], or -1 if the variable of the item is not in the list
+	 */
+	public int[] getItemPositions(List<Variable> variables){
+		HashMap<String,Integer> positions = new HashMap<String,Integer>();
+		for(int i = 0 ; i < variables.size() ; i++)
+			positions.put(variables.get(i).getName(), i);
+
+		int[] itemPositions = new int[SDataSet.maxItemID()+1];
+		for(int internal_ID = 0 ; internal_ID < itemPositions.length ; internal_ID++){
+			Integer position = positions.get(_item_mapping.toOriginalID(internal_ID));
+			itemPositions[internal_ID] = position == null ? -1 : position;
+		}
+		return itemPositions;
+	}
 	
 	private DataSet SparseToDense(int batchSize, int start){
 		
@@ -402,7 +402,8 @@ public class CliqueNode extends UndirectedNode {
 	}
 
 	/**
-	 * Returns the collection of Variables attached to this clique.
+	 * Returns the collection of Variables attached to this clique. It is
+	 * shared with the clones of the clique tree and must not be modified.
 	 * 
 	 * @return the collection of Variables attached to this clique.
 	 */
@@ -413,17 +413,16 @@ public class CliqueTree extends UndirectedGraph {
 	 * Creates and returns a deep copy of this CT. Variables are not deep copied
 	 * but the reference are used.
 	 * 
-	 * @return A deep copy of this CT.
+	 * @return A deep copy of this CT. The variable sets of the cliques are
+	 *         not modified after construction, so they are shared.
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public CliqueTree clone() {
 		CliqueTree copy = new CliqueTree();
 
 		// copies nodes
 		for (AbstractNode node : _nodes) {
-			copy.addNode((LinkedHashSet<Variable>) ((CliqueNode) node)
-					.getVariables().clone(), node.getName());
+			copy.addNode(((CliqueNode) node).getVariables(), node.getName());
 		}
 
 		// copies edges
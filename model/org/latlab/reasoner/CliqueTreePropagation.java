@@ -23,6 +23,8 @@ import org.latlab.model.BeliefNode;
 import org.latlab.model.LTM;
 import org.latlab.util.DataSet;
 import org.latlab.util.Function;
+import org.latlab.util.Function1D;
+import org.latlab.util.Function2D;
 import org.latlab.util.Variable;
 
 
@@ -112,6 +114,17 @@ public final class CliqueTreePropagation implements Cloneable {
 	private HashMap<Variable,String> _mapLeafVariableToToplevelVariable =null;
 	
 	private Set<Variable> _evidenceVariables =null;
+	
+	/**
+	 * If not null, the evidence is sparse: every variable of this set that is not in _evidence is
+	 * observed in state 0. Only the positive states are stored, so setting and clearing the evidence
+	 * of a data case costs O(number of positive states) instead of O(number of manifest variables).
+	 * The default messages are propagated with all manifest variables in state 0, so the cliques
+	 * outside the propagation range already hold the messages of the negative states.
+	 * 
+	 * @author fkhawar
+	 */
+	private Set<Variable> _negativeVariables = null;
  	
 	private Set<AbstractNode> _topVariablesNeighborCliques = null;
 	/**
@@ -218,7 +231,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		
 			
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		// propagate all the messages
 		propagate();
@@ -532,6 +545,7 @@ public final class CliqueTreePropagation implements Cloneable {
 	 * Clears the evidence entered into this inference engine.
 	 */
 	public void clearEvidence() {
+		_negativeVariables = null;
 		get_evidence().clear();
 	}
 
@@ -613,8 +627,18 @@ public final class CliqueTreePropagation implements Cloneable {
 
 		Set<Variable> mutableVars = functions.keySet();
 
-		for (Variable var : get_evidence().keySet()) { // do for only 1 evidence if focused subtree is set 
-			int value = get_evidence().get(var);
+		// with sparse evidence only the observed variables of the absorbed cliques can change a function
+		Collection<Variable> observedVars = get_evidence().keySet();
+		if (_negativeVariables != null) {
+			observedVars = new ArrayList<Variable>();
+			for (Variable var : focusedSubTree == null ? _bayesNet.getVariables() : focusedSubTreeTreeNodes) {
+				if (isObserved(var))
+					observedVars.add(var);
+			}
+		}
+
+		for (Variable var : observedVars) { // do for only 1 evidence if focused subtree is set 
+			int value = observedState(var);
 
 			BeliefNode bNode = _bayesNet.getNodeByName(var.getName());
 
@@ -672,7 +696,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		// sums out difference between source and destination but retain
 		// standing nodes
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var) && !standingVars.contains(var)) {
+			if (!isObserved(var) && !standingVars.contains(var)) {
 				msg = msg.sumOut(var);
 			}
 		}
@@ -694,11 +718,11 @@ public final class CliqueTreePropagation implements Cloneable {
 
 		Function belief = null;
 
-		if (get_evidence().containsKey(var)) {
+		if (isObserved(var)) {
 			// likelihood must be positive
 			assert computeLikelihood() > 0.0;
 
-			belief = Function.createIndicatorFunction(var, get_evidence().get(var));
+			belief = Function.createIndicatorFunction(var, observedState(var));
 		} else {
 			// initialization
 			belief = Function.createIdentityFunction();
@@ -751,9 +775,9 @@ public final class CliqueTreePropagation implements Cloneable {
 		ArrayList<Integer> obsVals = new ArrayList<Integer>();
 
 		for (Variable var : vars) {
-			if (get_evidence().containsKey(var)) {
+			if (isObserved(var)) {
 				obsVars.add(var);
-				obsVals.add(get_evidence().get(var));
+				obsVals.add(observedState(var));
 			} else {
 				hdnVars.add(var);
 			}
@@ -827,9 +851,9 @@ public final class CliqueTreePropagation implements Cloneable {
 		ArrayList<Integer> obsVals = new ArrayList<Integer>();
 
 		for (Variable var : vars) {
-			if (get_evidence().containsKey(var)) {
+			if (isObserved(var)) {
 				obsVars.add(var);
-				obsVals.add(get_evidence().get(var));
+				obsVals.add(observedState(var));
 			} else {
 				hdnVars.add(var);
 			}
@@ -903,9 +927,9 @@ public final class CliqueTreePropagation implements Cloneable {
 		ArrayList<Variable> obsVars = new ArrayList<Variable>();
 		ArrayList<Integer> obsVals = new ArrayList<Integer>();
 
-		if (get_evidence().containsKey(var)) {
+		if (isObserved(var)) {
 			obsVars.add(var);
-			obsVals.add(get_evidence().get(var));
+			obsVals.add(observedState(var));
 		} else {
 			hdnVars.add(var);
 		}
@@ -915,9 +939,9 @@ public final class CliqueTreePropagation implements Cloneable {
 			BeliefNode bParent = (BeliefNode) parent;
 			Variable vParent = bParent.getVariable();
 
-			if (get_evidence().containsKey(vParent)) {
+			if (isObserved(vParent)) {
 				obsVars.add(vParent);
-				obsVals.add(get_evidence().get(vParent));
+				obsVals.add(observedState(vParent));
 			} else {
 				hdnVars.add(vParent);
 			}
@@ -1167,13 +1191,14 @@ public final class CliqueTreePropagation implements Cloneable {
 		Function message = null;
 		double normalization = 1.0;
 		double logNormalization = 0;
+		boolean fused = false;
 
 		if (variableCliques.contains(source)) { // if latent variable
 			Set<CliqueNode> already = source._qualifiedNeiMsgs; // the neighbors to which message have already been sent
 
 			Variable var = source.getVariables().iterator().next(); // the the only variable of this clique
 
-			if (get_evidence().containsKey(var)) {
+			if (isObserved(var)) {
 				// otherwise, when latent variable is listed in evidence
 				// variables, there will be a bug.
 				message = Function.createIdentityFunction();
@@ -1206,6 +1231,17 @@ public final class CliqueTreePropagation implements Cloneable {
 			for (Function function : source.getFunctions()) {
 				message.multiply(function);
 			}
+		} else if ((message = timesAndSumOut(source, destination)) != null) {
+			// the family clique has one CPT and one incoming message, which
+			// are multiplied and summed out in one step
+			fused = true;
+			for (AbstractNode neighbor : source.getNeighbors()) {
+				if (neighbor != destination) {
+					CliqueNode clique = (CliqueNode) neighbor;
+					normalization *= clique.getNormalizationTo(source);
+					logNormalization += clique.getLogNormalizationTo(source);
+				}
+			}
 		} else {// family cliques , both latent and onserved
 			message = Function.createIdentityFunction();
 			for (Function function : source.getFunctions()) {
@@ -1226,7 +1262,7 @@ public final class CliqueTreePropagation implements Cloneable {
 
 		// sums out difference between source and destination
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var)) {
+			if (!fused && !isObserved(var)) {
 				message = message.sumOut(var);
 			}
 		}
@@ -1244,6 +1280,35 @@ public final class CliqueTreePropagation implements Cloneable {
 		source.setLogNormalizationTo(destination, logNormalization);
 	}
 
+	/**
+	 * Computes the message of a family clique with Function2D.timesAndSumOut() when the clique holds
+	 * a single two-dimensional function and gets a single message over the variable to be summed out,
+	 * which is the common case in an LTM.
+	 *
+	 * @return the message before normalization, or null if the clique is not of this form
+	 */
+	private Function timesAndSumOut(CliqueNode source, CliqueNode destination) {
+		List<Function> functions = source.getFunctions();
+		Set<Variable> difference = source.getDifferenceTo(destination);
+		if (functions.size() != 1 || difference.size() != 1 || source.getNeighbors().size() != 2)
+			return null;
+
+		Function function = functions.iterator().next();
+		Variable var = difference.iterator().next();
+		if (!(function instanceof Function2D) || isObserved(var))
+			return null;
+
+		Function incoming = null;
+		for (AbstractNode neighbor : source.getNeighbors()) {
+			if (neighbor != destination)
+				incoming = ((CliqueNode) neighbor).getMessageTo(source);
+		}
+		if (!(incoming instanceof Function1D) || !incoming.contains(var))
+			return null;
+
+		return ((Function2D) function).timesAndSumOut((Function1D) incoming, var);
+	}
+
 	/**
 	 * Sends a message from the source to the destination.
 	 * 
@@ -1299,7 +1364,7 @@ public final class CliqueTreePropagation implements Cloneable {
 
 		// sums out difference between source and destination
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var)) {
+			if (!isObserved(var)) {
 				message = message.sumOut(var);
 			}
 		}
@@ -1341,7 +1406,7 @@ public final class CliqueTreePropagation implements Cloneable {
 
 		// sums out difference between source and destination
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var)) {
+			if (!isObserved(var)) {
 				message = message.sumOut(var);
 			}
 		}
@@ -1371,7 +1436,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		
 		_evidenceVariables.clear();
 		
-		get_evidence().clear();
+		clearEvidence();
 
 		for (int i = 0; i < variables.length; i++) {
 			// ignore this variable if its value is missing
@@ -1407,7 +1472,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		
 		_evidenceVariables.clear();
 		
-		get_evidence().clear();
+		clearEvidence();
 
 		for (int i = 0; i < variables.length; i++) {
 			// ignore this variable if its value is missing, or if this variable is not a leaf of the LTM
@@ -1431,6 +1496,55 @@ public final class CliqueTreePropagation implements Cloneable {
 	}
 	
 
+	/**
+	 * Sparse version of setEvidence(Variable[], int[], Set): only the positive states are stored, and
+	 * the manifest variables in state 0 are observed as negatives of sparse evidence. The data case is
+	 * still scanned, but nothing is stored or absorbed for the negative states. Falls back to
+	 * setEvidence(Variable[], int[], Set) if a manifest variable is missing in the data case.
+	 * 
+	 * supposed to be called by ParallelStepwiseEmLearner only
+	 * @return the number of evidence variables set
+	 * @author fkhawar
+	 */
+	public int setSparseEvidence(Variable[] variables, int[] states , Set<Variable> manifestVariable) {
+		assert variables.length == states.length;
+		
+		int countEvidenceSet = 0;
+		int countManifest = 0;
+		
+		if(_evidenceVariables == null)
+			_evidenceVariables =new HashSet<Variable>();
+		
+		_evidenceVariables.clear();
+		
+		// a new map, since clearing a map that once held all manifest variables is O(n)
+		set_evidence(new HashMap<Variable, Integer>());
+		
+		for (int i = 0; i < variables.length; i++) {
+			if (!manifestVariable.contains(variables[i]))
+				continue;
+			
+			// the negatives of sparse evidence can not express a missing value
+			if (states[i] == DataSet.MISSING_VALUE)
+				return setEvidence(variables, states, manifestVariable);
+			
+			countManifest++;
+			
+			if(states[i]==1) { 
+				_evidenceVariables.add(variables[i]);
+				get_evidence().put(variables[i], 1);
+				countEvidenceSet++;
+			}
+		}
+		
+		if (countManifest != manifestVariable.size())
+			return setEvidence(variables, states, manifestVariable);
+		
+		_negativeVariables = manifestVariable;
+		
+		return countEvidenceSet;
+	}
+	
 	/**
 	 * Sets the positive only evidence of a group of  variables and 0 for all other  variable
 	 * @param varName the names of the variables whose states will be set to 1
@@ -1442,7 +1556,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		if(varName!= null && varName.size() >  allVars.length)
 			System.out.println("The positive evidence variables are more than the total variables");
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		for (Variable var : allVars){
 			if(varName!= null&&varName.contains(var))
@@ -1470,7 +1584,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		if(varName!= null && varName.size() >  allVars.size())
 			System.out.println("The positive evidence variables are more than the total variables");
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		if(_evidenceVariables == null)
 			_evidenceVariables =new HashSet<Variable>();
@@ -1505,7 +1619,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		if(varName!= null && varName.size() >  allVars.size())
 			System.out.println("The positive evidence variables are more than the total variables");
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		for (Variable var : allVars){
 			if(varName!= null&&varName.contains(var))
@@ -1532,7 +1646,7 @@ public final class CliqueTreePropagation implements Cloneable {
 		if(varName!= null && varName.size() >  allVars.size())
 			System.out.println("The positive evidence variables are more than the total variables");
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		for (Variable var : allVars){
 			if(varName!= null&&varName.contains(var))
@@ -1549,6 +1663,21 @@ public final class CliqueTreePropagation implements Cloneable {
 		
 	}
 
+	/**
+	 * @return true if the variable is observed, either in _evidence or as a negative of sparse evidence
+	 */
+	private boolean isObserved(Variable var) {
+		return get_evidence().containsKey(var) || (_negativeVariables != null && _negativeVariables.contains(var));
+	}
+	
+	/**
+	 * @return the observed state of a variable for which isObserved is true
+	 */
+	private int observedState(Variable var) {
+		Integer state = get_evidence().get(var);
+		return state == null ? 0 : state;
+	}
+	
 	public void setBayesNet(BayesNet bayesNet) {
 		_bayesNet = bayesNet;
 	}
@@ -23,6 +23,8 @@ import org.latlab.model.BeliefNode;
 import org.latlab.model.LTM;
 import org.latlab.util.DataSet;
 import org.latlab.util.Function;
+import org.latlab.util.Function1D;
+import org.latlab.util.Function2D;
 import org.latlab.util.Variable;
 
 
@@ -112,8 +114,35 @@ public final class CliqueTreePropagationRec implements Cloneable {
 	private HashMap<Variable,String> _mapLeafVariableToToplevelVariable =null;
 	
 	private Set<Variable> _evidenceVariables =null;
+	
+	/**
+	 * If not null, the evidence is sparse: every variable of this set that is not in _evidence is
+	 * observed in state 0. Only the positive states are stored, so setting and clearing the evidence
+	 * of a data case costs O(number of positive states) instead of O(number of manifest variables).
+	 * The default messages are propagated with all manifest variables in state 0, so the cliques
+	 * outside the propagation range already hold the messages of the negative states.
+	 * 
+	 * @author fkhawar
+	 */
+	private Set<Variable> _negativeVariables = null;
  	
 	private Set<AbstractNode> _topVariablesNeighborCliques = null;
+
+	/**
+	 * If not null, the messages of the islands in the propagation range are taken from this table
+	 * instead of being collected from their leaf cliques. Only valid with positive-only evidence.
+	 * 
+	 * @author fkhawar
+	 */
+	private IslandMessageTable _islandTable = null;
+
+	/**
+	 * The islands under each top level latent variable, including the top level variable itself if it
+	 * is an island. Only made when _islandTable is set.
+	 * 
+	 * @author fkhawar
+	 */
+	private Map<String, List<IslandMessageTable.Island>> _mapTopLevelLatentVariableIslands = null;
 	/**
 	 * Dummy constructor. It is supposed that only
 	 * <code>CliqueTreePropagation.clone()</code> will invoke it.
@@ -249,7 +278,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		
 			
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		// propagate all the messages
 		propagate();
@@ -302,12 +331,14 @@ public final class CliqueTreePropagationRec implements Cloneable {
 			
 			 _mapLeafVariableToToplevelVariable = new HashMap<Variable,String>();
 			_mapTopLevelLatentVariableDescendantCliques = new HashMap<String,Set<CliqueNode>>(); 
+			_mapTopLevelLatentVariableIslands = _islandTable == null ? null : new HashMap<String, List<IslandMessageTable.Island>>();
 			
 			// for each top level latent variable store its descendant variable and family cliques
 			for (String topLatentVaraibleName : topLevelLatentVariableNames) {
 				
 				// stores all descendant clique tree nodes of this top level latent variable and put them in the map
 				Set<CliqueNode> descendantCliques = new HashSet<CliqueNode>();
+				List<IslandMessageTable.Island> islands = new ArrayList<IslandMessageTable.Island>();
 				
 				/* get the descendant of toplevel latent variable from LTM and checking which are leaves. Take the name of the leaves and
 				   get the corresponding clique tree familyClique nodes and if not leaves then take familyCliques and variable cliques.
@@ -324,8 +355,9 @@ public final class CliqueTreePropagationRec implements Cloneable {
 						
 						//Variable leafVariable = ((BeliefNode)descendant).getVariable();
 						
-						// add the family clique of the leaf to the descendantCliques
-						descendantCliques.add(get_cliqueTree().get_familyCliques().get(descendantVariable));
+						// add the family clique of the leaf to the descendantCliques, unless its message comes from the island table
+						if (_islandTable == null || _islandTable.getIslandOfChild(descendantVariable) == null)
+							descendantCliques.add(get_cliqueTree().get_familyCliques().get(descendantVariable));
 						
 						_mapLeafVariableToToplevelVariable.put(descendantVariable, topLatentVaraibleName);
 					}
@@ -336,8 +368,12 @@ public final class CliqueTreePropagationRec implements Cloneable {
 						// add the family clique of the nonLeafVariable to the descendantCliques
 						descendantCliques.add(get_cliqueTree().get_familyCliques().get(descendantVariable));
 						
-						// add the variable clique of the nonLeafVariable to the descendantCliques
-						descendantCliques.add(get_cliqueTree().get_variableCliques().get(descendantVariable));	
+						// add the variable clique of the nonLeafVariable to the descendantCliques, unless its message comes from the island table
+						IslandMessageTable.Island island = _islandTable == null ? null : _islandTable.getIsland(descendantVariable);
+						if (island == null)
+							descendantCliques.add(get_cliqueTree().get_variableCliques().get(descendantVariable));
+						else
+							islands.add(island);
 					}
 					
 				
@@ -347,8 +383,14 @@ public final class CliqueTreePropagationRec implements Cloneable {
 				// add the top level variable's cliques
 				Variable topLatentVaraible = _bayesNet.getNodeByName(topLatentVaraibleName).getVariable();
 				descendantCliques.add(get_cliqueTree().get_familyCliques().get(topLatentVaraible));
-				descendantCliques.add(get_cliqueTree().get_variableCliques().get(topLatentVaraible));
+				IslandMessageTable.Island topIsland = _islandTable == null ? null : _islandTable.getIsland(topLatentVaraible);
+				if (topIsland == null)
+					descendantCliques.add(get_cliqueTree().get_variableCliques().get(topLatentVaraible));
+				else
+					islands.add(topIsland);
 				_mapTopLevelLatentVariableDescendantCliques.put(topLatentVaraibleName, descendantCliques);	
+				if (_islandTable != null)
+					_mapTopLevelLatentVariableIslands.put(topLatentVaraibleName, islands);
 			}
 			
 			///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -434,9 +476,32 @@ public final class CliqueTreePropagationRec implements Cloneable {
 			
 			///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 			
+			// the islands in the range send their tabulated message instead of collecting it, so their variable cliques are
+			// left out of the focused subtree (a path between top level variables may have added them)
+			Set<CliqueNode> islandCliques = null;
+			if (_islandTable != null) {
+				islandCliques = new HashSet<CliqueNode>();
+				Map<IslandMessageTable.Island, Long> masks = _islandTable.masks(consumedItems);
+				
+				for (String topAncestorName : topLevelAncestorNames) {
+					for (IslandMessageTable.Island island : _mapTopLevelLatentVariableIslands.get(topAncestorName)) {
+						Long mask = masks.get(island);
+						CliqueNode variableClique = get_cliqueTree().getVariableClique(island.latent);
+						_islandTable.injectMessage(island, mask == null ? 0L : mask, variableClique, get_cliqueTree().getFamilyClique(island.latent));
+						propagationRangeCliques.remove(variableClique);
+						islandCliques.add(variableClique);
+					}
+				}
+			}
+			
 			// Now set the _focusedSubtree of this clique tree. It automatically set a pivot from the focused subtree(This should be ok I guess)
 			get_cliqueTree().setFocusedSubtree(propagationRangeCliques);
 			
+			// the island variable cliques are returned as well, so that resetMessages restores their default messages
+			if (islandCliques != null) {
+				propagationRangeCliques = new HashSet<CliqueNode>(propagationRangeCliques);
+				propagationRangeCliques.addAll(islandCliques);
+			}
 		}
 		//System.out.println(propagationRangeCliques.size());
 		return propagationRangeCliques;
@@ -656,6 +721,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 	 * Clears the evidence entered into this inference engine.
 	 */
 	public void clearEvidence() {
+		_negativeVariables = null;
 		get_evidence().clear();
 	}
 
@@ -668,6 +734,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		CliqueTreePropagationRec copy = new CliqueTreePropagationRec();
 		copy._bayesNet = _bayesNet;
 		copy.set_cliqueTree(get_cliqueTree().clone());
+		copy._islandTable = _islandTable;
 		// abandon eveidence
 		return copy;
 	}
@@ -737,8 +804,18 @@ public final class CliqueTreePropagationRec implements Cloneable {
 
 		Set<Variable> mutableVars = functions.keySet();
 
-		for (Variable var : get_evidence().keySet()) { // do for only 1 evidence if focused subtree is set 
-			int value = get_evidence().get(var);
+		// with sparse evidence only the observed variables of the absorbed cliques can change a function
+		Collection<Variable> observedVars = get_evidence().keySet();
+		if (_negativeVariables != null) {
+			observedVars = new ArrayList<Variable>();
+			for (Variable var : focusedSubTree == null ? _bayesNet.getVariables() : focusedSubTreeTreeNodes) {
+				if (isObserved(var))
+					observedVars.add(var);
+			}
+		}
+
+		for (Variable var : observedVars) { // do for only 1 evidence if focused subtree is set 
+			int value = observedState(var);
 
 			BeliefNode bNode = _bayesNet.getNodeByName(var.getName());
 
@@ -795,7 +872,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		// sums out difference between source and destination but retain
 		// standing nodes
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var) && !standingVars.contains(var)) {
+			if (!isObserved(var) && !standingVars.contains(var)) {
 				msg = msg.sumOut(var);
 			}
 		}
@@ -817,11 +894,11 @@ public final class CliqueTreePropagationRec implements Cloneable {
 
 		Function belief = null;
 
-		if (get_evidence().containsKey(var)) {
+		if (isObserved(var)) {
 			// likelihood must be positive
 			assert computeLikelihood() > 0.0;
 
-			belief = Function.createIndicatorFunction(var, get_evidence().get(var));
+			belief = Function.createIndicatorFunction(var, observedState(var));
 		} else {
 			// initialization
 			belief = Function.createIdentityFunction();
@@ -874,9 +951,9 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		ArrayList<Integer> obsVals = new ArrayList<Integer>();
 
 		for (Variable var : vars) {
-			if (get_evidence().containsKey(var)) {
+			if (isObserved(var)) {
 				obsVars.add(var);
-				obsVals.add(get_evidence().get(var));
+				obsVals.add(observedState(var));
 			} else {
 				hdnVars.add(var);
 			}
@@ -950,9 +1027,9 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		ArrayList<Integer> obsVals = new ArrayList<Integer>();
 
 		for (Variable var : vars) {
-			if (get_evidence().containsKey(var)) {
+			if (isObserved(var)) {
 				obsVars.add(var);
-				obsVals.add(get_evidence().get(var));
+				obsVals.add(observedState(var));
 			} else {
 				hdnVars.add(var);
 			}
@@ -1026,9 +1103,9 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		ArrayList<Variable> obsVars = new ArrayList<Variable>();
 		ArrayList<Integer> obsVals = new ArrayList<Integer>();
 
-		if (get_evidence().containsKey(var)) {
+		if (isObserved(var)) {
 			obsVars.add(var);
-			obsVals.add(get_evidence().get(var));
+			obsVals.add(observedState(var));
 		} else {
 			hdnVars.add(var);
 		}
@@ -1038,9 +1115,9 @@ public final class CliqueTreePropagationRec implements Cloneable {
 			BeliefNode bParent = (BeliefNode) parent;
 			Variable vParent = bParent.getVariable();
 
-			if (get_evidence().containsKey(vParent)) {
+			if (isObserved(vParent)) {
 				obsVars.add(vParent);
-				obsVals.add(get_evidence().get(vParent));
+				obsVals.add(observedState(vParent));
 			} else {
 				hdnVars.add(vParent);
 			}
@@ -1290,13 +1367,14 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		Function message = null;
 		double normalization = 1.0;
 		double logNormalization = 0;
+		boolean fused = false;
 
 		if (variableCliques.contains(source)) { // if latent variable
 			Set<CliqueNode> already = source._qualifiedNeiMsgs; // the neighbors to which message have already been sent
 
 			Variable var = source.getVariables().iterator().next(); // the the only variable of this clique
 
-			if (get_evidence().containsKey(var)) {
+			if (isObserved(var)) {
 				// otherwise, when latent variable is listed in evidence
 				// variables, there will be a bug.
 				message = Function.createIdentityFunction();
@@ -1329,6 +1407,17 @@ public final class CliqueTreePropagationRec implements Cloneable {
 			for (Function function : source.getFunctions()) {
 				message.multiply(function);
 			}
+		} else if ((message = timesAndSumOut(source, destination)) != null) {
+			// the family clique has one CPT and one incoming message, which
+			// are multiplied and summed out in one step
+			fused = true;
+			for (AbstractNode neighbor : source.getNeighbors()) {
+				if (neighbor != destination) {
+					CliqueNode clique = (CliqueNode) neighbor;
+					normalization *= clique.getNormalizationTo(source);
+					logNormalization += clique.getLogNormalizationTo(source);
+				}
+			}
 		} else {// family cliques , both latent and onserved
 			message = Function.createIdentityFunction();
 			for (Function function : source.getFunctions()) {
@@ -1349,7 +1438,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 
 		// sums out difference between source and destination
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var)) {
+			if (!fused && !isObserved(var)) {
 				message = message.sumOut(var);
 			}
 		}
@@ -1367,6 +1456,35 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		source.setLogNormalizationTo(destination, logNormalization);
 	}
 
+	/**
+	 * Computes the message of a family clique with Function2D.timesAndSumOut() when the clique holds
+	 * a single two-dimensional function and gets a single message over the variable to be summed out,
+	 * which is the common case in an LTM.
+	 *
+	 * @return the message before normalization, or null if the clique is not of this form
+	 */
+	private Function timesAndSumOut(CliqueNode source, CliqueNode destination) {
+		List<Function> functions = source.getFunctions();
+		Set<Variable> difference = source.getDifferenceTo(destination);
+		if (functions.size() != 1 || difference.size() != 1 || source.getNeighbors().size() != 2)
+			return null;
+
+		Function function = functions.iterator().next();
+		Variable var = difference.iterator().next();
+		if (!(function instanceof Function2D) || isObserved(var))
+			return null;
+
+		Function incoming = null;
+		for (AbstractNode neighbor : source.getNeighbors()) {
+			if (neighbor != destination)
+				incoming = ((CliqueNode) neighbor).getMessageTo(source);
+		}
+		if (!(incoming instanceof Function1D) || !incoming.contains(var))
+			return null;
+
+		return ((Function2D) function).timesAndSumOut((Function1D) incoming, var);
+	}
+
 	/**
 	 * Sends a message from the source to the destination.
 	 * 
@@ -1422,7 +1540,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 
 		// sums out difference between source and destination
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var)) {
+			if (!isObserved(var)) {
 				message = message.sumOut(var);
 			}
 		}
@@ -1464,7 +1582,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 
 		// sums out difference between source and destination
 		for (Variable var : source.getDifferenceTo(destination)) {
-			if (!get_evidence().containsKey(var)) {
+			if (!isObserved(var)) {
 				message = message.sumOut(var);
 			}
 		}
@@ -1496,7 +1614,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		
 		_evidenceVariables.clear();
 		
-		get_evidence().clear();
+		clearEvidence();
 
 		for (int i = 0; i < variables.length; i++) {
 			// ignore this variable if its value is missing
@@ -1529,7 +1647,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		if(varName!= null && varName.size() >  allVars.length)
 			System.out.println("The positive evidence variables are more than the total variables");
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		for (Variable var : allVars){
 			if(varName!= null&&varName.contains(var))
@@ -1561,7 +1679,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 	
 		int countEvidenceSet = 0;
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		if(_evidenceVariables == null)
 			_evidenceVariables =new HashSet<Variable>();
@@ -1588,6 +1706,44 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		return countEvidenceSet;
 	}
 	
+	/**
+	 * Sparse version of setPositiveOnlyEvidence(Set, Set): only the variables of varName are stored, in
+	 * state 1, and all other variables of allVars are observed in state 0 without being stored.
+	 * 
+	 * This method has O(|varName|) complexity, and so has clearing the evidence afterwards.
+	 * 
+	 * @param varName : evidence variables
+	 * @param allVars : all manifest varialbes, the set is kept until the evidence is cleared
+	 * @return the number of evidence variables set
+	 * @author fkhawar
+	 */
+	public int setSparsePositiveOnlyEvidence( Set<Variable> varName, Set<Variable> allVars ) {
+		
+		int countEvidenceSet = 0;
+		
+		// a new map, since clearing a map that once held all manifest variables is O(n)
+		set_evidence(new HashMap<Variable, Integer>());
+		
+		if(_evidenceVariables == null)
+			_evidenceVariables =new HashSet<Variable>();
+		
+		_evidenceVariables.clear();
+		
+		if (varName != null) {
+			for (Variable var : varName) {
+				if (allVars.contains(var)) {
+					get_evidence().put(var, 1);
+					_evidenceVariables.add(var);
+					countEvidenceSet++;
+				}
+			}
+		}
+		
+		_negativeVariables = allVars;
+		
+		return countEvidenceSet;
+	}
+	
 	/**
 	 * 
 	 * @param varName
@@ -1598,7 +1754,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		if(varName!= null && varName.size() >  allVars.size())
 			System.out.println("The positive evidence variables are more than the total variables");
 		int countEvidenceSet = 0;
-		get_evidence().clear();
+		clearEvidence();
 		
 		if(_evidenceVariables == null)
 			_evidenceVariables =new HashSet<Variable>();
@@ -1632,7 +1788,7 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		if(varName!= null && varName.size() >  allVars.size())
 			System.out.println("The positive evidence variables are more than the total variables");
 		
-		get_evidence().clear();
+		clearEvidence();
 		
 		for (Variable var : allVars){
 			if(varName!= null&&varName.contains(var))
@@ -1649,6 +1805,21 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		
 	}
 
+	/**
+	 * @return true if the variable is observed, either in _evidence or as a negative of sparse evidence
+	 */
+	private boolean isObserved(Variable var) {
+		return get_evidence().containsKey(var) || (_negativeVariables != null && _negativeVariables.contains(var));
+	}
+	
+	/**
+	 * @return the observed state of a variable for which isObserved is true
+	 */
+	private int observedState(Variable var) {
+		Integer state = get_evidence().get(var);
+		return state == null ? 0 : state;
+	}
+	
 	public void setBayesNet(BayesNet bayesNet) {
 		_bayesNet = bayesNet;
 	}
@@ -1679,6 +1850,24 @@ public final class CliqueTreePropagationRec implements Cloneable {
 		}
 	}
 
+	/**
+	 * Sets the island message table used by findAndSetPropagationRange. The table has to be made from
+	 * the model of this ctp, and the evidence has to be positive-only (see setPositiveOnlyEvidence) while
+	 * it is set. The leaf cliques of the islands are left out of the propagation, so beliefs of manifest
+	 * variables in islands are not computed.
+	 * 
+	 * @param islandTable
+	 *            the table, or null to propagate over the leaf cliques again.
+	 * @author fkhawar
+	 */
+	public void setIslandMessageTable(IslandMessageTable islandTable) {
+		_islandTable = islandTable;
+		
+		// the propagation ranges depend on the table
+		_mapTopLevelLatentVariableDescendantCliques = null;
+		_mapTopLevelLatentVariableIslands = null;
+	}
+	
 	public CliqueTree get_cliqueTree() {
 		return _cliqueTree;
 	}
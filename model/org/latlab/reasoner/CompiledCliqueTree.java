@@ -0,0 +1,466 @@
+package org.latlab.reasoner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.latlab.graph.DirectedNode;
+import org.latlab.model.BeliefNode;
+import org.latlab.model.LTM;
+import org.latlab.util.Function;
+import org.latlab.util.Variable;
+
+/**
+ * <p>
+ * The natural clique tree of an LTM compiled into arrays, for propagations that run without hash
+ * lookups or per-message allocation, see CompiledCliqueTreePropagation.
+ * </p>
+ *
+ * <p>
+ * The variables are numbered 0..n-1 in breadth first order from the root, so a parent always has a
+ * smaller number than its children, and the collect and distribute orders are simply decreasing and
+ * increasing numbers. In the natural clique tree the family clique of v and the variable clique of v
+ * are both numbered v, and the separator between the family clique of v and the variable clique of
+ * its parent is the parent variable. So the message sent up by v is a vector over the states of its
+ * parent, and all messages live in flat double arrays indexed by precomputed offsets.
+ * </p>
+ *
+ * <p>
+ * If the names of the top level latent variables are given, propagations are restricted like
+ * CliqueTreePropagationRec.findAndSetPropagationRange(): only the subtrees of the top level
+ * variables above the evidence, and the paths from them to the root, are propagated, and every other
+ * message keeps its default, i.e. its value when all manifest variables are in state 0.
+ * </p>
+ *
+ * <p>
+ * The structure, the CPTs and the default messages are immutable, so one compiled tree is shared by
+ * the propagations of all threads. It has to be compiled again when the parameters of the model change.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public final class CompiledCliqueTree {
+
+	final int _n;
+	final Variable[] _variables;
+	private final Map<Variable, Integer> _index;
+	final int _root;
+
+	final int[] _parent;
+	final int[] _card;
+	final boolean[] _leaf;
+
+	/**
+	 * Whether v and its parent are binary, so its messages use the binary kernels
+	 */
+	final boolean[] _binary;
+
+	/**
+	 * The latent children of v are _latentChildren[_latentChildStart[v]] ... _latentChildren[_latentChildStart[v+1]-1]
+	 */
+	final int[] _latentChildStart;
+	final int[] _latentChildren;
+
+	/**
+	 * The manifest children of v, like _latentChildren
+	 */
+	final int[] _leafChildStart;
+	final int[] _leafChildren;
+
+	/**
+	 * The latent variables in increasing order
+	 */
+	final int[] _latents;
+
+	/**
+	 * Offset of the vectors over the states of v, e.g. its belief
+	 */
+	final int[] _stateOffset;
+	final int _stateSize;
+
+	/**
+	 * Offset of the message v sends to its parent, over the states of the parent. -1 for the root
+	 */
+	final int[] _upOffset;
+	final int _upSize;
+
+	/**
+	 * P(v=x|parent=p) is at _cpt[_cptOffset[v] + p * card(v) + x], P(root=x) at _cpt[_cptOffset[root] + x].
+	 * Family beliefs use the same layout.
+	 */
+	final int[] _cptOffset;
+	final double[] _cpt;
+	final int _cptSize;
+
+	/**
+	 * The island message table, or null. _island[v] is the island of latent v, _islandBit[l] is the bit
+	 * of manifest variable l in the bitmask of its island
+	 */
+	final IslandMessageTable _islandTable;
+	final IslandMessageTable.Island[] _island;
+	final int[] _islandBit;
+
+	/**
+	 * Whether propagations are restricted to the subtrees of the top level variables above the evidence
+	 */
+	final boolean _restricted;
+
+	/**
+	 * The top level variable above each manifest variable, as an index into _topLatents, or -1
+	 */
+	final int[] _topOfLeaf;
+
+	/**
+	 * For each top level variable: the latent variables of its subtree and of the path to the root,
+	 * in increasing order
+	 */
+	final int[][] _topLatents;
+
+	/**
+	 * For each top level variable: the manifest variables of its subtree
+	 */
+	final int[][] _topLeaves;
+
+	final double[] _defaultUp;
+	final double[] _defaultUpLog;
+	final double[] _defaultLeafPart;
+	final double[] _defaultLeafPartLog;
+	final double[] _defaultBelief;
+	final double[] _defaultFamilyBelief;
+	final double _defaultLogLikelihood;
+
+	/**
+	 * Compiles the natural clique tree of an LTM and propagates the default messages.
+	 *
+	 * @param model
+	 *            the LTM.
+	 * @param topLevelLatentVariableNames
+	 *            the names of the top level latent variables, or null to always propagate over
+	 *            the whole tree.
+	 * @param islandTable
+	 *            the island message table of the model, or null.
+	 */
+	public CompiledCliqueTree(LTM model, Collection<String> topLevelLatentVariableNames,
+			IslandMessageTable islandTable) {
+
+		// numbers the variables in breadth first order
+		ArrayList<BeliefNode> order = new ArrayList<BeliefNode>();
+		LinkedList<BeliefNode> queue = new LinkedList<BeliefNode>();
+		queue.add(model.getRoot());
+		while (!queue.isEmpty()) {
+			BeliefNode node = queue.removeFirst();
+			order.add(node);
+			for (DirectedNode child : node.getChildren())
+				queue.add((BeliefNode) child);
+		}
+
+		_n = order.size();
+		_variables = new Variable[_n];
+		_index = new HashMap<Variable, Integer>();
+		for (int v = 0; v < _n; v++) {
+			_variables[v] = order.get(v).getVariable();
+			_index.put(_variables[v], v);
+		}
+		_root = 0;
+
+		_parent = new int[_n];
+		_card = new int[_n];
+		_leaf = new boolean[_n];
+		int numLatents = 0;
+		for (int v = 0; v < _n; v++) {
+			BeliefNode node = order.get(v);
+			_parent[v] = node.isRoot() ? -1 : _index.get(node.getParent().getVariable());
+			_card[v] = _variables[v].getCardinality();
+			_leaf[v] = node.isLeaf();
+			if (!_leaf[v])
+				numLatents++;
+		}
+
+		// children in compressed rows
+		_latentChildStart = new int[_n + 1];
+		_leafChildStart = new int[_n + 1];
+		for (int v = 1; v < _n; v++) {
+			if (_leaf[v])
+				_leafChildStart[_parent[v] + 1]++;
+			else
+				_latentChildStart[_parent[v] + 1]++;
+		}
+		for (int v = 0; v < _n; v++) {
+			_latentChildStart[v + 1] += _latentChildStart[v];
+			_leafChildStart[v + 1] += _leafChildStart[v];
+		}
+		_latentChildren = new int[_latentChildStart[_n]];
+		_leafChildren = new int[_leafChildStart[_n]];
+		int[] latentCursor = Arrays.copyOf(_latentChildStart, _n);
+		int[] leafCursor = Arrays.copyOf(_leafChildStart, _n);
+		for (int v = 1; v < _n; v++) {
+			if (_leaf[v])
+				_leafChildren[leafCursor[_parent[v]]++] = v;
+			else
+				_latentChildren[latentCursor[_parent[v]]++] = v;
+		}
+
+		_latents = new int[numLatents];
+		for (int v = 0, k = 0; v < _n; v++) {
+			if (!_leaf[v])
+				_latents[k++] = v;
+		}
+
+		// offsets into the flat arrays
+		_stateOffset = new int[_n];
+		_upOffset = new int[_n];
+		_cptOffset = new int[_n];
+		int stateSize = 0, upSize = 0, cptSize = 0;
+		for (int v = 0; v < _n; v++) {
+			int parentCard = _parent[v] < 0 ? 1 : _card[_parent[v]];
+			_stateOffset[v] = stateSize;
+			stateSize += _card[v];
+			_upOffset[v] = _parent[v] < 0 ? -1 : upSize;
+			if (_parent[v] >= 0)
+				upSize += parentCard;
+			_cptOffset[v] = cptSize;
+			cptSize += parentCard * _card[v];
+		}
+		_stateSize = stateSize;
+		_upSize = upSize;
+		_cptSize = cptSize;
+
+		_binary = new boolean[_n];
+		for (int v = 1; v < _n; v++)
+			_binary[v] = _card[v] == 2 && _card[_parent[v]] == 2;
+
+		_cpt = new double[_cptSize];
+		for (int v = 0; v < _n; v++) {
+			Function cpt = order.get(v).getCpt();
+			double[] cells = _parent[v] < 0 ? cpt.getCells()
+					: cpt.getCells(Arrays.asList(_variables[_parent[v]], _variables[v]));
+			System.arraycopy(cells, 0, _cpt, _cptOffset[v], cells.length);
+		}
+
+		// islands
+		_islandTable = islandTable;
+		_island = new IslandMessageTable.Island[_n];
+		_islandBit = new int[_n];
+		if (islandTable != null) {
+			for (int v : _latents) {
+				IslandMessageTable.Island island = islandTable.getIsland(_variables[v]);
+				if (island == null)
+					continue;
+				_island[v] = island;
+				for (int i = 0; i < island.children.length; i++)
+					_islandBit[_index.get(island.children[i])] = i;
+			}
+		}
+
+		// propagation ranges
+		_topOfLeaf = new int[_n];
+		Arrays.fill(_topOfLeaf, -1);
+		_restricted = topLevelLatentVariableNames != null;
+		if (_restricted) {
+			ArrayList<String> tops = new ArrayList<String>(topLevelLatentVariableNames);
+			boolean[] isTop = new boolean[_n];
+			for (String name : tops)
+				isTop[_index.get(model.getNodeByName(name).getVariable())] = true;
+
+			_topLatents = new int[tops.size()][];
+			_topLeaves = new int[tops.size()][];
+			for (int t = 0; t < tops.size(); t++) {
+				int top = _index.get(model.getNodeByName(tops.get(t)).getVariable());
+				int[] latents = new int[numLatents];
+				int[] leaves = new int[_n];
+				int numTopLatents = 0, numTopLeaves = 0;
+
+				// the subtree, which does not go into other top level variables
+				int[] stack = new int[_n];
+				int size = 0;
+				stack[size++] = top;
+				while (size > 0) {
+					int v = stack[--size];
+					latents[numTopLatents++] = v;
+					for (int k = _latentChildStart[v]; k < _latentChildStart[v + 1]; k++) {
+						if (!isTop[_latentChildren[k]])
+							stack[size++] = _latentChildren[k];
+					}
+					for (int k = _leafChildStart[v]; k < _leafChildStart[v + 1]; k++) {
+						leaves[numTopLeaves++] = _leafChildren[k];
+						_topOfLeaf[_leafChildren[k]] = t;
+					}
+				}
+
+				// the path to the root
+				for (int v = _parent[top]; v >= 0; v = _parent[v])
+					latents[numTopLatents++] = v;
+
+				_topLatents[t] = Arrays.copyOf(latents, numTopLatents);
+				Arrays.sort(_topLatents[t]);
+				_topLeaves[t] = Arrays.copyOf(leaves, numTopLeaves);
+			}
+		} else {
+			_topLatents = new int[0][];
+			_topLeaves = new int[0][];
+		}
+
+		// the default messages and beliefs, with all manifest variables in state 0
+		CompiledCliqueTreePropagation ctp = new CompiledCliqueTreePropagation(this, false);
+		_defaultLogLikelihood = ctp.propagate();
+		_defaultUp = ctp._up;
+		_defaultUpLog = ctp._upLog;
+		_defaultLeafPart = ctp._leafPart;
+		_defaultLeafPartLog = ctp._leafPartLog;
+
+		_defaultBelief = new double[_stateSize];
+		_defaultFamilyBelief = new double[_cptSize];
+		double[] belief = new double[_cptSize];
+		for (int v = 0; v < _n; v++) {
+			ctp.computeBelief(v, belief);
+			System.arraycopy(belief, 0, _defaultBelief, _stateOffset[v], _card[v]);
+			ctp.computeFamilyBelief(v, belief);
+			System.arraycopy(belief, 0, _defaultFamilyBelief, _cptOffset[v], getFamilySize(v));
+		}
+	}
+
+	/**
+	 * @return whether propagations are restricted to the ranges of the top level variables
+	 */
+	public boolean isRestricted() {
+		return _restricted;
+	}
+
+	/**
+	 * Estimates the cost of propagating evidence: the number of latent variables in its propagation
+	 * range, counting the path to the root once for every top level variable above the evidence.
+	 *
+	 * @param leaves
+	 *            the numbers of the manifest variables that are not 0.
+	 * @param n
+	 *            the number of entries of leaves to use.
+	 * @return the number of latent variables to collect and distribute, 0 if n is 0.
+	 */
+	public int estimateRangeSize(int[] leaves, int n) {
+		if (n == 0)
+			return 0;
+		if (!_restricted)
+			return _latents.length;
+
+		int[] tops = new int[n];
+		int numTops = 0, size = 0;
+		for (int k = 0; k < n; k++) {
+			int top = _topOfLeaf[leaves[k]];
+			if (top < 0)
+				return _latents.length;
+
+			boolean seen = false;
+			for (int i = 0; i < numTops && !seen; i++)
+				seen = tops[i] == top;
+			if (!seen) {
+				tops[numTops++] = top;
+				size += _topLatents[top].length;
+			}
+		}
+		return Math.min(size, _latents.length);
+	}
+
+	/**
+	 * @return the number of variables
+	 */
+	public int size() {
+		return _n;
+	}
+
+	/**
+	 * @return the number of a variable, or -1 if it is not in the model
+	 */
+	public int indexOf(Variable variable) {
+		Integer v = _index.get(variable);
+		return v == null ? -1 : v;
+	}
+
+	public Variable getVariable(int v) {
+		return _variables[v];
+	}
+
+	public int getCardinality(int v) {
+		return _card[v];
+	}
+
+	public boolean isLeaf(int v) {
+		return _leaf[v];
+	}
+
+	/**
+	 * @return the number of cells of all family beliefs, i.e. the size of arrays laid out like the CPTs
+	 */
+	public int getFamilyBeliefSize() {
+		return _cptSize;
+	}
+
+	/**
+	 * @return the number of cells of the family belief of v: card(parent) * card(v), or card(v) for the root
+	 */
+	public int getFamilySize(int v) {
+		return _parent[v] < 0 ? _card[v] : _card[_parent[v]] * _card[v];
+	}
+
+	/**
+	 * @return the offset of the family belief of v in arrays laid out like the CPTs, see
+	 *         CompiledCliqueTreePropagation.addFamilyBeliefDeltas()
+	 */
+	public int getFamilyOffset(int v) {
+		return _cptOffset[v];
+	}
+
+	/**
+	 * @return the log likelihood of all manifest variables in state 0
+	 */
+	public double getDefaultLogLikelihood() {
+		return _defaultLogLikelihood;
+	}
+
+	/**
+	 * Copies the belief of v when all manifest variables are in state 0.
+	 */
+	public void getDefaultBelief(int v, double[] belief) {
+		System.arraycopy(_defaultBelief, _stateOffset[v], belief, 0, _card[v]);
+	}
+
+	/**
+	 * Adds weight times the default family belief of every variable to stats, which is laid out like
+	 * the CPTs. Together with CompiledCliqueTreePropagation.addFamilyBeliefDeltas() this sums the
+	 * family beliefs of a set of data cases.
+	 */
+	public void addDefaultFamilyBeliefs(double weight, double[] stats) {
+		for (int i = 0; i < _cptSize; i++)
+			stats[i] += weight * _defaultFamilyBelief[i];
+	}
+
+	/**
+	 * Makes a Function over the family of v from cells laid out like the CPTs, e.g. sufficient
+	 * statistics collected with addFamilyBeliefDeltas().
+	 *
+	 * @param v
+	 *            the variable.
+	 * @param cells
+	 *            the cells of all families.
+	 * @return a new Function over v and its parent.
+	 */
+	public Function createFamilyFunction(int v, double[] cells) {
+		ArrayList<Variable> family = new ArrayList<Variable>();
+		if (_parent[v] >= 0)
+			family.add(_variables[_parent[v]]);
+		family.add(_variables[v]);
+
+		Function function = Function.createFunction(family);
+		function.setCells(family, Arrays.copyOfRange(cells, _cptOffset[v], _cptOffset[v] + getFamilySize(v)));
+		return function;
+	}
+
+	/**
+	 * @return the variables, in the numbering of this tree, for iterating over the model
+	 */
+	public Variable[] getVariables() {
+		return _variables.clone();
+	}
+}
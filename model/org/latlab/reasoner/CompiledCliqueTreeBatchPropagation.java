@@ -0,0 +1,883 @@
+package org.latlab.reasoner;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.latlab.util.DataSet;
+import org.latlab.util.Variable;
+
+/**
+ * <p>
+ * Propagation of a batch of up to B evidence vectors, e.g. users or data cases, over a
+ * CompiledCliqueTree in one collect and distribute sweep.
+ * </p>
+ *
+ * <p>
+ * Every message carries the batch as its innermost dimension: the value of state y of a vector
+ * stored at offset o of CompiledCliqueTree is at [(o + y) * B + b] for case b. The inner loops of
+ * a sweep run over the batch, so the tree is traversed once per batch instead of once per case and
+ * the loops are simple enough for the JIT to vectorize.
+ * </p>
+ *
+ * <p>
+ * The sweep covers the union of the propagation ranges of the cases. Each case still gets the
+ * same results as with CompiledCliqueTreePropagation: messages from subtrees outside the range of a
+ * case equal their defaults, since all manifest variables of the case are 0 there, and beliefs of
+ * variables outside the range of a case are its defaults.
+ * </p>
+ *
+ * <p>
+ * A batch propagation holds per-thread buffers and must not be shared between threads.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public final class CompiledCliqueTreeBatchPropagation {
+
+	/**
+	 * The batch size chosen for trees that are propagated as a whole
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 32;
+
+	/**
+	 * Chooses the batch size of a tree. A batch of restricted propagations sweeps the union of the
+	 * ranges of its cases, which is usually much larger than the range of a single case, so
+	 * restricted trees are propagated case by case unless a batch size is given.
+	 *
+	 * @param tree
+	 *            the compiled clique tree.
+	 * @param batchSize
+	 *            the requested batch size, 0 to choose one.
+	 * @return the batch size, 1 to propagate case by case.
+	 */
+	public static int chooseBatchSize(CompiledCliqueTree tree, int batchSize) {
+		if (batchSize > 0)
+			return batchSize;
+		return tree.isRestricted() ? 1 : DEFAULT_BATCH_SIZE;
+	}
+
+	private final CompiledCliqueTree _tree;
+	private final int _batchSize;
+
+	/**
+	 * The number of cases in the batch
+	 */
+	private int _size;
+
+	/**
+	 * The state of manifest variable v for case b at [v * B + b], -1 if unobserved
+	 */
+	private final int[] _state;
+
+	/**
+	 * For each case, the manifest variables whose state is not 0
+	 */
+	private final int[][] _changed;
+	private final int[] _numChanged;
+
+	private final double[] _up;
+	private final double[] _upLog;
+	private final double[] _leafPart;
+	private final double[] _leafPartLog;
+	private final double[] _lambda;
+	private final double[] _lambdaLog;
+	private final double[] _pi;
+	private final double[] _lastLogLikelihood;
+
+	private final double[] _down;
+	private final double[] _sum;
+	private final boolean[] _zero;
+	private final double[] _message;
+	private final double[] _belief;
+	private final double[] _familyBelief;
+
+	/**
+	 * The latent variables of the sweep, in increasing order
+	 */
+	private final int[] _range;
+	private int _rangeSize;
+	private boolean _full;
+
+	/**
+	 * Marks of the sweep, equal to _epoch for the last propagation: the latent variables and top
+	 * level variables in the range of the sweep, and, at [v * B + b], of each case
+	 */
+	private final int[] _rangeMark;
+	private final int[] _topMark;
+	private final int[] _caseRangeMark;
+	private final int[] _caseTopMark;
+	private final int[] _dirtyMark;
+	private final int[] _seenMark;
+	private int _epoch;
+
+	/**
+	 * Whether the range of a case is not empty, and whether it is the whole tree
+	 */
+	private final boolean[] _caseActive;
+	private final boolean[] _caseFull;
+
+	/**
+	 * Creates a batch propagation over a compiled tree.
+	 *
+	 * @param tree
+	 *            the compiled clique tree, which can be shared with other propagations.
+	 * @param batchSize
+	 *            the maximum number of cases in a batch.
+	 */
+	public CompiledCliqueTreeBatchPropagation(CompiledCliqueTree tree, int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+
+		_tree = tree;
+		_batchSize = batchSize;
+		int B = batchSize;
+
+		_state = new int[tree._n * B];
+		for (int v = 0; v < tree._n; v++) {
+			if (!tree._leaf[v])
+				Arrays.fill(_state, v * B, (v + 1) * B, -1);
+		}
+		_changed = new int[B][tree._leafChildren.length];
+		_numChanged = new int[B];
+
+		_up = broadcast(tree._defaultUp, B);
+		_upLog = broadcast(tree._defaultUpLog, B);
+		_leafPart = broadcast(tree._defaultLeafPart, B);
+		_leafPartLog = broadcast(tree._defaultLeafPartLog, B);
+		_lambda = new double[tree._stateSize * B];
+		_lambdaLog = new double[tree._n * B];
+		_pi = new double[tree._stateSize * B];
+		_lastLogLikelihood = new double[B];
+
+		int maxCard = 0, maxFamilySize = 0;
+		for (int v = 0; v < tree._n; v++) {
+			maxCard = Math.max(maxCard, tree._card[v]);
+			maxFamilySize = Math.max(maxFamilySize, tree.getFamilySize(v));
+		}
+		_down = new double[maxCard * B];
+		_sum = new double[B];
+		_zero = new boolean[B];
+		_message = new double[maxCard];
+		_belief = new double[maxCard];
+		_familyBelief = new double[maxFamilySize];
+
+		_range = new int[tree._latents.length];
+		_rangeMark = new int[tree._n];
+		_topMark = new int[tree._topLatents.length];
+		_caseRangeMark = new int[tree._n * B];
+		_caseTopMark = new int[tree._topLatents.length * B];
+		_dirtyMark = new int[tree._n * B];
+		_seenMark = new int[tree._n];
+		_caseActive = new boolean[B];
+		_caseFull = new boolean[B];
+	}
+
+	/**
+	 * @return an array with every value of values repeated batchSize times
+	 */
+	private static double[] broadcast(double[] values, int batchSize) {
+		double[] result = new double[values.length * batchSize];
+		for (int i = 0; i < values.length; i++)
+			Arrays.fill(result, i * batchSize, (i + 1) * batchSize, values[i]);
+		return result;
+	}
+
+	/**
+	 * @return the compiled tree this propagation runs on
+	 */
+	public CompiledCliqueTree getTree() {
+		return _tree;
+	}
+
+	/**
+	 * @return the maximum number of cases in a batch
+	 */
+	public int getBatchSize() {
+		return _batchSize;
+	}
+
+	/**
+	 * @return the number of cases in the batch
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @return whether the batch is full
+	 */
+	public boolean isFull() {
+		return _size == _batchSize;
+	}
+
+	/**
+	 * Removes all cases from the batch.
+	 */
+	public void clear() {
+		int B = _batchSize;
+		for (int b = 0; b < _size; b++) {
+			for (int k = 0; k < _numChanged[b]; k++)
+				_state[_changed[b][k] * B + b] = 0;
+			_numChanged[b] = 0;
+		}
+		_size = 0;
+	}
+
+	private void setState(int v, int b, int state) {
+		int i = v * _batchSize + b;
+		if (_state[i] == 0 && state != 0)
+			_changed[b][_numChanged[b]++] = v;
+		_state[i] = state;
+	}
+
+	private int nextCase() {
+		if (_size == _batchSize)
+			throw new IllegalStateException("The batch is full");
+		return _size++;
+	}
+
+	/**
+	 * Adds the evidence of a user to the batch: the given manifest variables are 1 and all others 0.
+	 * Variables that are not manifest variables of the model are ignored.
+	 *
+	 * @param positives
+	 *            the manifest variables observed as 1.
+	 * @return the position of the case in the batch.
+	 */
+	public int addPositiveOnlyEvidence(Collection<Variable> positives) {
+		int b = nextCase();
+		for (Variable var : positives) {
+			int v = _tree.indexOf(var);
+			if (v >= 0 && _tree._leaf[v] && _state[v * _batchSize + b] == 0)
+				setState(v, b, 1);
+		}
+		return b;
+	}
+
+	/**
+	 * Adds the evidence of a data case to the batch. Manifest variables that are missing or not in
+	 * the given variables are unobserved, variables that are not in the model are ignored.
+	 *
+	 * @param variables
+	 *            the variables of the data.
+	 * @param states
+	 *            the states of the variables, or DataSet.MISSING_VALUE.
+	 * @return the position of the case in the batch.
+	 */
+	public int addEvidence(Variable[] variables, int[] states) {
+		int b = nextCase();
+		int seen = 0;
+		_epoch++;
+		for (int i = 0; i < variables.length; i++) {
+			int v = _tree.indexOf(variables[i]);
+			if (v < 0 || !_tree._leaf[v])
+				continue;
+			_seenMark[v] = _epoch;
+			seen++;
+			setState(v, b, states[i] == DataSet.MISSING_VALUE ? -1 : states[i]);
+		}
+
+		if (seen < _tree._leafChildren.length) {
+			for (int v = 0; v < _tree._n; v++) {
+				if (_tree._leaf[v] && _seenMark[v] != _epoch)
+					setState(v, b, -1);
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Propagates the evidence of all cases in the batch.
+	 */
+	public void propagate() {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize;
+
+		// restores the messages of the last sweep
+		for (int k = 0; k < _rangeSize; k++) {
+			int v = _range[k];
+			for (int y = 0; y < tree._card[v]; y++) {
+				int i = tree._stateOffset[v] + y;
+				Arrays.fill(_leafPart, i * B, (i + 1) * B, tree._defaultLeafPart[i]);
+			}
+			Arrays.fill(_leafPartLog, v * B, (v + 1) * B, tree._defaultLeafPartLog[v]);
+			if (v != tree._root) {
+				for (int p = 0; p < tree._card[tree._parent[v]]; p++) {
+					int i = tree._upOffset[v] + p;
+					Arrays.fill(_up, i * B, (i + 1) * B, tree._defaultUp[i]);
+				}
+				Arrays.fill(_upLog, v * B, (v + 1) * B, tree._defaultUpLog[v]);
+			}
+		}
+
+		_epoch++;
+		Arrays.fill(_lastLogLikelihood, tree._defaultLogLikelihood);
+		if (_size == 0) {
+			_rangeSize = 0;
+			return;
+		}
+		findRange();
+		if (_rangeSize == 0)
+			return;
+
+		for (int b = 0; b < _size; b++) {
+			for (int k = 0; k < _numChanged[b]; k++)
+				_dirtyMark[tree._parent[_changed[b][k]] * B + b] = _epoch;
+		}
+
+		// collects messages in decreasing order, children before parents
+		for (int k = _rangeSize - 1; k >= 0; k--) {
+			int v = _range[k];
+			for (int b = 0; b < _size; b++) {
+				if (_dirtyMark[v * B + b] == _epoch)
+					computeLeafPart(v, b);
+			}
+			collect(v);
+		}
+
+		// distributes messages in increasing order, parents before children
+		for (int k = 0; k < _rangeSize; k++)
+			distribute(_range[k]);
+
+		// cases with an empty range keep the default log likelihood
+		for (int b = 0; b < _size; b++) {
+			if (!_caseActive[b])
+				_lastLogLikelihood[b] = tree._defaultLogLikelihood;
+		}
+	}
+
+	/**
+	 * Finds the range of each case like CompiledCliqueTreePropagation, and the union of them.
+	 */
+	private void findRange() {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize;
+		_full = !tree._restricted;
+		_rangeSize = 0;
+
+		for (int b = 0; b < _size; b++) {
+			_caseFull[b] = _full;
+			_caseActive[b] = _full;
+		}
+		if (!_full) {
+			for (int b = 0; b < _size; b++) {
+				if (_numChanged[b] == 0)
+					continue;
+
+				_caseActive[b] = true;
+				for (int k = 0; k < _numChanged[b]; k++) {
+					int top = tree._topOfLeaf[_changed[b][k]];
+					if (top < 0) {
+						// evidence outside the subtrees of the top level variables
+						_caseFull[b] = true;
+						_full = true;
+						break;
+					}
+					if (_caseTopMark[top * B + b] == _epoch)
+						continue;
+
+					_caseTopMark[top * B + b] = _epoch;
+					boolean newTop = _topMark[top] != _epoch;
+					_topMark[top] = _epoch;
+					for (int v : tree._topLatents[top]) {
+						_caseRangeMark[v * B + b] = _epoch;
+						if (newTop && _rangeMark[v] != _epoch) {
+							_rangeMark[v] = _epoch;
+							_range[_rangeSize++] = v;
+						}
+					}
+				}
+			}
+
+			if (!_full) {
+				Arrays.sort(_range, 0, _rangeSize);
+				return;
+			}
+		}
+
+		System.arraycopy(tree._latents, 0, _range, 0, tree._latents.length);
+		_rangeSize = tree._latents.length;
+	}
+
+	/**
+	 * @return whether the belief of v for case b was computed by the last propagation
+	 */
+	private boolean inRange(int v, int b) {
+		if (!_caseActive[b])
+			return false;
+		if (_caseFull[b])
+			return true;
+		if (_tree._leaf[v]) {
+			int top = _tree._topOfLeaf[v];
+			return top >= 0 && _caseTopMark[top * _batchSize + b] == _epoch;
+		}
+		return _caseRangeMark[v * _batchSize + b] == _epoch;
+	}
+
+	/**
+	 * @return the message manifest variable l sends to its parent in state p for case b, not normalized
+	 */
+	private double leafUp(int l, int p, int b) {
+		int state = _state[l * _batchSize + b];
+		if (state < 0)
+			return 1.0;
+		return _tree._cpt[_tree._cptOffset[l] + p * _tree._card[l] + state];
+	}
+
+	/**
+	 * Computes the product of the messages of the manifest children of latent variable v for case b.
+	 */
+	private void computeLeafPart(int v, int b) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize;
+		int card = tree._card[v];
+		int offset = tree._stateOffset[v];
+		int start = tree._leafChildStart[v], end = tree._leafChildStart[v + 1];
+
+		IslandMessageTable.Island island = tree._island[v];
+		if (island != null) {
+			long mask = 0;
+			for (int k = start; k < end; k++) {
+				int l = tree._leafChildren[k];
+				int state = _state[l * B + b];
+				if (state < 0) {
+					island = null;
+					break;
+				}
+				if (state == 1)
+					mask |= 1L << tree._islandBit[l];
+			}
+			if (island != null) {
+				_leafPartLog[v * B + b] = tree._islandTable.getMessage(island, mask, _message, 0);
+				for (int y = 0; y < card; y++)
+					_leafPart[(offset + y) * B + b] = _message[y];
+				return;
+			}
+		}
+
+		double logScale = 0;
+		for (int y = 0; y < card; y++)
+			_message[y] = 1.0;
+		for (int k = start; k < end; k++) {
+			int l = tree._leafChildren[k];
+			if (_state[l * B + b] < 0)
+				continue;
+
+			double n = 0;
+			for (int y = 0; y < card; y++)
+				n += leafUp(l, y, b);
+			for (int y = 0; y < card; y++)
+				_message[y] *= n != 0.0 ? leafUp(l, y, b) / n : 1.0 / card;
+			logScale += Math.log(n);
+		}
+
+		double n = 0;
+		for (int y = 0; y < card; y++)
+			n += _message[y];
+		for (int y = 0; y < card; y++)
+			_leafPart[(offset + y) * B + b] = n != 0.0 ? _message[y] / n : 1.0 / card;
+		_leafPartLog[v * B + b] = logScale + Math.log(n);
+	}
+
+	/**
+	 * Computes lambda of latent variable v for all cases, and the messages v sends up, or the log
+	 * likelihoods if v is the root.
+	 */
+	private void collect(int v) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize, m = _size;
+		int card = tree._card[v];
+		int offset = tree._stateOffset[v];
+		int logOffset = v * B;
+
+		System.arraycopy(_leafPart, offset * B, _lambda, offset * B, card * B);
+		System.arraycopy(_leafPartLog, logOffset, _lambdaLog, logOffset, m);
+		for (int k = tree._latentChildStart[v]; k < tree._latentChildStart[v + 1]; k++) {
+			int c = tree._latentChildren[k];
+			int upOffset = tree._upOffset[c];
+			for (int y = 0; y < card; y++) {
+				int i = (offset + y) * B, j = (upOffset + y) * B;
+				for (int b = 0; b < m; b++)
+					_lambda[i + b] *= _up[j + b];
+			}
+			for (int b = 0; b < m; b++)
+				_lambdaLog[logOffset + b] += _upLog[c * B + b];
+		}
+		normalize(_lambda, offset, card, _lambdaLog, logOffset);
+
+		int cptOffset = tree._cptOffset[v];
+		if (v == tree._root) {
+			Arrays.fill(_sum, 0, m, 0.0);
+			for (int y = 0; y < card; y++) {
+				double prior = tree._cpt[cptOffset + y];
+				int i = (offset + y) * B;
+				for (int b = 0; b < m; b++)
+					_sum[b] += prior * _lambda[i + b];
+			}
+			for (int b = 0; b < m; b++)
+				_lastLogLikelihood[b] = _lambdaLog[logOffset + b] + Math.log(_sum[b]);
+			return;
+		}
+
+		int parentCard = tree._card[tree._parent[v]];
+		int upOffset = tree._upOffset[v];
+		for (int p = 0; p < parentCard; p++) {
+			int j = (upOffset + p) * B;
+			Arrays.fill(_up, j, j + m, 0.0);
+			for (int y = 0; y < card; y++) {
+				double cpt = tree._cpt[cptOffset + p * card + y];
+				int i = (offset + y) * B;
+				for (int b = 0; b < m; b++)
+					_up[j + b] += cpt * _lambda[i + b];
+			}
+		}
+		System.arraycopy(_lambdaLog, logOffset, _upLog, logOffset, m);
+		normalize(_up, upOffset, parentCard, _upLog, logOffset);
+	}
+
+	/**
+	 * Computes pi of latent variable v for all cases.
+	 */
+	private void distribute(int v) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize, m = _size;
+		int card = tree._card[v];
+		int offset = tree._stateOffset[v];
+		int cptOffset = tree._cptOffset[v];
+
+		if (v == tree._root) {
+			for (int y = 0; y < card; y++)
+				Arrays.fill(_pi, (offset + y) * B, (offset + y) * B + m, tree._cpt[cptOffset + y]);
+			return;
+		}
+
+		int parentCard = tree._card[tree._parent[v]];
+		down(v);
+		for (int y = 0; y < card; y++) {
+			int i = (offset + y) * B;
+			Arrays.fill(_pi, i, i + m, 0.0);
+			for (int p = 0; p < parentCard; p++) {
+				double cpt = tree._cpt[cptOffset + p * card + y];
+				int j = p * B;
+				for (int b = 0; b < m; b++)
+					_pi[i + b] += _down[j + b] * cpt;
+			}
+		}
+		normalize(_pi, offset, card, null, 0);
+	}
+
+	/**
+	 * Computes the messages the parent of v sends down to v for all cases into _down, at
+	 * [p * B + b], normalized.
+	 */
+	private void down(int v) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize, m = _size;
+		int parent = tree._parent[v];
+		int parentCard = tree._card[parent];
+		int parentOffset = tree._stateOffset[parent];
+		int upOffset = tree._upOffset[v];
+
+		boolean anyZero = false;
+		Arrays.fill(_zero, 0, m, false);
+		for (int p = 0; p < parentCard; p++) {
+			int i = (parentOffset + p) * B, j = p * B;
+			if (tree._leaf[v]) {
+				for (int b = 0; b < m; b++) {
+					double up = leafUp(v, p, b);
+					if (up == 0.0) {
+						_zero[b] = true;
+						anyZero = true;
+					}
+					_down[j + b] = _pi[i + b] * _lambda[i + b] / up;
+				}
+			} else {
+				int u = (upOffset + p) * B;
+				for (int b = 0; b < m; b++)
+					_down[j + b] = _pi[i + b] * _lambda[i + b] / _up[u + b];
+				for (int b = 0; b < m; b++) {
+					if (_up[u + b] == 0.0) {
+						_zero[b] = true;
+						anyZero = true;
+					}
+				}
+			}
+		}
+
+		if (anyZero) {
+			for (int b = 0; b < m; b++) {
+				if (_zero[b])
+					downWithoutDivision(v, b);
+			}
+		}
+		normalize(_down, 0, parentCard, null, 0);
+	}
+
+	/**
+	 * Computes the message the parent of v sends down to v for case b as the product of the other
+	 * messages, for when the message of v has a zero cell.
+	 */
+	private void downWithoutDivision(int v, int b) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize;
+		int parent = tree._parent[v];
+		int parentCard = tree._card[parent];
+		int parentOffset = tree._stateOffset[parent];
+
+		for (int p = 0; p < parentCard; p++)
+			_down[p * B + b] = _pi[(parentOffset + p) * B + b];
+		for (int k = tree._latentChildStart[parent]; k < tree._latentChildStart[parent + 1]; k++) {
+			int c = tree._latentChildren[k];
+			if (c == v)
+				continue;
+			for (int p = 0; p < parentCard; p++)
+				_down[p * B + b] *= _up[(tree._upOffset[c] + p) * B + b];
+		}
+		for (int k = tree._leafChildStart[parent]; k < tree._leafChildStart[parent + 1]; k++) {
+			int c = tree._leafChildren[k];
+			if (c == v || _state[c * B + b] < 0)
+				continue;
+			for (int p = 0; p < parentCard; p++)
+				_down[p * B + b] *= leafUp(c, p, b);
+		}
+	}
+
+	/**
+	 * Normalizes the vectors of all cases in place, for the vectors at [(offset + i) * B + b].
+	 *
+	 * @param logs
+	 *            if not null, the log of the sum of case b is added to logs[logOffset + b].
+	 */
+	private void normalize(double[] vectors, int offset, int length, double[] logs, int logOffset) {
+		int B = _batchSize, m = _size;
+
+		Arrays.fill(_sum, 0, m, 0.0);
+		for (int i = 0; i < length; i++) {
+			int j = (offset + i) * B;
+			for (int b = 0; b < m; b++)
+				_sum[b] += vectors[j + b];
+		}
+
+		boolean anyZero = false;
+		for (int i = 0; i < length; i++) {
+			int j = (offset + i) * B;
+			for (int b = 0; b < m; b++)
+				vectors[j + b] /= _sum[b];
+		}
+		for (int b = 0; b < m; b++)
+			anyZero |= _sum[b] == 0.0;
+
+		if (anyZero) {
+			for (int b = 0; b < m; b++) {
+				if (_sum[b] == 0.0) {
+					for (int i = 0; i < length; i++)
+						vectors[(offset + i) * B + b] = 1.0 / length;
+				}
+			}
+		}
+
+		if (logs != null) {
+			for (int b = 0; b < m; b++)
+				logs[logOffset + b] += Math.log(_sum[b]);
+		}
+	}
+
+	/**
+	 * @return the log likelihood of the evidence of case b in the last propagation
+	 */
+	public double getLastLogLikelihood(int b) {
+		return _lastLogLikelihood[b];
+	}
+
+	/**
+	 * Computes the posterior of a variable for one case after the last propagation.
+	 *
+	 * @param v
+	 *            the number of the variable in the compiled tree.
+	 * @param b
+	 *            the position of the case in the batch.
+	 * @param belief
+	 *            receives the belief, over the states of v.
+	 */
+	public void computeBelief(int v, int b, double[] belief) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize;
+		int card = tree._card[v];
+		int state = _state[v * B + b];
+
+		if (tree._leaf[v] && state >= 0) {
+			Arrays.fill(belief, 0, card, 0.0);
+			belief[state] = 1.0;
+			return;
+		}
+
+		if (!inRange(v, b)) {
+			tree.getDefaultBelief(v, belief);
+			return;
+		}
+
+		if (tree._leaf[v]) {
+			// a manifest variable without evidence
+			int parentCard = tree._card[tree._parent[v]];
+			int cptOffset = tree._cptOffset[v];
+			downOfCase(v, b, _message);
+			Arrays.fill(belief, 0, card, 0.0);
+			for (int p = 0; p < parentCard; p++) {
+				for (int x = 0; x < card; x++)
+					belief[x] += _message[p] * tree._cpt[cptOffset + p * card + x];
+			}
+		} else {
+			int offset = tree._stateOffset[v];
+			for (int y = 0; y < card; y++)
+				belief[y] = _pi[(offset + y) * B + b] * _lambda[(offset + y) * B + b];
+		}
+
+		double sum = 0;
+		for (int x = 0; x < card; x++)
+			sum += belief[x];
+		for (int x = 0; x < card; x++)
+			belief[x] = sum != 0.0 ? belief[x] / sum : 1.0 / card;
+	}
+
+	/**
+	 * Computes the posterior probability of one state of a latent variable for one case after the
+	 * last propagation, e.g. P(Z=1|u,m).
+	 *
+	 * @param v
+	 *            the number of the latent variable in the compiled tree.
+	 * @param state
+	 *            the state.
+	 * @param b
+	 *            the position of the case in the batch.
+	 * @return the posterior probability of the state.
+	 */
+	public double computeBelief(int v, int state, int b) {
+		CompiledCliqueTree tree = _tree;
+		if (tree._leaf[v]) {
+			computeBelief(v, b, _belief);
+			return _belief[state];
+		}
+		if (!inRange(v, b))
+			return tree._defaultBelief[tree._stateOffset[v] + state];
+
+		int B = _batchSize;
+		int offset = tree._stateOffset[v];
+		double sum = 0;
+		for (int y = 0; y < tree._card[v]; y++)
+			sum += _pi[(offset + y) * B + b] * _lambda[(offset + y) * B + b];
+		double cell = _pi[(offset + state) * B + b] * _lambda[(offset + state) * B + b];
+		return sum != 0.0 ? cell / sum : 1.0 / tree._card[v];
+	}
+
+	/**
+	 * Computes the message the parent of v sends down to v for one case, normalized.
+	 */
+	private void downOfCase(int v, int b, double[] down) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize;
+		int parent = tree._parent[v];
+		int parentCard = tree._card[parent];
+		int parentOffset = tree._stateOffset[parent];
+
+		boolean divisible = true;
+		for (int p = 0; p < parentCard && divisible; p++) {
+			double up = tree._leaf[v] ? leafUp(v, p, b) : _up[(tree._upOffset[v] + p) * B + b];
+			if (up == 0.0)
+				divisible = false;
+			else
+				down[p] = _pi[(parentOffset + p) * B + b] * _lambda[(parentOffset + p) * B + b] / up;
+		}
+
+		if (!divisible) {
+			// the other messages are put into _down, which is free outside a sweep
+			downWithoutDivision(v, b);
+			for (int p = 0; p < parentCard; p++)
+				down[p] = _down[p * B + b];
+		}
+
+		double sum = 0;
+		for (int p = 0; p < parentCard; p++)
+			sum += down[p];
+		for (int p = 0; p < parentCard; p++)
+			down[p] = sum != 0.0 ? down[p] / sum : 1.0 / parentCard;
+	}
+
+	/**
+	 * For every case b, adds weights[b] times the difference between the family belief and the
+	 * default family belief of every variable to stats, like
+	 * CompiledCliqueTreePropagation.addFamilyBeliefDeltas(). The families of a variable are computed
+	 * for the whole batch at once.
+	 *
+	 * @param weights
+	 *            the weights of the cases.
+	 * @param stats
+	 *            the sufficient statistics, laid out like the CPTs of the compiled tree.
+	 */
+	public void addFamilyBeliefDeltas(double[] weights, double[] stats) {
+		CompiledCliqueTree tree = _tree;
+		if (_rangeSize == 0)
+			return;
+
+		if (_full) {
+			for (int v = 0; v < tree._n; v++)
+				addFamilyBeliefDeltas(v, weights, stats);
+			return;
+		}
+
+		for (int k = 0; k < _rangeSize; k++)
+			addFamilyBeliefDeltas(_range[k], weights, stats);
+		for (int t = 0; t < _topMark.length; t++) {
+			if (_topMark[t] == _epoch) {
+				for (int l : tree._topLeaves[t])
+					addFamilyBeliefDeltas(l, weights, stats);
+			}
+		}
+	}
+
+	private void addFamilyBeliefDeltas(int v, double[] weights, double[] stats) {
+		CompiledCliqueTree tree = _tree;
+		int B = _batchSize, m = _size;
+		int offset = tree._cptOffset[v];
+		int size = tree.getFamilySize(v);
+		double[] belief = _familyBelief;
+
+		if (v == tree._root) {
+			for (int b = 0; b < m; b++) {
+				if (!inRange(v, b))
+					continue;
+				computeBelief(v, b, belief);
+				for (int i = 0; i < size; i++)
+					stats[offset + i] += weights[b] * (belief[i] - tree._defaultFamilyBelief[offset + i]);
+			}
+			return;
+		}
+
+		int card = tree._card[v];
+		int parentCard = tree._card[tree._parent[v]];
+		int stateOffset = tree._stateOffset[v];
+		boolean leaf = tree._leaf[v];
+
+		down(v);
+		for (int b = 0; b < m; b++) {
+			if (!inRange(v, b))
+				continue;
+
+			int state = _state[v * B + b];
+			double sum = 0;
+			for (int p = 0; p < parentCard; p++) {
+				double d = _down[p * B + b];
+				for (int x = 0; x < card; x++) {
+					double message = leaf ? (state < 0 || state == x ? 1.0 : 0.0)
+							: _lambda[(stateOffset + x) * B + b];
+					double cell = d * tree._cpt[offset + p * card + x] * message;
+					belief[p * card + x] = cell;
+					sum += cell;
+				}
+			}
+			for (int i = 0; i < size; i++) {
+				double cell = sum != 0.0 ? belief[i] / sum : 1.0 / size;
+				stats[offset + i] += weights[b] * (cell - tree._defaultFamilyBelief[offset + i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,829 @@
+package org.latlab.reasoner;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.latlab.util.DataSet;
+import org.latlab.util.Variable;
+
+/**
+ * <p>
+ * Propagation over a CompiledCliqueTree. It computes the same beliefs and log likelihood as
+ * CliqueTreePropagation(Rec) on the natural clique tree of the LTM, but keeps all messages in flat
+ * arrays that are allocated once, so a propagation does no hashing and creates no Functions.
+ * </p>
+ *
+ * <p>
+ * Messages are scaled to sum to one and their scales are kept as logs, like the normalizations of
+ * CliqueTreePropagation. Only the variables in the propagation range of the evidence are collected
+ * and distributed; everywhere else the default messages of the compiled tree are used. The leaf
+ * cliques of an island whose children are all observed are replaced by a lookup in the island
+ * message table.
+ * </p>
+ *
+ * <p>
+ * propagateIncrementally() starts from the messages of the last propagation instead of the
+ * defaults: only the latent variables above manifest variables whose state changed are collected
+ * again, which pays off when consecutive evidence vectors overlap, e.g. users ordered by evidence.
+ * </p>
+ *
+ * <p>
+ * A propagation holds per-thread buffers and must not be shared between threads, while the compiled
+ * tree can be.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public final class CompiledCliqueTreePropagation {
+
+	private final CompiledCliqueTree _tree;
+
+	/**
+	 * Whether the messages are computed without using the defaults of the tree, which is how the tree
+	 * computes its defaults
+	 */
+	private final boolean _useDefaults;
+
+	/**
+	 * The state of each manifest variable, -1 if unobserved
+	 */
+	private final int[] _state;
+
+	/**
+	 * The manifest variables whose state is not 0
+	 */
+	private final int[] _changed;
+	private int _numChanged;
+
+	/**
+	 * The state of each manifest variable in the last propagation, and the manifest variables whose
+	 * state was not 0 then
+	 */
+	private final int[] _propagatedState;
+	private final int[] _propagatedChanged;
+	private int _numPropagatedChanged;
+
+	/**
+	 * Messages sent up by each variable, and their log scales
+	 */
+	final double[] _up;
+	final double[] _upLog;
+
+	/**
+	 * For each latent variable, the product of the messages of its manifest children, and its log scale
+	 */
+	final double[] _leafPart;
+	final double[] _leafPartLog;
+
+	/**
+	 * For each latent variable, the product of all messages from below, normalized, and its log scale
+	 */
+	private final double[] _lambda;
+	private final double[] _lambdaLog;
+
+	/**
+	 * For each latent variable, the message from above, normalized
+	 */
+	private final double[] _pi;
+
+	private final double[] _down;
+	private final double[] _message;
+	private final double[] _belief;
+	private final double[] _familyBelief;
+
+	/**
+	 * The latent variables of the last propagation, in increasing order
+	 */
+	private int[] _range;
+	private int _rangeSize;
+	private boolean _full;
+
+	/**
+	 * Buffers of propagateIncrementally(): the range of the propagation before, whether a variable is
+	 * in it, and the latent variables to collect again
+	 */
+	private int[] _lastRange;
+	private final boolean[] _inLastRange;
+	private final int[] _collect;
+
+	/**
+	 * Marks of the latent variables in the range, of the active top level variables and of the latent
+	 * variables with changed manifest children, equal to _epoch for the last propagation
+	 */
+	private final int[] _rangeMark;
+	private final int[] _topMark;
+	private final int[] _dirtyMark;
+	private final int[] _collectMark;
+	private final int[] _seenMark;
+	private int _epoch;
+
+	private double _lastLogLikelihood;
+
+	/**
+	 * Creates a propagation over a compiled tree, with all manifest variables in state 0.
+	 *
+	 * @param tree
+	 *            the compiled clique tree, which can be shared with other propagations.
+	 */
+	public CompiledCliqueTreePropagation(CompiledCliqueTree tree) {
+		this(tree, true);
+	}
+
+	CompiledCliqueTreePropagation(CompiledCliqueTree tree, boolean useDefaults) {
+		_tree = tree;
+		_useDefaults = useDefaults;
+
+		_state = new int[tree._n];
+		for (int v = 0; v < tree._n; v++)
+			_state[v] = tree._leaf[v] ? 0 : -1;
+		_changed = new int[tree._n];
+		_propagatedState = _state.clone();
+		_propagatedChanged = new int[tree._n];
+
+		if (useDefaults) {
+			_up = tree._defaultUp.clone();
+			_upLog = tree._defaultUpLog.clone();
+			_leafPart = tree._defaultLeafPart.clone();
+			_leafPartLog = tree._defaultLeafPartLog.clone();
+		} else {
+			_up = new double[tree._upSize];
+			_upLog = new double[tree._n];
+			_leafPart = new double[tree._stateSize];
+			_leafPartLog = new double[tree._n];
+		}
+		_lambda = new double[tree._stateSize];
+		_lambdaLog = new double[tree._n];
+		_pi = new double[tree._stateSize];
+
+		int maxCard = 0, maxFamilySize = 0;
+		for (int v = 0; v < tree._n; v++) {
+			maxCard = Math.max(maxCard, tree._card[v]);
+			maxFamilySize = Math.max(maxFamilySize, tree.getFamilySize(v));
+		}
+		_down = new double[maxCard];
+		_message = new double[maxCard];
+		_belief = new double[maxCard];
+		_familyBelief = new double[maxFamilySize];
+
+		_range = new int[tree._latents.length];
+		_lastRange = new int[tree._latents.length];
+		_inLastRange = new boolean[tree._n];
+		_collect = new int[tree._latents.length];
+		_rangeMark = new int[tree._n];
+		_topMark = new int[tree._topLatents.length];
+		_dirtyMark = new int[tree._n];
+		_collectMark = new int[tree._n];
+		_seenMark = new int[tree._n];
+		_lastLogLikelihood = useDefaults ? tree._defaultLogLikelihood : Double.NaN;
+	}
+
+	/**
+	 * @return the compiled tree this propagation runs on
+	 */
+	public CompiledCliqueTree getTree() {
+		return _tree;
+	}
+
+	/**
+	 * Sets all manifest variables to state 0.
+	 */
+	public void clearEvidence() {
+		for (int k = 0; k < _numChanged; k++)
+			_state[_changed[k]] = 0;
+		_numChanged = 0;
+	}
+
+	private void setState(int v, int state) {
+		if (_state[v] == 0 && state != 0)
+			_changed[_numChanged++] = v;
+		_state[v] = state;
+	}
+
+	/**
+	 * Sets the evidence of a user: the given manifest variables are 1 and all others 0. Variables
+	 * that are not manifest variables of the model are ignored.
+	 *
+	 * @param positives
+	 *            the manifest variables observed as 1.
+	 * @return the number of manifest variables set to 1.
+	 */
+	public int setPositiveOnlyEvidence(Collection<Variable> positives) {
+		clearEvidence();
+		for (Variable var : positives) {
+			int v = _tree.indexOf(var);
+			if (v >= 0 && _tree._leaf[v] && _state[v] == 0)
+				setState(v, 1);
+		}
+		return _numChanged;
+	}
+
+	/**
+	 * Sets the evidence of a data case. Manifest variables that are missing or not in the given
+	 * variables are unobserved, variables that are not in the model are ignored.
+	 *
+	 * @param variables
+	 *            the variables of the data.
+	 * @param states
+	 *            the states of the variables, or DataSet.MISSING_VALUE.
+	 * @return the number of manifest variables whose state is not 0, i.e. that are not at their
+	 *         default.
+	 */
+	public int setEvidence(Variable[] variables, int[] states) {
+		clearEvidence();
+		int seen = 0;
+		_epoch++;
+		for (int i = 0; i < variables.length; i++) {
+			int v = _tree.indexOf(variables[i]);
+			if (v < 0 || !_tree._leaf[v])
+				continue;
+			_seenMark[v] = _epoch;
+			seen++;
+			setState(v, states[i] == DataSet.MISSING_VALUE ? -1 : states[i]);
+		}
+
+		if (seen < _tree._leafChildren.length) {
+			for (int v = 0; v < _tree._n; v++) {
+				if (_tree._leaf[v] && _seenMark[v] != _epoch)
+					setState(v, -1);
+			}
+		}
+		return _numChanged;
+	}
+
+	/**
+	 * @return the state of a manifest variable, or -1 if it is unobserved or latent
+	 */
+	public int getEvidence(int v) {
+		return _state[v];
+	}
+
+	/**
+	 * Propagates the current evidence.
+	 *
+	 * @return the log likelihood of the evidence.
+	 */
+	public double propagate() {
+		CompiledCliqueTree tree = _tree;
+
+		// restores the messages of the last range
+		if (_useDefaults) {
+			for (int k = 0; k < _rangeSize; k++)
+				restoreDefaults(_range[k]);
+		}
+
+		_epoch++;
+		findRange();
+		recordPropagatedEvidence();
+		if (_rangeSize == 0) {
+			_lastLogLikelihood = tree._defaultLogLikelihood;
+			return _lastLogLikelihood;
+		}
+
+		for (int k = 0; k < _numChanged; k++)
+			_dirtyMark[tree._parent[_changed[k]]] = _epoch;
+
+		// collects messages in decreasing order, children before parents
+		for (int k = _rangeSize - 1; k >= 0; k--) {
+			int v = _range[k];
+			if (!_useDefaults || _dirtyMark[v] == _epoch)
+				computeLeafPart(v);
+			collect(v);
+		}
+
+		// distributes messages in increasing order, parents before children
+		for (int k = 0; k < _rangeSize; k++)
+			distribute(_range[k]);
+
+		return _lastLogLikelihood;
+	}
+
+	/**
+	 * Propagates the current evidence, starting from the messages of the last propagation. Only the
+	 * latent variables above manifest variables whose state changed since then are collected again,
+	 * and the variables that left the range are set back to their defaults. The results are the
+	 * same as those of propagate().
+	 *
+	 * @return the log likelihood of the evidence.
+	 */
+	public double propagateIncrementally() {
+		if (!_useDefaults)
+			return propagate();
+
+		CompiledCliqueTree tree = _tree;
+		int[] lastRange = _range;
+		int lastRangeSize = _rangeSize;
+		_range = _lastRange;
+		_lastRange = lastRange;
+		for (int k = 0; k < lastRangeSize; k++)
+			_inLastRange[lastRange[k]] = true;
+
+		_epoch++;
+		findRange();
+
+		// restores the messages of the variables that left the range
+		for (int k = 0; k < lastRangeSize; k++) {
+			if (!inLatentRange(lastRange[k]))
+				restoreDefaults(lastRange[k]);
+		}
+
+		// the latent variables above the manifest variables whose state changed, children first
+		int numCollect = 0;
+		for (int k = 0; k < _numChanged; k++) {
+			int l = _changed[k];
+			if (_state[l] != _propagatedState[l])
+				numCollect = markChanged(l, numCollect);
+		}
+		for (int k = 0; k < _numPropagatedChanged; k++) {
+			int l = _propagatedChanged[k];
+			if (_state[l] != _propagatedState[l])
+				numCollect = markChanged(l, numCollect);
+		}
+
+		// the variables that entered the range only need their lambda
+		for (int k = 0; k < _rangeSize; k++) {
+			int v = _range[k];
+			if (!_inLastRange[v] && _collectMark[v] != _epoch) {
+				_collectMark[v] = _epoch;
+				_collect[numCollect++] = v;
+			}
+		}
+		for (int k = 0; k < lastRangeSize; k++)
+			_inLastRange[lastRange[k]] = false;
+
+		recordPropagatedEvidence();
+		if (_rangeSize == 0) {
+			_lastLogLikelihood = tree._defaultLogLikelihood;
+			return _lastLogLikelihood;
+		}
+		if (numCollect == 0)
+			return _lastLogLikelihood;
+
+		Arrays.sort(_collect, 0, numCollect);
+		for (int k = numCollect - 1; k >= 0; k--)
+			collect(_collect[k]);
+
+		for (int k = 0; k < _rangeSize; k++)
+			distribute(_range[k]);
+
+		return _lastLogLikelihood;
+	}
+
+	/**
+	 * Recomputes the leaf part of the parent of manifest variable l and adds it and its ancestors to
+	 * the variables to collect. If the parent left the range, its messages are the defaults again and
+	 * only its ancestors in the range are collected.
+	 *
+	 * @return the new number of variables to collect.
+	 */
+	private int markChanged(int l, int numCollect) {
+		CompiledCliqueTree tree = _tree;
+		int v = tree._parent[l];
+		if (_dirtyMark[v] == _epoch)
+			return numCollect;
+
+		_dirtyMark[v] = _epoch;
+		if (inLatentRange(v)) {
+			computeLeafPart(v);
+		} else {
+			// the range contains the path to the root of every variable in it
+			while (v >= 0 && !inLatentRange(v))
+				v = v == tree._root ? -1 : tree._parent[v];
+		}
+		while (v >= 0 && _collectMark[v] != _epoch) {
+			_collectMark[v] = _epoch;
+			_collect[numCollect++] = v;
+			v = v == tree._root ? -1 : tree._parent[v];
+		}
+		return numCollect;
+	}
+
+	/**
+	 * @return whether latent variable v is in the range of the current propagation
+	 */
+	private boolean inLatentRange(int v) {
+		return _full || (_rangeSize > 0 && _rangeMark[v] == _epoch);
+	}
+
+	/**
+	 * Sets the leaf part and the message sent up of latent variable v back to the defaults.
+	 */
+	private void restoreDefaults(int v) {
+		CompiledCliqueTree tree = _tree;
+		int offset = tree._stateOffset[v];
+		System.arraycopy(tree._defaultLeafPart, offset, _leafPart, offset, tree._card[v]);
+		_leafPartLog[v] = tree._defaultLeafPartLog[v];
+		if (v != tree._root) {
+			System.arraycopy(tree._defaultUp, tree._upOffset[v], _up, tree._upOffset[v],
+					tree._card[tree._parent[v]]);
+			_upLog[v] = tree._defaultUpLog[v];
+		}
+	}
+
+	/**
+	 * Remembers the current evidence as the evidence of the last propagation.
+	 */
+	private void recordPropagatedEvidence() {
+		for (int k = 0; k < _numPropagatedChanged; k++)
+			_propagatedState[_propagatedChanged[k]] = 0;
+		for (int k = 0; k < _numChanged; k++)
+			_propagatedState[_changed[k]] = _state[_changed[k]];
+		System.arraycopy(_changed, 0, _propagatedChanged, 0, _numChanged);
+		_numPropagatedChanged = _numChanged;
+	}
+
+	/**
+	 * Finds the latent variables to propagate: the ranges of the top level variables above the
+	 * manifest variables that are not 0, or all latent variables.
+	 */
+	private void findRange() {
+		CompiledCliqueTree tree = _tree;
+		_full = !_useDefaults || !tree._restricted;
+		_rangeSize = 0;
+
+		if (!_full) {
+			if (_numChanged == 0)
+				return;
+
+			int tops = 0;
+			for (int k = 0; k < _numChanged && !_full; k++) {
+				int top = tree._topOfLeaf[_changed[k]];
+				if (top < 0) {
+					// evidence outside the subtrees of the top level variables
+					_full = true;
+				} else if (_topMark[top] != _epoch) {
+					_topMark[top] = _epoch;
+					tops++;
+					for (int v : tree._topLatents[top]) {
+						if (_rangeMark[v] != _epoch) {
+							_rangeMark[v] = _epoch;
+							_range[_rangeSize++] = v;
+						}
+					}
+				}
+			}
+
+			if (!_full) {
+				if (tops > 1)
+					Arrays.sort(_range, 0, _rangeSize);
+				return;
+			}
+		}
+
+		System.arraycopy(tree._latents, 0, _range, 0, tree._latents.length);
+		_rangeSize = tree._latents.length;
+	}
+
+	/**
+	 * @return whether the belief of v was computed by the last propagation, otherwise it is the default
+	 */
+	private boolean inRange(int v) {
+		if (_full)
+			return true;
+		if (_rangeSize == 0)
+			return false;
+		if (_tree._leaf[v]) {
+			int top = _tree._topOfLeaf[v];
+			return top >= 0 && _topMark[top] == _epoch;
+		}
+		return _rangeMark[v] == _epoch;
+	}
+
+	/**
+	 * @return the message manifest variable l sends to its parent in state p, not normalized
+	 */
+	private double leafUp(int l, int p) {
+		int state = _state[l];
+		if (state < 0)
+			return 1.0;
+		return _tree._cpt[_tree._cptOffset[l] + p * _tree._card[l] + state];
+	}
+
+	/**
+	 * Computes the product of the messages of the manifest children of latent variable v.
+	 */
+	private void computeLeafPart(int v) {
+		CompiledCliqueTree tree = _tree;
+		int card = tree._card[v];
+		int offset = tree._stateOffset[v];
+		int start = tree._leafChildStart[v], end = tree._leafChildStart[v + 1];
+
+		IslandMessageTable.Island island = tree._island[v];
+		if (island != null) {
+			long mask = 0;
+			for (int k = start; k < end; k++) {
+				int l = tree._leafChildren[k];
+				if (_state[l] < 0) {
+					island = null;
+					break;
+				}
+				if (_state[l] == 1)
+					mask |= 1L << tree._islandBit[l];
+			}
+			if (island != null) {
+				_leafPartLog[v] = tree._islandTable.getMessage(island, mask, _leafPart, offset);
+				return;
+			}
+		}
+
+		double logScale = 0;
+		for (int y = 0; y < card; y++)
+			_leafPart[offset + y] = 1.0;
+		for (int k = start; k < end; k++) {
+			int l = tree._leafChildren[k];
+			if (_state[l] < 0)
+				continue;
+
+			double n = 0;
+			for (int y = 0; y < card; y++)
+				n += leafUp(l, y);
+			for (int y = 0; y < card; y++)
+				_leafPart[offset + y] *= n != 0.0 ? leafUp(l, y) / n : 1.0 / card;
+			logScale += Math.log(n);
+		}
+		_leafPartLog[v] = logScale + normalize(_leafPart, offset, card);
+	}
+
+	/**
+	 * Computes lambda of latent variable v from its leaf part and the messages of its latent
+	 * children, and the message v sends up, or the log likelihood if v is the root.
+	 */
+	private void collect(int v) {
+		CompiledCliqueTree tree = _tree;
+		int card = tree._card[v];
+		int offset = tree._stateOffset[v];
+
+		System.arraycopy(_leafPart, offset, _lambda, offset, card);
+		double logScale = _leafPartLog[v];
+		for (int k = tree._latentChildStart[v]; k < tree._latentChildStart[v + 1]; k++) {
+			int c = tree._latentChildren[k];
+			int upOffset = tree._upOffset[c];
+			for (int y = 0; y < card; y++)
+				_lambda[offset + y] *= _up[upOffset + y];
+			logScale += _upLog[c];
+		}
+		logScale += normalize(_lambda, offset, card);
+		_lambdaLog[v] = logScale;
+
+		int cptOffset = tree._cptOffset[v];
+		if (v == tree._root) {
+			double likelihood = 0;
+			for (int y = 0; y < card; y++)
+				likelihood += tree._cpt[cptOffset + y] * _lambda[offset + y];
+			_lastLogLikelihood = logScale + Math.log(likelihood);
+			return;
+		}
+
+		int parentCard = tree._card[tree._parent[v]];
+		int upOffset = tree._upOffset[v];
+		if (tree._binary[v]) {
+			// binary kernel
+			double[] cpt = tree._cpt;
+			double l0 = _lambda[offset], l1 = _lambda[offset + 1];
+			_up[upOffset] = cpt[cptOffset] * l0 + cpt[cptOffset + 1] * l1;
+			_up[upOffset + 1] = cpt[cptOffset + 2] * l0 + cpt[cptOffset + 3] * l1;
+		} else {
+			for (int p = 0; p < parentCard; p++) {
+				double sum = 0;
+				int row = cptOffset + p * card;
+				for (int y = 0; y < card; y++)
+					sum += tree._cpt[row + y] * _lambda[offset + y];
+				_up[upOffset + p] = sum;
+			}
+		}
+		_upLog[v] = logScale + normalize(_up, upOffset, parentCard);
+	}
+
+	/**
+	 * Computes pi of latent variable v from the message of its parent.
+	 */
+	private void distribute(int v) {
+		CompiledCliqueTree tree = _tree;
+		int card = tree._card[v];
+		int offset = tree._stateOffset[v];
+		int cptOffset = tree._cptOffset[v];
+
+		if (v == tree._root) {
+			System.arraycopy(tree._cpt, cptOffset, _pi, offset, card);
+			return;
+		}
+
+		int parentCard = tree._card[tree._parent[v]];
+		down(v, _down);
+		if (tree._binary[v]) {
+			// binary kernel
+			double[] cpt = tree._cpt;
+			double d0 = _down[0], d1 = _down[1];
+			_pi[offset] = d0 * cpt[cptOffset] + d1 * cpt[cptOffset + 2];
+			_pi[offset + 1] = d0 * cpt[cptOffset + 1] + d1 * cpt[cptOffset + 3];
+		} else {
+			for (int y = 0; y < card; y++)
+				_pi[offset + y] = 0;
+			for (int p = 0; p < parentCard; p++) {
+				int row = cptOffset + p * card;
+				for (int y = 0; y < card; y++)
+					_pi[offset + y] += _down[p] * tree._cpt[row + y];
+			}
+		}
+		normalize(_pi, offset, card);
+	}
+
+	/**
+	 * Computes the message the parent of v sends down to v, normalized, over the states of the
+	 * parent: everything but the message of v.
+	 */
+	private void down(int v, double[] down) {
+		CompiledCliqueTree tree = _tree;
+		int parent = tree._parent[v];
+		int parentCard = tree._card[parent];
+		int parentOffset = tree._stateOffset[parent];
+		int upOffset = tree._upOffset[v];
+
+		boolean divisible = true;
+		for (int p = 0; p < parentCard && divisible; p++) {
+			double up = tree._leaf[v] ? leafUp(v, p) : _up[upOffset + p];
+			if (up == 0.0)
+				divisible = false;
+			else
+				down[p] = _pi[parentOffset + p] * _lambda[parentOffset + p] / up;
+		}
+
+		if (!divisible) {
+			// the product of the other messages
+			for (int p = 0; p < parentCard; p++)
+				down[p] = _pi[parentOffset + p];
+			for (int k = tree._latentChildStart[parent]; k < tree._latentChildStart[parent + 1]; k++) {
+				int c = tree._latentChildren[k];
+				if (c == v)
+					continue;
+				for (int p = 0; p < parentCard; p++)
+					down[p] *= _up[tree._upOffset[c] + p];
+			}
+			for (int k = tree._leafChildStart[parent]; k < tree._leafChildStart[parent + 1]; k++) {
+				int c = tree._leafChildren[k];
+				if (c == v || _state[c] < 0)
+					continue;
+				for (int p = 0; p < parentCard; p++)
+					down[p] *= leafUp(c, p);
+			}
+		}
+		normalize(down, 0, parentCard);
+	}
+
+	/**
+	 * Normalizes a vector in place.
+	 *
+	 * @return the log of its sum, or the log of 0 if it is uniform now
+	 */
+	private static double normalize(double[] vector, int offset, int length) {
+		double sum = 0;
+		for (int i = offset; i < offset + length; i++)
+			sum += vector[i];
+		if (sum != 0.0) {
+			for (int i = offset; i < offset + length; i++)
+				vector[i] /= sum;
+		} else {
+			for (int i = offset; i < offset + length; i++)
+				vector[i] = 1.0 / length;
+		}
+		return Math.log(sum);
+	}
+
+	/**
+	 * @return the log likelihood of the evidence of the last propagation
+	 */
+	public double getLastLogLikelihood() {
+		return _lastLogLikelihood;
+	}
+
+	/**
+	 * Computes the posterior of a variable after the last propagation.
+	 *
+	 * @param v
+	 *            the number of the variable in the compiled tree.
+	 * @param belief
+	 *            receives the belief, over the states of v.
+	 */
+	public void computeBelief(int v, double[] belief) {
+		CompiledCliqueTree tree = _tree;
+		int card = tree._card[v];
+
+		if (tree._leaf[v] && _state[v] >= 0) {
+			Arrays.fill(belief, 0, card, 0.0);
+			belief[_state[v]] = 1.0;
+			return;
+		}
+
+		if (!inRange(v)) {
+			tree.getDefaultBelief(v, belief);
+			return;
+		}
+
+		if (tree._leaf[v]) {
+			int parentCard = tree._card[tree._parent[v]];
+			int cptOffset = tree._cptOffset[v];
+			down(v, _down);
+			Arrays.fill(belief, 0, card, 0.0);
+			for (int p = 0; p < parentCard; p++) {
+				for (int x = 0; x < card; x++)
+					belief[x] += _down[p] * tree._cpt[cptOffset + p * card + x];
+			}
+		} else {
+			int offset = tree._stateOffset[v];
+			for (int y = 0; y < card; y++)
+				belief[y] = _pi[offset + y] * _lambda[offset + y];
+		}
+		normalize(belief, 0, card);
+	}
+
+	/**
+	 * Computes the posterior probability of one state of a variable after the last propagation, e.g.
+	 * P(Z=1|u,m).
+	 *
+	 * @param v
+	 *            the number of the variable in the compiled tree.
+	 * @param state
+	 *            the state.
+	 * @return the posterior probability of the state.
+	 */
+	public double computeBelief(int v, int state) {
+		computeBelief(v, _belief);
+		return _belief[state];
+	}
+
+	/**
+	 * Computes the posterior of the family of a variable after the last propagation.
+	 *
+	 * @param v
+	 *            the number of the variable in the compiled tree.
+	 * @param belief
+	 *            receives the belief of v and its parent at [p * card(v) + x], or the belief of v if
+	 *            it is the root.
+	 */
+	public void computeFamilyBelief(int v, double[] belief) {
+		CompiledCliqueTree tree = _tree;
+		if (v == tree._root) {
+			computeBelief(v, belief);
+			return;
+		}
+
+		int size = tree.getFamilySize(v);
+		if (!inRange(v)) {
+			System.arraycopy(tree._defaultFamilyBelief, tree._cptOffset[v], belief, 0, size);
+			return;
+		}
+
+		int card = tree._card[v];
+		int parentCard = tree._card[tree._parent[v]];
+		int cptOffset = tree._cptOffset[v];
+		int offset = tree._stateOffset[v];
+		boolean leaf = tree._leaf[v];
+		int state = _state[v];
+
+		down(v, _down);
+		for (int x = 0; x < card; x++)
+			_message[x] = leaf ? (state < 0 || state == x ? 1.0 : 0.0) : _lambda[offset + x];
+		for (int p = 0; p < parentCard; p++) {
+			for (int x = 0; x < card; x++)
+				belief[p * card + x] = _down[p] * tree._cpt[cptOffset + p * card + x] * _message[x];
+		}
+		normalize(belief, 0, size);
+	}
+
+	/**
+	 * Adds weight times the difference between the family belief and the default family belief of
+	 * every variable to stats, which is laid out like the CPTs, see CompiledCliqueTree.getFamilyOffset().
+	 * Only the variables in the range of the last propagation are visited; together with
+	 * CompiledCliqueTree.addDefaultFamilyBeliefs() over the total weight this sums the family
+	 * beliefs of a set of data cases.
+	 *
+	 * @param weight
+	 *            the weight of the data case.
+	 * @param stats
+	 *            the sufficient statistics.
+	 */
+	public void addFamilyBeliefDeltas(double weight, double[] stats) {
+		CompiledCliqueTree tree = _tree;
+		if (_full) {
+			for (int v = 0; v < tree._n; v++)
+				addFamilyBeliefDelta(v, weight, stats);
+			return;
+		}
+
+		for (int k = 0; k < _rangeSize; k++)
+			addFamilyBeliefDelta(_range[k], weight, stats);
+		for (int t = 0; t < _topMark.length; t++) {
+			if (_rangeSize > 0 && _topMark[t] == _epoch) {
+				for (int l : tree._topLeaves[t])
+					addFamilyBeliefDelta(l, weight, stats);
+			}
+		}
+	}
+
+	private void addFamilyBeliefDelta(int v, double weight, double[] stats) {
+		computeFamilyBelief(v, _familyBelief);
+		int offset = _tree._cptOffset[v];
+		int size = _tree.getFamilySize(v);
+		for (int i = 0; i < size; i++)
+			stats[offset + i] += weight * (_familyBelief[i] - _tree._defaultFamilyBelief[offset + i]);
+	}
+}
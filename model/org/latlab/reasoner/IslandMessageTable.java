@@ -0,0 +1,294 @@
+package org.latlab.reasoner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.latlab.graph.AbstractNode;
+import org.latlab.graph.DirectedNode;
+import org.latlab.model.BeliefNode;
+import org.latlab.model.LTM;
+import org.latlab.util.Function;
+import org.latlab.util.Variable;
+
+/**
+ * <p>
+ * Precomputed upward messages of the islands of an LTM, for restricted propagation with positive-only
+ * evidence (every manifest variable observed as 0 or 1).
+ * </p>
+ *
+ * <p>
+ * An island is a non-root latent variable Y whose children are all manifest. With all children observed,
+ * the message the variable clique of Y sends to the family clique of Y is prod_i P(X_i=x_i|Y), which
+ * only depends on the bitmask of the children observed as 1. This table stores that message and its
+ * normalization for every bitmask of islands with at most FULL_TABLE_BITS children, and for the
+ * bitmasks that occur for larger islands. CliqueTreePropagationRec then injects the message
+ * instead of absorbing evidence and collecting messages from the leaf cliques of the island.
+ * </p>
+ *
+ * <p>
+ * The table is immutable apart from the lazily filled entries of large islands, so one table can be
+ * shared by all ctps of a group. It has to be rebuilt when the parameters of the model change.
+ * </p>
+ *
+ * @author fkhawar
+ */
+public final class IslandMessageTable {
+
+	/**
+	 * Islands with at most this many children get a table over all bitmasks
+	 */
+	public static final int FULL_TABLE_BITS = 10;
+
+	/**
+	 * The bitmask of an island is a long, larger islands are propagated as usual
+	 */
+	public static final int MAX_ISLAND_BITS = 63;
+
+	/**
+	 * The maximum number of bitmasks stored per large island, other bitmasks are computed on every lookup
+	 */
+	public static final int MAX_OBSERVED_MASKS = 1 << 12;
+
+	/**
+	 * One island: a latent variable and its manifest children
+	 */
+	public static final class Island {
+		public final Variable latent;
+		public final Variable[] children;
+		final int card;
+
+		/**
+		 * P(X_i=s|Y=y) at [s][i * card + y]
+		 */
+		final double[][] likelihood;
+
+		/**
+		 * For small islands, the entry of bitmask b at [b * (card + 2)], else null
+		 */
+		final double[] full;
+
+		/**
+		 * For large islands, the entries of the bitmasks seen so far, else null
+		 */
+		final ConcurrentHashMap<Long, double[]> observed;
+
+		Island(Variable latent, Variable[] children, Map<Variable, Function> cpts) {
+			this.latent = latent;
+			this.children = children;
+			this.card = latent.getCardinality();
+			this.likelihood = new double[2][children.length * card];
+
+			for (int i = 0; i < children.length; i++) {
+				Function cpt = cpts.get(children[i]);
+				for (int s = 0; s < 2; s++) {
+					double[] cells = cpt.project(children[i], s).getCells();
+					System.arraycopy(cells, 0, likelihood[s], i * card, card);
+				}
+			}
+
+			if (children.length <= FULL_TABLE_BITS) {
+				int width = card + 2;
+				full = new double[(1 << children.length) * width];
+				double[] entry = new double[width];
+				for (int mask = 0; mask < 1 << children.length; mask++) {
+					compute(mask, entry);
+					System.arraycopy(entry, 0, full, mask * width, width);
+				}
+				observed = null;
+			} else {
+				full = null;
+				observed = new ConcurrentHashMap<Long, double[]>();
+			}
+		}
+
+		/**
+		 * Computes the entry of a bitmask: the normalized message over Y, followed by its
+		 * normalization and log normalization, in the same way sendMessage4HLCM would
+		 */
+		void compute(long mask, double[] entry) {
+			double normalization = 1.0;
+			double logNormalization = 0;
+			for (int y = 0; y < card; y++)
+				entry[y] = 1.0;
+
+			for (int i = 0; i < children.length; i++) {
+				double[] cells = likelihood[(int) ((mask >>> i) & 1L)];
+				int offset = i * card;
+
+				// the message of the leaf family clique, normalized
+				double n = 0;
+				for (int y = 0; y < card; y++)
+					n += cells[offset + y];
+				for (int y = 0; y < card; y++)
+					entry[y] *= n != 0.0 ? cells[offset + y] / n : 1.0 / card;
+				normalization *= n;
+				logNormalization += Math.log(n);
+			}
+
+			double n = 0;
+			for (int y = 0; y < card; y++)
+				n += entry[y];
+			for (int y = 0; y < card; y++)
+				entry[y] = n != 0.0 ? entry[y] / n : 1.0 / card;
+
+			entry[card] = normalization * n;
+			entry[card + 1] = logNormalization + Math.log(n);
+		}
+
+		/**
+		 * @return the entry of a bitmask of a large island, computed if it is not stored
+		 */
+		double[] lookupObserved(long mask) {
+			double[] entry = observed.get(mask);
+			if (entry == null) {
+				entry = new double[card + 2];
+				compute(mask, entry);
+				if (observed.size() < MAX_OBSERVED_MASKS)
+					observed.putIfAbsent(mask, entry);
+			}
+			return entry;
+		}
+	}
+
+	private final Map<Variable, Island> _islands = new HashMap<Variable, Island>();
+	private final Map<Variable, Island> _islandOfChild = new HashMap<Variable, Island>();
+	private final Map<Variable, Integer> _bitOfChild = new HashMap<Variable, Integer>();
+
+	/**
+	 * Finds the islands of the model and tabulates their messages.
+	 *
+	 * @param model
+	 *            the LTM, whose variables have to be the ones the ctps use.
+	 */
+	public IslandMessageTable(LTM model) {
+		Map<Variable, Function> cpts = new HashMap<Variable, Function>();
+		for (AbstractNode node : model.getNodes())
+			cpts.put(((BeliefNode) node).getVariable(), ((BeliefNode) node).getCpt());
+
+		for (AbstractNode node : model.getNodes()) {
+			DirectedNode dNode = (DirectedNode) node;
+			if (dNode.isLeaf() || dNode.isRoot() || dNode.getChildren().size() > MAX_ISLAND_BITS)
+				continue;
+
+			ArrayList<Variable> children = new ArrayList<Variable>();
+			for (DirectedNode child : dNode.getChildren()) {
+				if (!child.isLeaf() || ((BeliefNode) child).getVariable().getCardinality() != 2) {
+					children = null;
+					break;
+				}
+				children.add(((BeliefNode) child).getVariable());
+			}
+			if (children == null)
+				continue;
+
+			Variable latent = ((BeliefNode) node).getVariable();
+			Island island = new Island(latent, children.toArray(new Variable[children.size()]), cpts);
+			_islands.put(latent, island);
+			for (int i = 0; i < island.children.length; i++) {
+				_islandOfChild.put(island.children[i], island);
+				_bitOfChild.put(island.children[i], i);
+			}
+		}
+	}
+
+	/**
+	 * @return the island of a latent variable, or null if it is not one
+	 */
+	public Island getIsland(Variable latent) {
+		return _islands.get(latent);
+	}
+
+	/**
+	 * @return the island a manifest variable belongs to, or null
+	 */
+	public Island getIslandOfChild(Variable manifest) {
+		return _islandOfChild.get(manifest);
+	}
+
+	/**
+	 * @return all islands
+	 */
+	public Collection<Island> getIslands() {
+		return _islands.values();
+	}
+
+	/**
+	 * Computes the bitmask of each island from the manifest variables observed as 1.
+	 *
+	 * @param positives
+	 *            the manifest variables observed as 1, the others are 0.
+	 * @return the bitmask of each island with a positive child; missing islands have bitmask 0.
+	 */
+	public Map<Island, Long> masks(Collection<Variable> positives) {
+		Map<Island, Long> masks = new HashMap<Island, Long>();
+		for (Variable var : positives) {
+			Island island = _islandOfChild.get(var);
+			if (island == null)
+				continue;
+			Long mask = masks.get(island);
+			masks.put(island, (mask == null ? 0L : mask) | (1L << _bitOfChild.get(var)));
+		}
+		return masks;
+	}
+
+	/**
+	 * Copies the message of a bitmask into an array, for propagations that do not use CliqueNodes.
+	 *
+	 * @param island
+	 *            the island.
+	 * @param mask
+	 *            bit i is set iff children[i] is observed as 1.
+	 * @param message
+	 *            receives the normalized message over the states of the latent variable.
+	 * @param offset
+	 *            the position of the first state in message.
+	 * @return the log normalization of the message.
+	 */
+	public double getMessage(Island island, long mask, double[] message, int offset) {
+		double[] entry;
+		int entryOffset = 0;
+		if (island.full != null) {
+			entry = island.full;
+			entryOffset = (int) mask * (island.card + 2);
+		} else {
+			entry = island.lookupObserved(mask);
+		}
+
+		System.arraycopy(entry, entryOffset, message, offset, island.card);
+		return entry[entryOffset + island.card + 1];
+	}
+
+	/**
+	 * Sets the message, normalization and log normalization the variable clique of the island sends to
+	 * its family clique, as if the children were absorbed and collected with the given bitmask.
+	 *
+	 * @param island
+	 *            the island.
+	 * @param mask
+	 *            bit i is set iff children[i] is observed as 1.
+	 * @param variableClique
+	 *            the variable clique of the island's latent variable.
+	 * @param familyClique
+	 *            the family clique of the island's latent variable.
+	 */
+	public void injectMessage(Island island, long mask, CliqueNode variableClique, CliqueNode familyClique) {
+		double[] entry;
+		int offset = 0;
+		if (island.full != null) {
+			entry = island.full;
+			offset = (int) mask * (island.card + 2);
+		} else {
+			entry = island.lookupObserved(mask);
+		}
+
+		Function message = Function.createIdentityFunction(island.latent);
+		System.arraycopy(entry, offset, message.getCells(), 0, island.card);
+
+		variableClique.setMessageTo(familyClique, message);
+		variableClique.setNormalizationTo(familyClique, entry[offset + island.card]);
+		variableClique.setLogNormalizationTo(familyClique, entry[offset + island.card + 1]);
+	}
+}
@@ -1206,6 +1206,19 @@ public class Function implements Cloneable {
 	 * @return the normalizing constant.
 	 */
 	public final double normalize() {
+		if (_cells.length == 2) {
+			// binary kernel
+			double sum = _cells[0] + _cells[1];
+			if (sum != 0.0) {
+				_cells[0] /= sum;
+				_cells[1] /= sum;
+			} else {
+				_cells[0] = 0.5;
+				_cells[1] = 0.5;
+			}
+			return sum;
+		}
+
 		double sum = sumUp();
 
 		if (sum != 0.0) {
@@ -184,6 +184,10 @@ public class Function1D extends Function {
 	public void multiply(Function function) {
 		if (function.getDimension() == 0) {
 			multiply(function._cells[0]);
+		} else if (_cells.length == 2) {
+			// binary kernel
+			_cells[0] *= function._cells[0];
+			_cells[1] *= function._cells[1];
 		} else {
 			for (int i = 0; i < getDomainSize(); i++) {
 				_cells[i] *= function._cells[i];
@@ -206,6 +210,10 @@ public class Function1D extends Function {
 	public void divide(Function function) {
 		if (function.getDimension() == 0) {
 			divide(function._cells[0]);
+		} else if (_cells.length == 2) {
+			// binary kernel
+			_cells[0] /= function._cells[0];
+			_cells[1] /= function._cells[1];
 		} else {
 			for (int i = 0; i < getDomainSize(); i++) {
 				_cells[i] /= function._cells[i];
@@ -142,6 +142,10 @@ public class Function2D extends Function {
 		int xCard = _x.getCardinality();
 		int yCard = _y.getCardinality();
 
+		if (xCard == 2 && yCard == 2) {
+			return normalizeBinary(variable == _x);
+		}
+
 		int index;
 		double sum;
 
@@ -205,6 +209,35 @@ public class Function2D extends Function {
 		return hasZero;
 	}
 
+	/**
+	 * Binary kernel of normalize(Variable): normalizes the columns (over _x)
+	 * or the rows (over _y) of a 2x2 function in place.
+	 * 
+	 * @param overX
+	 *            whether to normalize over _x.
+	 * @return whether some column or row sums to zero.
+	 */
+	private final boolean normalizeBinary(boolean overX) {
+		// the cells of the two pairs that sum to one
+		int a0 = 0, a1 = overX ? 2 : 1;
+		int b0 = overX ? 1 : 2, b1 = 3;
+
+		return normalizePair(a0, a1) | normalizePair(b0, b1);
+	}
+
+	private final boolean normalizePair(int i, int j) {
+		double sum = _cells[i] + _cells[j];
+		if (sum != 0.0) {
+			_cells[i] /= sum;
+			_cells[j] /= sum;
+			return false;
+		}
+
+		_cells[i] = 0.5;
+		_cells[j] = 0.5;
+		return true;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -273,7 +306,16 @@ public class Function2D extends Function {
 		int xCard = _x.getCardinality();
 		int yCard = _y.getCardinality();
 
-		if (variable == _x) {
+		if (xCard == 2 && yCard == 2) {
+			// binary kernel
+			if (variable == _x) {
+				variables = new Variable[] { _y };
+				cells = new double[] { _cells[0] + _cells[2], _cells[1] + _cells[3] };
+			} else {
+				variables = new Variable[] { _x };
+				cells = new double[] { _cells[0] + _cells[1], _cells[2] + _cells[3] };
+			}
+		} else if (variable == _x) {
 			variables = new Variable[] { _y };
 
 			cells = new double[yCard];
@@ -300,6 +342,76 @@ public class Function2D extends Function {
 		return (new Function1D(variables, cells, magnitudes));
 	}
 
+	/**
+	 * <p>
+	 * Returns the product between this function and a one-dimensional function
+	 * over one of its variables, with that variable summed out. It equals
+	 * <code>this.times(function).sumOut(variable)</code> but does not build the
+	 * intermediate two-dimensional function. This is how a family clique of an
+	 * LTM sends a message to a variable clique.
+	 * </p>
+	 * 
+	 * @param function
+	 *            one-dimensional multiplier function over the variable.
+	 * @param variable
+	 *            the variable to be summed out.
+	 * @return a one-dimensional function over the other variable.
+	 */
+	public final Function1D timesAndSumOut(Function1D function,
+			Variable variable) {
+
+		// argument variable must be either of the variables in this function,
+		// and the only variable of the multiplier
+		assert (variable == _x || variable == _y) && variable == function._x;
+
+		Variable[] variables;
+		double[] cells;
+		int[] magnitudes = new int[] { 1 };
+		double[] m = function._cells;
+
+		int xCard = _x.getCardinality();
+		int yCard = _y.getCardinality();
+
+		if (xCard == 2 && yCard == 2) {
+			// binary kernel
+			if (variable == _x) {
+				variables = new Variable[] { _y };
+				cells = new double[] { _cells[0] * m[0] + _cells[2] * m[1],
+						_cells[1] * m[0] + _cells[3] * m[1] };
+			} else {
+				variables = new Variable[] { _x };
+				cells = new double[] { _cells[0] * m[0] + _cells[1] * m[1],
+						_cells[2] * m[0] + _cells[3] * m[1] };
+			}
+		} else if (variable == _x) {
+			variables = new Variable[] { _y };
+
+			cells = new double[yCard];
+
+			int index = 0;
+			for (int i = 0; i < xCard; i++) {
+				for (int j = 0; j < yCard; j++) {
+					cells[j] += _cells[index++] * m[i];
+				}
+			}
+		} else {
+			variables = new Variable[] { _x };
+
+			cells = new double[xCard];
+
+			int index = 0;
+			for (int i = 0; i < xCard; i++) {
+				double sum = 0.0;
+				for (int j = 0; j < yCard; j++) {
+					sum += _cells[index++] * m[j];
+				}
+				cells[i] = sum;
+			}
+		}
+
+		return (new Function1D(variables, cells, magnitudes));
+	}
+
 	/**
 	 * Returns the product between this Function2D and another function. The
 	 * multiplication is delegated to <code>Function1D.times(Function)</code> if
@@ -344,7 +456,21 @@ public class Function2D extends Function {
 			int xCard = _x.getCardinality();
 			int yCard = _y.getCardinality();
 			int index = 0;
-			if (_x == ((Function1D) function)._x) {
+			if (xCard == 2 && yCard == 2) {
+				// binary kernel
+				double[] m = function._cells;
+				if (_x == ((Function1D) function)._x) {
+					_cells[0] *= m[0];
+					_cells[1] *= m[0];
+					_cells[2] *= m[1];
+					_cells[3] *= m[1];
+				} else {
+					_cells[0] *= m[0];
+					_cells[1] *= m[1];
+					_cells[2] *= m[0];
+					_cells[3] *= m[1];
+				}
+			} else if (_x == ((Function1D) function)._x) {
 				for (int i = 0; i < xCard; i++) {
 					for (int j = 0; j < yCard; j++) {
 						_cells[index] *= function._cells[i];
@@ -384,7 +510,21 @@ public class Function2D extends Function {
 			int xCard = _x.getCardinality();
 			int yCard = _y.getCardinality();
 			int index = 0;
-			if (_x == ((Function1D) function)._x) {
+			if (xCard == 2 && yCard == 2) {
+				// binary kernel
+				double[] m = function._cells;
+				if (_x == ((Function1D) function)._x) {
+					_cells[0] /= m[0];
+					_cells[1] /= m[0];
+					_cells[2] /= m[1];
+					_cells[3] /= m[1];
+				} else {
+					_cells[0] /= m[0];
+					_cells[1] /= m[1];
+					_cells[2] /= m[0];
+					_cells[3] /= m[1];
+				}
+			} else if (_x == ((Function1D) function)._x) {
 				for (int i = 0; i < xCard; i++) {
 					for (int j = 0; j < yCard; j++) {
 						_cells[index] /= function._cells[i];